@@ -0,0 +1,5 @@
+#!/bin/sh
+
+rm -rf ticketingsystem/*.class
+javac -encoding UTF-8 -cp . ticketingsystem/*.java
+java -cp . ticketingsystem/Benchmark "$@"
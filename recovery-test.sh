@@ -0,0 +1,4 @@
+#!/bin/sh
+
+javac -encoding UTF-8 -cp . ticketingsystem/RecoveryTest.java
+java -cp . ticketingsystem/RecoveryTest
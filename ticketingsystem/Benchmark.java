@@ -0,0 +1,1006 @@
+package ticketingsystem;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * 列车实现的性能基准
+ * 负载与 Test 相同（10% 退票、20% 买票、70% 查询），但直接驱动指定的 TrainTicketingDS 实现；
+ * 每个线程各自记录延迟直方图，结束后再合并，乘客名预先生成，计时区间内不做多余的分配
+ *
+ * 用法：java ticketingsystem.Benchmark stations [线程数] [实现类名 ...]
+ *      java ticketingsystem.Benchmark counters [车站数] [计数器类名 ...]
+ *      java ticketingsystem.Benchmark inquiry [车站数] [实现类名 ...]
+ *      java ticketingsystem.Benchmark skew [车站数] [实现类名 ...]
+ *      java ticketingsystem.Benchmark registry [买退次数] [实现类名 ...]
+ *      java ticketingsystem.Benchmark group [团体人数] [实现类名 ...]
+ *      java ticketingsystem.Benchmark itinerary [段数] [实现类名 ...]
+ *      java ticketingsystem.Benchmark matrix [车站数] [实现类名 ...]
+ *      java ticketingsystem.Benchmark cache [车站数] [实现类名 ...]
+ *      java ticketingsystem.Benchmark hint [车站数] [找座提示 ...]
+ *      java ticketingsystem.Benchmark journal [车站数] [组提交间隔毫秒数或 off ...]
+ *      java ticketingsystem.Benchmark snapshot [车站数] [实现类名 ...]
+ *      java ticketingsystem.Benchmark alloc [买退次数] [实现类名 ...]
+ *      java ticketingsystem.Benchmark suite [结果文件] [基线文件]，扫描的维度见 BenchmarkSuite
+ * 实现类名写成 "实现类名+计数器类名" 时，把计数器换进支持替换计数器的实现里
+ */
+public class Benchmark {
+    private final static int ROUTE_NUM = 5;
+    private final static int COACH_NUM = 10;
+    private final static int SEAT_NUM = 100;
+
+    private final static int TEST_NUM = 20000;
+    private final static int refund = 10;
+    private final static int buy = 30;
+    private final static int query = 100;
+
+    // 写多的负载：30% 退票、30% 买票、40% 查询
+    private final static int WRITE_HEAVY_REFUND = 30;
+    private final static int WRITE_HEAVY_BUY = 60;
+    // 高线程数下每轮的总操作数，按线程数平分
+    private final static int TOTAL_OPS = 400000;
+
+    private final static String[] passengers = new String[1024];
+
+    static {
+        for (int i = 0; i < passengers.length; i++) {
+            passengers[i] = "passenger" + i;
+        }
+    }
+
+    static TrainTicketingDS newTrain(String engine, int trainNr, int coachnum, int seatnum, int stationnum, int threadnum) {
+        try {
+            int plus = engine.indexOf('+');
+            if (plus >= 0) {
+                TrainRemainTicketCounter counter = newCounter(engine.substring(plus + 1), stationnum, coachnum, seatnum, threadnum);
+                Constructor<?> ctor = Class.forName("ticketingsystem." + engine.substring(0, plus))
+                        .getDeclaredConstructor(int.class, int.class, int.class, int.class, int.class, TrainRemainTicketCounter.class);
+                return (TrainTicketingDS) ctor.newInstance(trainNr, coachnum, seatnum, stationnum, threadnum, counter);
+            }
+            // 类名和 composed、partitioned、adaptive、flatcombining 这些组装名都交给工厂
+            java.util.Properties config = new java.util.Properties();
+            config.setProperty(TrainTicketingDSFactory.PREFIX + "engine", engine);
+            return new TrainTicketingDSFactory(config).newTrain(trainNr, coachnum, seatnum, stationnum, threadnum);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Unknown engine " + engine, e);
+        }
+    }
+
+    static TrainTicketingDS[] newTrains(String engine, int routenum, int coachnum, int seatnum, int stationnum, int threadnum) {
+        TrainTicketingDS[] trains = new TrainTicketingDS[routenum];
+        for (int trainNr = 1; trainNr <= routenum; trainNr++) {
+            trains[trainNr - 1] = newTrain(engine, trainNr, coachnum, seatnum, stationnum, threadnum);
+        }
+        return trains;
+    }
+
+    static final class Result {
+        long elapsedNanos;
+        long ops;
+        final LatencyHistogram buyLatency = new LatencyHistogram();
+        final LatencyHistogram refundLatency = new LatencyHistogram();
+        final LatencyHistogram inquiryLatency = new LatencyHistogram();
+
+        long throughput() {
+            return this.elapsedNanos == 0 ? 0 : this.ops * 1_000_000_000L / this.elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("ThroughOut(op/s): %d Buy(ns) avg/p50/p99: %d/%d/%d Refund(ns) avg/p50/p99: %d/%d/%d Inquiry(ns) avg/p50/p99: %d/%d/%d",
+                    throughput(),
+                    buyLatency.getMean(), buyLatency.getValueAtPercentile(50), buyLatency.getValueAtPercentile(99),
+                    refundLatency.getMean(), refundLatency.getValueAtPercentile(50), refundLatency.getValueAtPercentile(99),
+                    inquiryLatency.getMean(), inquiryLatency.getValueAtPercentile(50), inquiryLatency.getValueAtPercentile(99));
+        }
+    }
+
+    static final class Worker extends Thread {
+        private final TrainTicketingDS[] trains;
+        private final int stationnum;
+        private final int testnum;
+        private final long seed;
+        private final int refundPc;
+        private final int buyPc;
+        private final int hotPc;
+        final LatencyHistogram buyLatency = new LatencyHistogram();
+        final LatencyHistogram refundLatency = new LatencyHistogram();
+        final LatencyHistogram inquiryLatency = new LatencyHistogram();
+
+        Worker(TrainTicketingDS[] trains, int stationnum, int testnum, long seed, int refundPc, int buyPc, int hotPc) {
+            this.trains = trains;
+            this.stationnum = stationnum;
+            this.testnum = testnum;
+            this.seed = seed;
+            this.refundPc = refundPc;
+            this.buyPc = buyPc;
+            this.hotPc = hotPc;
+        }
+
+        // hotPc% 的请求落在 1 号线路上，其余均匀分布
+        private TrainTicketingDS pickTrain(Random rand) {
+            if (rand.nextInt(query) < this.hotPc) {
+                return this.trains[0];
+            }
+            return this.trains[rand.nextInt(this.trains.length)];
+        }
+
+        @Override
+        public void run() {
+            Random rand = new Random(this.seed);
+            ArrayList<Ticket> soldTicket = new ArrayList<>();
+            for (int i = 0; i < this.testnum; i++) {
+                int sel = rand.nextInt(query);
+                if (sel < this.refundPc && soldTicket.size() > 0) {
+                    Ticket ticket = soldTicket.remove(rand.nextInt(soldTicket.size()));
+                    TrainTicketingDS train = this.trains[ticket.route - 1];
+                    long s = System.nanoTime();
+                    train.refundTicket(ticket);
+                    this.refundLatency.record(System.nanoTime() - s);
+                } else if (this.refundPc <= sel && sel < this.buyPc) {
+                    String passenger = passengers[rand.nextInt(passengers.length)];
+                    TrainTicketingDS train = pickTrain(rand);
+                    int departure = rand.nextInt(this.stationnum - 1) + 1;
+                    int arrival = departure + rand.nextInt(this.stationnum - departure) + 1;
+                    long s = System.nanoTime();
+                    Ticket ticket = train.buyTicket(passenger, departure, arrival);
+                    this.buyLatency.record(System.nanoTime() - s);
+                    if (ticket != null) {
+                        soldTicket.add(ticket);
+                    }
+                } else {
+                    TrainTicketingDS train = pickTrain(rand);
+                    int departure = rand.nextInt(this.stationnum - 1) + 1;
+                    int arrival = departure + rand.nextInt(this.stationnum - departure) + 1;
+                    long s = System.nanoTime();
+                    train.inquiry(departure, arrival);
+                    this.inquiryLatency.record(System.nanoTime() - s);
+                }
+            }
+        }
+    }
+
+    static Result run(TrainTicketingDS[] trains, int stationnum, int threadnum, int testnum) throws InterruptedException {
+        return run(trains, stationnum, threadnum, testnum, refund, buy, 0);
+    }
+
+    static Result run(TrainTicketingDS[] trains, int stationnum, int threadnum, int testnum, int refundPc, int buyPc, int hotPc) throws InterruptedException {
+        Worker[] workers = new Worker[threadnum];
+        for (int i = 0; i < threadnum; i++) {
+            workers[i] = new Worker(trains, stationnum, testnum, i, refundPc, buyPc, hotPc);
+        }
+        long start = System.nanoTime();
+        for (Worker worker : workers) {
+            worker.start();
+        }
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        Result result = new Result();
+        result.elapsedNanos = System.nanoTime() - start;
+        result.ops = (long) threadnum * testnum;
+        for (Worker worker : workers) {
+            result.buyLatency.add(worker.buyLatency);
+            result.refundLatency.add(worker.refundLatency);
+            result.inquiryLatency.add(worker.inquiryLatency);
+        }
+        return result;
+    }
+
+    static TrainRemainTicketCounter newCounter(String counter, int stationnum, int coachnum, int seatnum, int threadnum) {
+        try {
+            Class<?> clazz = Class.forName("ticketingsystem." + counter);
+            try {
+                return (TrainRemainTicketCounter) clazz.getDeclaredConstructor(int.class, int.class, int.class, int.class)
+                        .newInstance(stationnum, coachnum, seatnum, threadnum);
+            } catch (NoSuchMethodException e) {
+                // Atomic、LongAdder、ReadWrite 计数器不需要线程数
+                return (TrainRemainTicketCounter) clazz.getDeclaredConstructor(int.class, int.class, int.class)
+                        .newInstance(stationnum, coachnum, seatnum);
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Unknown counter " + counter, e);
+        }
+    }
+
+    // 只压计数器：每个线程独占一组座位，在自己的座位上买票、退票并查询余票，
+    // 没有座位竞争，测到的就是计数器本身的开销（包括线程之间的伪共享）
+    static final class CounterWorker extends Thread {
+        private final TrainRemainTicketCounter counter;
+        private final TrainSeatOccupiedBitmap bitmap;
+        private final int stationnum;
+        private final int threadnum;
+        private final int id;
+        private final int testnum;
+        final LatencyHistogram buyLatency = new LatencyHistogram();
+        final LatencyHistogram refundLatency = new LatencyHistogram();
+        final LatencyHistogram inquiryLatency = new LatencyHistogram();
+
+        CounterWorker(TrainRemainTicketCounter counter, TrainSeatOccupiedBitmap bitmap, int stationnum, int threadnum, int id, int testnum) {
+            this.counter = counter;
+            this.bitmap = bitmap;
+            this.stationnum = stationnum;
+            this.threadnum = threadnum;
+            this.id = id;
+            this.testnum = testnum;
+        }
+
+        @Override
+        public void run() {
+            Random rand = new Random(this.id);
+            int ownSeats = this.bitmap.getSeatAmount() / this.threadnum;
+            ArrayList<int[]> held = new ArrayList<>();
+            for (int i = 0; i < this.testnum; i++) {
+                int sel = rand.nextInt(query);
+                int departure = rand.nextInt(this.stationnum - 1) + 1;
+                int arrival = departure + rand.nextInt(this.stationnum - departure) + 1;
+                if (sel < refund && held.size() > 0) {
+                    int[] range = held.remove(rand.nextInt(held.size()));
+                    long s = System.nanoTime();
+                    this.bitmap.releaseRange(range[0], range[1], range[2]);
+                    this.counter.refundRange(range[1], range[2], this.bitmap, range[0]);
+                    this.refundLatency.record(System.nanoTime() - s);
+                } else if (refund <= sel && sel < buy) {
+                    int seatIndex = this.id + this.threadnum * rand.nextInt(ownSeats);
+                    if (this.bitmap.isRangeOccupied(seatIndex, departure, arrival)) {
+                        continue;
+                    }
+                    long s = System.nanoTime();
+                    this.counter.buyRange(departure, arrival, this.bitmap, seatIndex);
+                    this.bitmap.occupyRange(seatIndex, departure, arrival);
+                    this.buyLatency.record(System.nanoTime() - s);
+                    held.add(new int[]{seatIndex, departure, arrival});
+                } else {
+                    long s = System.nanoTime();
+                    this.counter.inquiryRemainTicket(departure, arrival);
+                    this.inquiryLatency.record(System.nanoTime() - s);
+                }
+            }
+        }
+    }
+
+    static Result runCounter(String counter, int stationnum, int threadnum, int testnum) throws InterruptedException {
+        TrainRemainTicketCounter remainCounter = newCounter(counter, stationnum, COACH_NUM, SEAT_NUM, threadnum);
+        TrainSeatOccupiedBitmap bitmap = new PackedTrainSeatOccupiedBitmap(stationnum, COACH_NUM, SEAT_NUM, threadnum);
+        CounterWorker[] workers = new CounterWorker[threadnum];
+        for (int i = 0; i < threadnum; i++) {
+            workers[i] = new CounterWorker(remainCounter, bitmap, stationnum, threadnum, i, testnum);
+        }
+        long start = System.nanoTime();
+        for (CounterWorker worker : workers) {
+            worker.start();
+        }
+        for (CounterWorker worker : workers) {
+            worker.join();
+        }
+        Result result = new Result();
+        result.elapsedNanos = System.nanoTime() - start;
+        result.ops = (long) threadnum * testnum;
+        for (CounterWorker worker : workers) {
+            result.buyLatency.add(worker.buyLatency);
+            result.refundLatency.add(worker.refundLatency);
+            result.inquiryLatency.add(worker.inquiryLatency);
+        }
+        return result;
+    }
+
+    // 不同计数器布局在 4 到 128 个线程下的对比
+    static void counterLayout(int stationnum, String[] counters) throws InterruptedException {
+        final int[] threadNums = {4, 8, 16, 32, 64, 128};
+        for (int threadnum : threadNums) {
+            for (String counter : counters) {
+                runCounter(counter, stationnum, threadnum, TEST_NUM / 4);
+                Result result = runCounter(counter, stationnum, threadnum, TEST_NUM);
+                System.out.println(String.format("Counter: %s Stations: %d ThreadNum: %d %s",
+                        counter, stationnum, threadnum, result));
+            }
+        }
+    }
+
+    // 先跑一轮预热，再在新建的列车上正式计时
+    static Result measure(String engine, int stationnum, int threadnum) throws InterruptedException {
+        run(newTrains(engine, ROUTE_NUM, COACH_NUM, SEAT_NUM, stationnum, threadnum), stationnum, threadnum, TEST_NUM / 4);
+        return run(newTrains(engine, ROUTE_NUM, COACH_NUM, SEAT_NUM, stationnum, threadnum), stationnum, threadnum, TEST_NUM);
+    }
+
+    // 车站数增长时各实现的开销曲线，超过 64 站只有多字位图的实现能跑
+    static void stationScale(int threadnum, String[] engines) throws InterruptedException {
+        final int[] stationNums = {8, 16, 24, 32, 48, 64, 65, 96, 128};
+        for (int stationnum : stationNums) {
+            for (String engine : engines) {
+                try {
+                    Result result = measure(engine, stationnum, threadnum);
+                    System.out.println(String.format("Stations: %d Engine: %s ThreadNum: %d %s",
+                            stationnum, engine, threadnum, result));
+                } catch (IllegalArgumentException e) {
+                    System.out.println(String.format("Stations: %d Engine: %s unsupported (%s)",
+                            stationnum, engine, e.getMessage()));
+                }
+            }
+        }
+    }
+
+    // 写多负载下 64 到 4096 个线程的吞吐量和查询尾延迟
+    static void inquiryTail(int stationnum, String[] engines) throws InterruptedException {
+        final int[] threadNums = {64, 256, 1024, 4096};
+        for (int threadnum : threadNums) {
+            int testnum = Math.max(TOTAL_OPS / threadnum, 50);
+            for (String engine : engines) {
+                run(newTrains(engine, ROUTE_NUM, COACH_NUM, SEAT_NUM, stationnum, threadnum),
+                        stationnum, threadnum, testnum / 4, WRITE_HEAVY_REFUND, WRITE_HEAVY_BUY, 0);
+                Result result = run(newTrains(engine, ROUTE_NUM, COACH_NUM, SEAT_NUM, stationnum, threadnum),
+                        stationnum, threadnum, testnum, WRITE_HEAVY_REFUND, WRITE_HEAVY_BUY, 0);
+                System.out.println(String.format("Engine: %s Stations: %d ThreadNum: %d ThroughOut(op/s): %d Inquiry(ns) p50/p99/p999/max: %d/%d/%d/%d",
+                        engine, stationnum, threadnum, result.throughput(),
+                        result.inquiryLatency.getValueAtPercentile(50), result.inquiryLatency.getValueAtPercentile(99),
+                        result.inquiryLatency.getValueAtPercentile(99.9), result.inquiryLatency.getMax()));
+            }
+        }
+    }
+
+    // 线路冷热不均时各实现的表现，hotPc 是落在 1 号线路上的请求比例
+    static void routeSkew(int stationnum, String[] engines) throws InterruptedException {
+        final int[] threadNums = {4, 16, 64};
+        final int[] hotPcs = {0, 50, 90};
+        for (int threadnum : threadNums) {
+            for (int hotPc : hotPcs) {
+                for (String engine : engines) {
+                    run(newTrains(engine, ROUTE_NUM, COACH_NUM, SEAT_NUM, stationnum, threadnum),
+                            stationnum, threadnum, TEST_NUM / 4, refund, buy, hotPc);
+                    Result result = run(newTrains(engine, ROUTE_NUM, COACH_NUM, SEAT_NUM, stationnum, threadnum),
+                            stationnum, threadnum, TEST_NUM, refund, buy, hotPc);
+                    System.out.println(String.format("Engine: %s Stations: %d ThreadNum: %d Hot: %d%% %s",
+                            engine, stationnum, threadnum, hotPc, result));
+                }
+            }
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // 单线程反复买票再退票，每十分之一轮报告一次 GC 之后的堆占用，检查售票记录会不会越积越多
+    static void registryChurn(long cycles, String[] engines) {
+        final int stationnum = 16;
+        for (String engine : engines) {
+            TrainTicketingDS train = newTrain(engine, 1, COACH_NUM, SEAT_NUM, stationnum, 1);
+            Random rand = new Random(0);
+            long base = usedHeap();
+            long report = Math.max(cycles / 10, 1);
+            for (long i = 1; i <= cycles; i++) {
+                int departure = rand.nextInt(stationnum - 1) + 1;
+                int arrival = departure + rand.nextInt(stationnum - departure) + 1;
+                Ticket ticket = train.buyTicket(passengers[(int) (i & (passengers.length - 1))], departure, arrival);
+                if (ticket != null) {
+                    train.refundTicket(ticket);
+                }
+                if (i % report == 0) {
+                    System.out.println(String.format("Engine: %s Cycles: %d HeapGrowth(KB): %d",
+                            engine, i, (usedHeap() - base) / 1024));
+                }
+            }
+        }
+    }
+
+    // 团体购票：逐张 buyTicket 与一次 buyTickets 的每组延迟对比，每组买完随即退掉
+    static void groupBooking(int groupSize, String[] engines) throws InterruptedException {
+        final int stationnum = 16;
+        final int[] threadNums = {4, 16, 64};
+        String[] group = java.util.Arrays.copyOf(passengers, groupSize);
+        for (int threadnum : threadNums) {
+            for (String engine : engines) {
+                for (boolean batched : new boolean[]{false, true}) {
+                    TrainTicketingDS train = newTrain(engine, 1, COACH_NUM, SEAT_NUM, stationnum, threadnum);
+                    LatencyHistogram[] latencies = new LatencyHistogram[threadnum];
+                    Thread[] threads = new Thread[threadnum];
+                    for (int t = 0; t < threadnum; t++) {
+                        LatencyHistogram latency = latencies[t] = new LatencyHistogram();
+                        long seed = t;
+                        threads[t] = new Thread(() -> {
+                            Random rand = new Random(seed);
+                            Ticket[] tickets = new Ticket[groupSize];
+                            for (int i = 0; i < TEST_NUM / 4; i++) {
+                                int departure = rand.nextInt(stationnum - 1) + 1;
+                                int arrival = departure + rand.nextInt(stationnum - departure) + 1;
+                                long s = System.nanoTime();
+                                if (batched) {
+                                    tickets = train.buyTickets(group, departure, arrival);
+                                } else {
+                                    for (int k = 0; k < groupSize; k++) {
+                                        tickets[k] = train.buyTicket(group[k], departure, arrival);
+                                    }
+                                }
+                                latency.record(System.nanoTime() - s);
+                                if (tickets == null) {
+                                    tickets = new Ticket[groupSize];
+                                    continue;
+                                }
+                                for (Ticket ticket : tickets) {
+                                    if (ticket != null) {
+                                        train.refundTicket(ticket);
+                                    }
+                                }
+                            }
+                        });
+                    }
+                    long start = System.nanoTime();
+                    for (Thread thread : threads) {
+                        thread.start();
+                    }
+                    for (Thread thread : threads) {
+                        thread.join();
+                    }
+                    long elapsed = System.nanoTime() - start;
+                    LatencyHistogram latency = new LatencyHistogram();
+                    for (LatencyHistogram histogram : latencies) {
+                        latency.add(histogram);
+                    }
+                    System.out.println(String.format("Engine: %s Group: %d ThreadNum: %d %s Groups/s: %d Group(ns) avg/p50/p99: %d/%d/%d",
+                            engine, groupSize, threadnum, batched ? "buyTickets" : "buyTicket x" + groupSize,
+                            (long) threadnum * (TEST_NUM / 4) * 1_000_000_000L / elapsed,
+                            latency.getMean(), latency.getValueAtPercentile(50), latency.getValueAtPercentile(99)));
+                }
+            }
+        }
+    }
+
+    // 联程购票：每个线程反复买随机线路上的多段行程，买到的一半留着、一半退掉，车票逐渐售罄，
+    // 报告行程的成功率和延迟；实现类名交给 TrainTicketingDSFactory 的 engine 配置
+    static void itinerary(int legs, String[] engines) throws InterruptedException {
+        final int stationnum = 16;
+        final int[] threadNums = {16, 128};
+        for (int threadnum : threadNums) {
+            for (String engine : engines) {
+                java.util.Properties config = new java.util.Properties();
+                config.setProperty(TrainTicketingDSFactory.PREFIX + "engine", engine);
+                TicketingDS tds = new TicketingDS(ROUTE_NUM, COACH_NUM, SEAT_NUM, stationnum, threadnum, new TrainTicketingDSFactory(config));
+                LatencyHistogram[] latencies = new LatencyHistogram[threadnum];
+                long[] sold = new long[threadnum];
+                Thread[] threads = new Thread[threadnum];
+                int testnum = Math.max(TOTAL_OPS / threadnum, 50);
+                for (int t = 0; t < threadnum; t++) {
+                    LatencyHistogram latency = latencies[t] = new LatencyHistogram();
+                    int id = t;
+                    threads[t] = new Thread(() -> {
+                        Random rand = new Random(id);
+                        int[] routes = new int[legs], departures = new int[legs], arrivals = new int[legs];
+                        for (int i = 0; i < testnum; i++) {
+                            for (int k = 0; k < legs; k++) {
+                                routes[k] = rand.nextInt(ROUTE_NUM) + 1;
+                                departures[k] = rand.nextInt(stationnum - 1) + 1;
+                                arrivals[k] = departures[k] + rand.nextInt(stationnum - departures[k]) + 1;
+                            }
+                            long s = System.nanoTime();
+                            Ticket[] tickets = tds.buyItinerary(passengers[rand.nextInt(passengers.length)], routes, departures, arrivals);
+                            latency.record(System.nanoTime() - s);
+                            if (tickets == null) {
+                                continue;
+                            }
+                            sold[id]++;
+                            if (rand.nextBoolean()) {
+                                for (Ticket ticket : tickets) {
+                                    tds.refundTicket(ticket);
+                                }
+                            }
+                        }
+                    });
+                }
+                long start = System.nanoTime();
+                for (Thread thread : threads) {
+                    thread.start();
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                long elapsed = System.nanoTime() - start;
+                LatencyHistogram latency = new LatencyHistogram();
+                long success = 0;
+                for (int t = 0; t < threadnum; t++) {
+                    latency.add(latencies[t]);
+                    success += sold[t];
+                }
+                long total = (long) threadnum * testnum;
+                System.out.println(String.format("Engine: %s Legs: %d ThreadNum: %d Itineraries/s: %d Sold: %d%% Itinerary(ns) avg/p50/p99/p999: %d/%d/%d/%d",
+                        engine, legs, threadnum, total * 1_000_000_000L / elapsed, success * 100 / total,
+                        latency.getMean(), latency.getValueAtPercentile(50), latency.getValueAtPercentile(99),
+                        latency.getValueAtPercentile(99.9)));
+            }
+        }
+    }
+
+    // 整张余票表：逐格 inquiry 与一次 inquiryAll 的每表延迟对比，一半线程同时在买票退票
+    static void inquiryMatrix(int stationnum, String[] engines) throws InterruptedException {
+        final int[] threadNums = {4, 16, 64};
+        for (int threadnum : threadNums) {
+            for (String engine : engines) {
+                for (boolean batched : new boolean[]{false, true}) {
+                    TrainTicketingDS train = newTrain(engine, 1, COACH_NUM, SEAT_NUM, stationnum, threadnum);
+                    LatencyHistogram[] latencies = new LatencyHistogram[threadnum];
+                    Thread[] threads = new Thread[threadnum];
+                    int testnum = Math.max(TOTAL_OPS / 100 / threadnum, 20);
+                    for (int t = 0; t < threadnum; t++) {
+                        LatencyHistogram latency = latencies[t] = new LatencyHistogram();
+                        boolean reader = (t & 1) == 0;
+                        long seed = t;
+                        threads[t] = new Thread(() -> {
+                            Random rand = new Random(seed);
+                            ArrayList<Ticket> soldTicket = new ArrayList<>();
+                            for (int i = 0; i < testnum; i++) {
+                                if (reader) {
+                                    long s = System.nanoTime();
+                                    if (batched) {
+                                        train.inquiryAll();
+                                    } else {
+                                        for (int departure = 1; departure < stationnum; departure++) {
+                                            for (int arrival = departure + 1; arrival <= stationnum; arrival++) {
+                                                train.inquiry(departure, arrival);
+                                            }
+                                        }
+                                    }
+                                    latency.record(System.nanoTime() - s);
+                                    continue;
+                                }
+                                for (int k = 0; k < 100; k++) {
+                                    if (soldTicket.size() > 0 && rand.nextBoolean()) {
+                                        train.refundTicket(soldTicket.remove(rand.nextInt(soldTicket.size())));
+                                        continue;
+                                    }
+                                    int departure = rand.nextInt(stationnum - 1) + 1;
+                                    int arrival = departure + rand.nextInt(stationnum - departure) + 1;
+                                    Ticket ticket = train.buyTicket(passengers[rand.nextInt(passengers.length)], departure, arrival);
+                                    if (ticket != null) {
+                                        soldTicket.add(ticket);
+                                    }
+                                }
+                            }
+                        });
+                    }
+                    for (Thread thread : threads) {
+                        thread.start();
+                    }
+                    for (Thread thread : threads) {
+                        thread.join();
+                    }
+                    LatencyHistogram latency = new LatencyHistogram();
+                    for (LatencyHistogram histogram : latencies) {
+                        latency.add(histogram);
+                    }
+                    System.out.println(String.format("Engine: %s Stations: %d ThreadNum: %d %s Matrix(ns) avg/p50/p99: %d/%d/%d",
+                            engine, stationnum, threadnum, batched ? "inquiryAll" : "inquiry x" + stationnum * (stationnum - 1) / 2,
+                            latency.getMean(), latency.getValueAtPercentile(50), latency.getValueAtPercentile(99)));
+                }
+            }
+        }
+    }
+
+    // 查询缓存关闭和打开时的吞吐量与查询延迟，以及缓存命中率；查询占比越高、写入越少，命中率越高
+    static void inquiryCache(int stationnum, String[] engines) throws InterruptedException {
+        final int[] threadNums = {4, 16, 64};
+        final int[][] mixes = {{10, 30}, {2, 5}};
+        for (int threadnum : threadNums) {
+            for (int[] mix : mixes) {
+                for (String engine : engines) {
+                    for (String enabled : new String[]{"false", "true"}) {
+                        System.setProperty("ticketing.inquiryCache", enabled);
+                        run(newTrains(engine, ROUTE_NUM, COACH_NUM, SEAT_NUM, stationnum, threadnum),
+                                stationnum, threadnum, TEST_NUM / 4, mix[0], mix[1], 0);
+                        TrainTicketingDS[] trains = newTrains(engine, ROUTE_NUM, COACH_NUM, SEAT_NUM, stationnum, threadnum);
+                        Result result = run(trains, stationnum, threadnum, TEST_NUM, mix[0], mix[1], 0);
+                        // 缓存只记未命中，命中数 = 查询总数 - 未命中数；每次查询都记了延迟，直方图的总数就是查询总数
+                        boolean cached = false;
+                        long misses = 0;
+                        for (TrainTicketingDS train : trains) {
+                            cached |= train.remainCounter.hasInquiryCache();
+                            misses += train.remainCounter.getInquiryCacheMisses();
+                        }
+                        long inquiries = result.inquiryLatency.getTotalCount();
+                        long hits = cached ? inquiries - misses : 0;
+                        System.out.println(String.format("Engine: %s ThreadNum: %d Inquiry: %d%% Cache: %s HitRate: %d%% ThroughOut(op/s): %d Inquiry(ns) p50/p99: %d/%d",
+                                engine, threadnum, query - mix[1], enabled, inquiries == 0 ? 0 : hits * 100 / inquiries,
+                                result.throughput(), result.inquiryLatency.getValueAtPercentile(50),
+                                result.inquiryLatency.getValueAtPercentile(99)));
+                    }
+                }
+            }
+        }
+        System.clearProperty("ticketing.inquiryCache");
+    }
+
+    // 找座提示对比：组装实现（transposed 位图、freerun 计数器）只换提示，70% 买票、30% 退票直到接近售罄，
+    // 报告买票成功率、结束时的座位区段利用率（碎片越少越高）和买票延迟
+    static void seatHint(int stationnum, String[] hints) throws InterruptedException {
+        final int[] threadNums = {4, 16, 64};
+        for (int threadnum : threadNums) {
+            for (String hint : hints) {
+                TrainTicketingDS train = TrainTicketingDSFactory.newComposed(1, COACH_NUM, SEAT_NUM, stationnum, threadnum,
+                        "transposed", "freerun", hint);
+                int testnum = Math.max(TOTAL_OPS / threadnum, 50);
+                LatencyHistogram[] latencies = new LatencyHistogram[threadnum];
+                long[] bought = new long[threadnum], failed = new long[threadnum], segments = new long[threadnum];
+                Thread[] threads = new Thread[threadnum];
+                for (int t = 0; t < threadnum; t++) {
+                    LatencyHistogram latency = latencies[t] = new LatencyHistogram();
+                    int id = t;
+                    threads[t] = new Thread(() -> {
+                        Random rand = new Random(id);
+                        ArrayList<Ticket> soldTicket = new ArrayList<>();
+                        for (int i = 0; i < testnum; i++) {
+                            if (rand.nextInt(query) < 30 && soldTicket.size() > 0) {
+                                train.refundTicket(soldTicket.remove(rand.nextInt(soldTicket.size())));
+                                continue;
+                            }
+                            int departure = rand.nextInt(stationnum - 1) + 1;
+                            int arrival = departure + rand.nextInt(stationnum - departure) + 1;
+                            long s = System.nanoTime();
+                            Ticket ticket = train.buyTicket(passengers[rand.nextInt(passengers.length)], departure, arrival);
+                            latency.record(System.nanoTime() - s);
+                            if (ticket == null) {
+                                failed[id]++;
+                            } else {
+                                bought[id]++;
+                                soldTicket.add(ticket);
+                            }
+                        }
+                        for (Ticket ticket : soldTicket) {
+                            segments[id] += ticket.arrival - ticket.departure;
+                        }
+                    });
+                }
+                for (Thread thread : threads) {
+                    thread.start();
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                LatencyHistogram latency = new LatencyHistogram();
+                long success = 0, failure = 0, used = 0;
+                for (int t = 0; t < threadnum; t++) {
+                    latency.add(latencies[t]);
+                    success += bought[t];
+                    failure += failed[t];
+                    used += segments[t];
+                }
+                System.out.println(String.format("Hint: %s Stations: %d ThreadNum: %d BuySuccess: %.1f%% Utilization: %.1f%% Buy(ns) avg/p50/p99: %d/%d/%d",
+                        hint, stationnum, threadnum, success * 100.0 / (success + failure),
+                        used * 100.0 / ((long) COACH_NUM * SEAT_NUM * (stationnum - 1)),
+                        latency.getMean(), latency.getValueAtPercentile(50), latency.getValueAtPercentile(99)));
+            }
+        }
+    }
+
+    // 售票日志的代价：同样的写多负载（30% 退票、30% 买票、40% 查询）经 TicketingDS 执行，
+    // 依次不开日志、每条记录都刷盘（0）以及几个组提交间隔（毫秒），报告吞吐、买票/退票延迟，
+    // 以及关闭后重新打开时按日志恢复所用的时间
+    static void journalCost(int stationnum, String[] intervals) throws Exception {
+        final int[] threadNums = {4, 16, 64};
+        final int totalOps = 100000;
+        for (int threadnum : threadNums) {
+            for (String interval : intervals) {
+                java.nio.file.Path file = java.nio.file.Files.createTempFile("ticketing-journal", ".log");
+                java.util.Properties config = new java.util.Properties();
+                if (!interval.equals("off")) {
+                    config.setProperty(TrainTicketingDSFactory.PREFIX + "journal", file.toString());
+                    config.setProperty(TrainTicketingDSFactory.PREFIX + "journal.commitMillis", interval);
+                }
+                TicketingDS tds = new TicketingDS(ROUTE_NUM, COACH_NUM, SEAT_NUM, stationnum, threadnum, new TrainTicketingDSFactory(config));
+                int testnum = Math.max(totalOps / threadnum, 50);
+                LatencyHistogram[] buyLatencies = new LatencyHistogram[threadnum];
+                LatencyHistogram[] refundLatencies = new LatencyHistogram[threadnum];
+                Thread[] threads = new Thread[threadnum];
+                for (int t = 0; t < threadnum; t++) {
+                    LatencyHistogram buyLatency = buyLatencies[t] = new LatencyHistogram();
+                    LatencyHistogram refundLatency = refundLatencies[t] = new LatencyHistogram();
+                    int id = t;
+                    threads[t] = new Thread(() -> {
+                        Random rand = new Random(id);
+                        ArrayList<Ticket> soldTicket = new ArrayList<>();
+                        for (int i = 0; i < testnum; i++) {
+                            int sel = rand.nextInt(query);
+                            int route = rand.nextInt(ROUTE_NUM) + 1;
+                            int departure = rand.nextInt(stationnum - 1) + 1;
+                            int arrival = departure + rand.nextInt(stationnum - departure) + 1;
+                            if (sel < WRITE_HEAVY_REFUND && soldTicket.size() > 0) {
+                                Ticket ticket = soldTicket.remove(rand.nextInt(soldTicket.size()));
+                                long s = System.nanoTime();
+                                tds.refundTicket(ticket);
+                                refundLatency.record(System.nanoTime() - s);
+                            } else if (sel < WRITE_HEAVY_BUY) {
+                                long s = System.nanoTime();
+                                Ticket ticket = tds.buyTicket(passengers[rand.nextInt(passengers.length)], route, departure, arrival);
+                                buyLatency.record(System.nanoTime() - s);
+                                if (ticket != null) {
+                                    soldTicket.add(ticket);
+                                }
+                            } else {
+                                tds.inquiry(route, departure, arrival);
+                            }
+                        }
+                    });
+                }
+                long start = System.nanoTime();
+                for (Thread thread : threads) {
+                    thread.start();
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                long elapsed = System.nanoTime() - start;
+                tds.close();
+                LatencyHistogram buyLatency = new LatencyHistogram();
+                LatencyHistogram refundLatency = new LatencyHistogram();
+                for (int t = 0; t < threadnum; t++) {
+                    buyLatency.add(buyLatencies[t]);
+                    refundLatency.add(refundLatencies[t]);
+                }
+                long recoverMillis = 0;
+                if (!interval.equals("off")) {
+                    long s = System.nanoTime();
+                    new TicketingDS(ROUTE_NUM, COACH_NUM, SEAT_NUM, stationnum, threadnum, new TrainTicketingDSFactory(config)).close();
+                    recoverMillis = (System.nanoTime() - s) / 1_000_000;
+                }
+                java.nio.file.Files.delete(file);
+                long total = (long) threadnum * testnum;
+                System.out.println(String.format("Journal: %s ThreadNum: %d ThroughOut(op/s): %d Buy(ns) p50/p99/p999: %d/%d/%d Refund(ns) p50/p99: %d/%d Recover(ms): %d",
+                        interval, threadnum, total * 1_000_000_000L / elapsed,
+                        buyLatency.getValueAtPercentile(50), buyLatency.getValueAtPercentile(99), buyLatency.getValueAtPercentile(99.9),
+                        refundLatency.getValueAtPercentile(50), refundLatency.getValueAtPercentile(99), recoverMillis));
+            }
+        }
+    }
+
+    // 快照：100 条线路、每条 10 节车厢 x 100 座，先随机卖到接近售罄，报告静止时和 4 个线程边买边退时写快照的耗时、
+    // 写快照期间买票线程的吞吐（与不写快照时对比）、文件大小，新建实例加载快照的耗时，以及配置 ticketing.snapshot 重启的耗时
+    static void snapshotCost(int stationnum, String[] engines) throws Exception {
+        final int routenum = 100;
+        final int buyers = 4;
+        final long windowNanos = 2_000_000_000L;
+        for (String engine : engines) {
+            java.util.Properties config = new java.util.Properties();
+            config.setProperty(TrainTicketingDSFactory.PREFIX + "engine", engine);
+            TicketingDS tds = new TicketingDS(routenum, COACH_NUM, SEAT_NUM, stationnum, buyers, new TrainTicketingDSFactory(config));
+            Random rand = new Random(0);
+            long tickets = 0;
+            for (int i = 0; i < routenum * COACH_NUM * SEAT_NUM * 4; i++) {
+                int departure = rand.nextInt(stationnum - 1) + 1;
+                int arrival = departure + rand.nextInt(stationnum - departure) + 1;
+                if (tds.buyTicket(passengers[rand.nextInt(passengers.length)], rand.nextInt(routenum) + 1, departure, arrival) != null) {
+                    tickets++;
+                }
+            }
+            java.nio.file.Path file = java.nio.file.Files.createTempFile("ticketing-snapshot", ".bin");
+            for (int i = 0; i < 3; i++) {
+                tds.saveSnapshot(file);
+            }
+            long s = System.nanoTime();
+            tds.saveSnapshot(file);
+            long quietMillis = (System.nanoTime() - s) / 1_000_000;
+            long size = java.nio.file.Files.size(file);
+
+            long[] baseline = new long[1];
+            long[] during = new long[1];
+            long[] snapshots = new long[1];
+            long busyMillis = 0;
+            for (int round = 0; round < 2; round++) {
+                boolean snapshotting = round == 1;
+                java.util.concurrent.atomic.AtomicBoolean stop = new java.util.concurrent.atomic.AtomicBoolean();
+                java.util.concurrent.atomic.LongAdder ops = new java.util.concurrent.atomic.LongAdder();
+                Thread[] threads = new Thread[buyers];
+                for (int t = 0; t < buyers; t++) {
+                    int id = t;
+                    threads[t] = new Thread(() -> {
+                        Random r = new Random(id);
+                        ArrayList<Ticket> mine = new ArrayList<>();
+                        while (!stop.get()) {
+                            if (mine.size() > 64 || (r.nextBoolean() && !mine.isEmpty())) {
+                                tds.refundTicket(mine.remove(r.nextInt(mine.size())));
+                            } else {
+                                int departure = r.nextInt(stationnum - 1) + 1;
+                                int arrival = departure + r.nextInt(stationnum - departure) + 1;
+                                Ticket ticket = tds.buyTicket(passengers[r.nextInt(passengers.length)], r.nextInt(routenum) + 1, departure, arrival);
+                                if (ticket != null) {
+                                    mine.add(ticket);
+                                }
+                            }
+                            ops.increment();
+                        }
+                        for (Ticket ticket : mine) {
+                            tds.refundTicket(ticket);
+                        }
+                    });
+                    threads[t].start();
+                }
+                long start = System.nanoTime();
+                while (System.nanoTime() - start < windowNanos) {
+                    if (snapshotting) {
+                        long t0 = System.nanoTime();
+                        tds.saveSnapshot(file);
+                        busyMillis += (System.nanoTime() - t0) / 1_000_000;
+                        snapshots[0]++;
+                    } else {
+                        Thread.sleep(10);
+                    }
+                }
+                stop.set(true);
+                long elapsed = System.nanoTime() - start;
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                (snapshotting ? during : baseline)[0] = ops.sum() * 1_000_000_000L / elapsed;
+            }
+
+            long loadMillis = 0;
+            for (int i = 0; i < 3; i++) {
+                TicketingDS loaded = new TicketingDS(routenum, COACH_NUM, SEAT_NUM, stationnum, buyers, new TrainTicketingDSFactory(config));
+                s = System.nanoTime();
+                loaded.loadSnapshot(file);
+                loadMillis = (System.nanoTime() - s) / 1_000_000;
+            }
+            // 重启走的是构造函数：配置 ticketing.snapshot，文件存在就在构造时加载，计时包括新建各列车
+            java.util.Properties restartConfig = new java.util.Properties();
+            restartConfig.putAll(config);
+            restartConfig.setProperty(TrainTicketingDSFactory.PREFIX + "snapshot", file.toString());
+            long restartMillis = 0;
+            for (int i = 0; i < 3; i++) {
+                s = System.nanoTime();
+                TicketingDS restarted = new TicketingDS(routenum, COACH_NUM, SEAT_NUM, stationnum, buyers, new TrainTicketingDSFactory(restartConfig));
+                restartMillis = (System.nanoTime() - s) / 1_000_000;
+                restarted.close();
+            }
+            java.nio.file.Files.delete(file);
+            System.out.println(String.format("Engine: %s Stations: %d Seats: %d Tickets: %d Size(KB): %d Save(ms) quiet/under-load: %d/%d BuyRefund(op/s) without/with snapshots: %d/%d Load(ms): %d Restart(ms): %d",
+                    engine, stationnum, routenum * COACH_NUM * SEAT_NUM, tickets, size / 1024, quietMillis,
+                    snapshots[0] == 0 ? 0 : busyMillis / snapshots[0], baseline[0], during[0], loadMillis, restartMillis));
+        }
+    }
+
+    // 单线程在 TicketingDS 上反复买票、退票，按线程分配计数报告每次操作分配的字节数：
+    // 普通接口每张票新建 Ticket，免分配接口复用一池 Ticket、乘客用登记的编号。先整轮预热一遍让 JIT 编译好热路径
+    static void allocationRate(long ops, String[] engines) {
+        final int stationnum = 16;
+        final int poolSize = 256;
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long self = Thread.currentThread().getId();
+        for (String engine : engines) {
+            for (boolean pooled : new boolean[]{false, true}) {
+                java.util.Properties config = new java.util.Properties();
+                config.setProperty(TrainTicketingDSFactory.PREFIX + "engine", engine);
+                TicketingDS tds = new TicketingDS(ROUTE_NUM, COACH_NUM, SEAT_NUM, stationnum, 1, new TrainTicketingDSFactory(config));
+                int[] ids = new int[passengers.length];
+                for (int i = 0; i < passengers.length; i++) {
+                    ids[i] = tds.registerPassenger(passengers[i]);
+                }
+                Ticket[] pool = new Ticket[poolSize];
+                boolean[] held = new boolean[poolSize];
+                for (int i = 0; i < poolSize; i++) {
+                    pool[i] = new Ticket();
+                }
+                Random rand = new Random(0);
+                long bytes = 0, elapsed = 0;
+                for (int round = 0; round < 2; round++) {
+                    long allocated = threadBean.getThreadAllocatedBytes(self);
+                    long start = System.nanoTime();
+                    for (long i = 0; i < ops; i++) {
+                        int k = rand.nextInt(poolSize);
+                        if (held[k]) {
+                            held[k] = !tds.refundTicket(pool[k]);
+                            continue;
+                        }
+                        int route = rand.nextInt(ROUTE_NUM) + 1;
+                        int departure = rand.nextInt(stationnum - 1) + 1;
+                        int arrival = departure + rand.nextInt(stationnum - departure) + 1;
+                        int p = rand.nextInt(passengers.length);
+                        if (pooled) {
+                            held[k] = tds.buyTicket(pool[k], ids[p], route, departure, arrival);
+                        } else {
+                            Ticket ticket = tds.buyTicket(passengers[p], route, departure, arrival);
+                            if (ticket != null) {
+                                pool[k] = ticket;
+                                held[k] = true;
+                            }
+                        }
+                    }
+                    elapsed = System.nanoTime() - start;
+                    bytes = threadBean.getThreadAllocatedBytes(self) - allocated;
+                }
+                System.out.println(String.format("Engine: %s Pooled: %s Ops: %d Alloc(B/op): %.2f Op(ns): %d",
+                        engine, pooled, ops, (double) bytes / ops, elapsed / ops));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "stations";
+        String[] names = args.length > 2 ? java.util.Arrays.copyOfRange(args, 2, args.length) : null;
+        switch (mode) {
+            case "stations":
+                stationScale(args.length > 1 ? Integer.parseInt(args[1]) : 8, names != null ? names : new String[]{
+                        "AdptGraFCStampedTrainTicketingDS",
+                        "PackedFCStampedTrainTicketingDS",
+                        "TransposedFCStampedTrainTicketingDS"});
+                break;
+            case "counters":
+                counterLayout(args.length > 1 ? Integer.parseInt(args[1]) : 16, names != null ? names : new String[]{
+                        "SeatLevelFCStampedRemainTicketCounter",
+                        "SeatLevelCompactFCStampedRemainTicketCounter"});
+                break;
+            case "inquiry":
+                inquiryTail(args.length > 1 ? Integer.parseInt(args[1]) : 16, names != null ? names : new String[]{
+                        "TransposedFreeRunTrainTicketingDS",
+                        "TransposedEpochTrainTicketingDS"});
+                break;
+            case "skew":
+                routeSkew(args.length > 1 ? Integer.parseInt(args[1]) : 16, names != null ? names : new String[]{
+                        "AdptGraFCStampedTrainTicketingDS",
+                        "FlatCombiningTrainTicketingDS"});
+                break;
+            case "registry":
+                registryChurn(args.length > 1 ? Long.parseLong(args[1]) : 10_000_000L, names != null ? names : new String[]{
+                        "AdptGraFCStampedTrainTicketingDS",
+                        "TransposedFreeRunTrainTicketingDS"});
+                break;
+            case "group":
+                groupBooking(args.length > 1 ? Integer.parseInt(args[1]) : 4, names != null ? names : new String[]{
+                        "AdptGraFCStampedTrainTicketingDS",
+                        "TransposedFreeRunTrainTicketingDS",
+                        "FlatCombiningTrainTicketingDS"});
+                break;
+            case "itinerary":
+                itinerary(args.length > 1 ? Integer.parseInt(args[1]) : 2, names != null ? names : new String[]{
+                        "AdptGraFCStampedTrainTicketingDS",
+                        "TransposedEpochTrainTicketingDS",
+                        "adaptive"});
+                break;
+            case "matrix":
+                inquiryMatrix(args.length > 1 ? Integer.parseInt(args[1]) : 16, names != null ? names : new String[]{
+                        "AdptGraFCStampedTrainTicketingDS",
+                        "TransposedFreeRunTrainTicketingDS",
+                        "TransposedEpochTrainTicketingDS",
+                        "FlatCombiningTrainTicketingDS"});
+                break;
+            case "cache":
+                inquiryCache(args.length > 1 ? Integer.parseInt(args[1]) : 16, names != null ? names : new String[]{
+                        "AdptGraFCStampedTrainTicketingDS",
+                        "TransposedFreeRunTrainTicketingDS",
+                        "TransposedEpochTrainTicketingDS"});
+                break;
+            case "hint":
+                seatHint(args.length > 1 ? Integer.parseInt(args[1]) : 16, names != null ? names : new String[]{
+                        "coach", "random", "bestfit"});
+                break;
+            case "journal":
+                journalCost(args.length > 1 ? Integer.parseInt(args[1]) : 16, names != null ? names : new String[]{
+                        "off", "0", "1", "10", "100"});
+                break;
+            case "snapshot":
+                snapshotCost(args.length > 1 ? Integer.parseInt(args[1]) : 10, names != null ? names : new String[]{
+                        "AdptGraFCStampedTrainTicketingDS",
+                        "composed",
+                        "adaptive"});
+                break;
+            case "alloc":
+                allocationRate(args.length > 1 ? Long.parseLong(args[1]) : 2_000_000L, names != null ? names : new String[]{
+                        "AdptGraFCStampedTrainTicketingDS",
+                        "TransposedFCStampedTrainTicketingDS",
+                        "composed",
+                        "flatcombining"});
+                break;
+            case "suite":
+                BenchmarkSuite.sweep(args.length > 1 ? args[1] : null, args.length > 2 ? args[2] : null);
+                break;
+            default:
+                System.out.println("Unknown mode " + mode);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package ticketingsystem;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 全参数扫描的性能基准，结果写成 CSV，可以和之前保存的基线比较，吞吐量下降超过阈值就以非零状态退出
+ * 仓库没有构建文件也没有第三方依赖，所以没有引入 JMH，而是沿用 Benchmark 的驱动和 LatencyHistogram，
+ * 按 JMH 的做法每个组合先预热若干轮、再测量若干轮，每一轮都在新建的列车上跑，吞吐量报告均值和标准差
+ *
+ * 扫描的维度用系统属性指定，多个值用逗号分隔：
+ *   bench.engines    实现类名、工厂的组装名（composed 等，见 TrainTicketingDSFactory），或 "实现类名+计数器类名"，
+ *                    默认是所有实现和计数器组合
+ *   bench.threads    线程数，默认 4,16,64
+ *   bench.stations   车站数，默认 8,16,64
+ *   bench.mixes      退票:买票:查询 的百分比，默认 10:20:70,30:30:40
+ *   bench.ops        每个线程每轮的操作数，默认 20000
+ *   bench.warmup     预热轮数，默认 1
+ *   bench.iterations 测量轮数，默认 3
+ *   bench.tolerance  吞吐量允许下降的百分比，默认 10
+ */
+class BenchmarkSuite {
+    private final static int ROUTE_NUM = 5;
+    private final static int COACH_NUM = 10;
+    private final static int SEAT_NUM = 100;
+
+    private final static String DEFAULT_ENGINES = String.join(",",
+            "AdptGraAtomicTrainTicketingDS",
+            "AdptGraLongAdderTrainTicketingDS",
+            "AdptGraReadWriteTrainTicketingDS",
+            "AdptGraFCTrainTicketingDS",
+            "AdptGraFCStampedTrainTicketingDS",
+            "CASFCStampedTrainTicketingDS",
+            "PackedFCStampedTrainTicketingDS",
+            "TransposedFCStampedTrainTicketingDS",
+            "TransposedFCStampedTrainTicketingDS+SeatLevelAtomicRemainTicketCounter",
+            "TransposedFCStampedTrainTicketingDS+SeatLevelLongAdderRemainTicketCounter",
+            "TransposedFCStampedTrainTicketingDS+SeatLevelCompactFCStampedRemainTicketCounter",
+            "TransposedFreeRunTrainTicketingDS",
+            "TransposedEpochTrainTicketingDS",
+            "FlatCombiningTrainTicketingDS",
+            "composed",
+            "adaptive",
+            "partitioned");
+
+    private final static String HEADER = "engine,stations,threads,mix,ops_per_sec,ops_stddev,"
+            + "buy_p50,buy_p99,buy_p999,refund_p50,refund_p99,refund_p999,inquiry_p50,inquiry_p99,inquiry_p999";
+
+    private static String[] stringList(String property, String defaults) {
+        return System.getProperty(property, defaults).split(",");
+    }
+
+    private static int[] intList(String property, String defaults) {
+        String[] values = stringList(property, defaults);
+        int[] result = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = Integer.parseInt(values[i].trim());
+        }
+        return result;
+    }
+
+    private static String percentiles(LatencyHistogram histogram) {
+        return histogram.getValueAtPercentile(50) + "," + histogram.getValueAtPercentile(99) + ","
+                + histogram.getValueAtPercentile(99.9);
+    }
+
+    // 跑一个组合，返回 CSV 的一行；实现不支持这个车站数时抛出 IllegalArgumentException
+    static String measure(String engine, int stationnum, int threadnum, String mix, int testnum,
+                          int warmup, int iterations) throws InterruptedException {
+        String[] pcs = mix.split(":");
+        int refundPc = Integer.parseInt(pcs[0]);
+        int buyPc = refundPc + Integer.parseInt(pcs[1]);
+        Benchmark.Result total = new Benchmark.Result();
+        double[] throughputs = new double[iterations];
+        for (int i = 0; i < warmup + iterations; i++) {
+            TrainTicketingDS[] trains = Benchmark.newTrains(engine, ROUTE_NUM, COACH_NUM, SEAT_NUM, stationnum, threadnum);
+            Benchmark.Result result = Benchmark.run(trains, stationnum, threadnum, testnum, refundPc, buyPc, 0);
+            if (i < warmup) {
+                continue;
+            }
+            throughputs[i - warmup] = result.throughput();
+            total.buyLatency.add(result.buyLatency);
+            total.refundLatency.add(result.refundLatency);
+            total.inquiryLatency.add(result.inquiryLatency);
+        }
+        double mean = 0, variance = 0;
+        for (double throughput : throughputs) {
+            mean += throughput / iterations;
+        }
+        for (double throughput : throughputs) {
+            variance += (throughput - mean) * (throughput - mean) / iterations;
+        }
+        return String.format("%s,%d,%d,%s,%d,%d,%s,%s,%s", engine, stationnum, threadnum, mix,
+                (long) mean, (long) Math.sqrt(variance),
+                percentiles(total.buyLatency), percentiles(total.refundLatency), percentiles(total.inquiryLatency));
+    }
+
+    // 前四列是组合的键，第五列是吞吐量
+    private static String keyOf(String[] columns) {
+        return columns[0] + "," + columns[1] + "," + columns[2] + "," + columns[3];
+    }
+
+    private static Map<String, Long> loadBaseline(String baselineFile) throws IOException {
+        Map<String, Long> baseline = new HashMap<>();
+        for (String line : Files.readAllLines(Paths.get(baselineFile), StandardCharsets.UTF_8)) {
+            if (line.isEmpty() || line.startsWith("engine,")) {
+                continue;
+            }
+            String[] columns = line.split(",");
+            baseline.put(keyOf(columns), Long.parseLong(columns[4]));
+        }
+        return baseline;
+    }
+
+    static void sweep(String outputFile, String baselineFile) throws IOException, InterruptedException {
+        String[] engines = stringList("bench.engines", DEFAULT_ENGINES);
+        int[] threadNums = intList("bench.threads", "4,16,64");
+        int[] stationNums = intList("bench.stations", "8,16,64");
+        String[] mixes = stringList("bench.mixes", "10:20:70,30:30:40");
+        int testnum = Integer.getInteger("bench.ops", 20000);
+        int warmup = Integer.getInteger("bench.warmup", 1);
+        int iterations = Integer.getInteger("bench.iterations", 3);
+        int tolerance = Integer.getInteger("bench.tolerance", 10);
+        Map<String, Long> baseline = baselineFile == null ? null : loadBaseline(baselineFile);
+
+        List<String> rows = new ArrayList<>();
+        List<String> regressions = new ArrayList<>();
+        System.out.println(HEADER);
+        for (int stationnum : stationNums) {
+            for (int threadnum : threadNums) {
+                for (String mix : mixes) {
+                    for (String engine : engines) {
+                        String row;
+                        try {
+                            row = measure(engine.trim(), stationnum, threadnum, mix.trim(), testnum, warmup, iterations);
+                        } catch (IllegalArgumentException e) {
+                            System.out.println(String.format("# %s,%d skipped: %s", engine, stationnum, e.getMessage()));
+                            continue;
+                        }
+                        System.out.println(row);
+                        rows.add(row);
+                        String[] columns = row.split(",");
+                        Long expected = baseline == null ? null : baseline.get(keyOf(columns));
+                        long actual = Long.parseLong(columns[4]);
+                        if (expected != null && actual * 100 < expected * (100 - tolerance)) {
+                            regressions.add(String.format("%s: %d -> %d op/s (%.1f%%)", keyOf(columns), expected, actual,
+                                    (actual - expected) * 100.0 / expected));
+                        }
+                    }
+                }
+            }
+        }
+        if (outputFile != null) {
+            try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(outputFile), StandardCharsets.UTF_8))) {
+                writer.println(HEADER);
+                for (String row : rows) {
+                    writer.println(row);
+                }
+            }
+        }
+        if (!regressions.isEmpty()) {
+            System.out.println("Throughput regressions beyond " + tolerance + "%:");
+            for (String regression : regressions) {
+                System.out.println("  " + regression);
+            }
+            System.exit(1);
+        }
+    }
+}
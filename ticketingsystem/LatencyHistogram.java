@@ -0,0 +1,165 @@
+package ticketingsystem;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 对数-线性分桶的延迟直方图（思路同 HdrHistogram）
+ * 16 以下的值精确计数，之后每个 2 的幂区间再等分 16 个子桶，相对误差不超过 1/16
+ * 只允许一个线程写入，多个线程的直方图在统计时用 add 合并
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long totalCount;
+    private long sum;
+    private long max;
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(value, 0);
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // 桶内的最大值，报告分位数时偏保守
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exp = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exp - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public void record(long value) {
+        this.counts[bucketIndex(value)]++;
+        this.totalCount++;
+        this.sum += value;
+        if (value > this.max) {
+            this.max = value;
+        }
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.counts[i] += other.counts[i];
+        }
+        this.totalCount += other.totalCount;
+        this.sum += other.sum;
+        this.max = Math.max(this.max, other.max);
+    }
+
+    // 合并按同样方式分桶的原始计数，counts[i] 是第 i 个桶，桶数可以比本直方图少
+    void addCounts(long[] counts, int buckets, long sum, long max) {
+        for (int i = 0; i < buckets; i++) {
+            this.counts[i] += counts[i];
+            this.totalCount += counts[i];
+        }
+        this.sum += sum;
+        this.max = Math.max(this.max, max);
+    }
+
+    public void reset() {
+        java.util.Arrays.fill(this.counts, 0);
+        this.totalCount = 0;
+        this.sum = 0;
+        this.max = 0;
+    }
+
+    public long getTotalCount() {
+        return this.totalCount;
+    }
+
+    public long getMax() {
+        return this.max;
+    }
+
+    public long getMean() {
+        return this.totalCount == 0 ? 0 : this.sum / this.totalCount;
+    }
+
+    // percentile 取 0 到 100
+    public long getValueAtPercentile(double percentile) {
+        if (this.totalCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100.0 * this.totalCount);
+        rank = Math.max(1, Math.min(rank, this.totalCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), this.max);
+            }
+        }
+        return this.max;
+    }
+}
+
+
+/**
+ * 允许多个线程同时写入的延迟直方图，分桶同 LatencyHistogram
+ * 按线程号分成若干条带，线程只原子地加自己条带里的格子，条带第一次用到时才分配；
+ * 只分桶到 2^40 纳秒（约 18 分钟），更大的值记进最后一个桶。读取时把所有条带合并成一个 LatencyHistogram
+ */
+class StripedLatencyHistogram {
+    private static final VarHandle CELLS = MethodHandles.arrayElementVarHandle(long[].class);
+    static final int BUCKETS = LatencyHistogram.bucketIndex(1L << 40) + 1;
+    private static final int SUM = BUCKETS;
+    private static final int MAX = BUCKETS + 1;
+    private static final int STRIPE_LENGTH = BUCKETS + 2;
+    static final int STRIPES = Math.min(64, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) * 2);
+
+    private final AtomicReferenceArray<long[]> stripes = new AtomicReferenceArray<>(STRIPES);
+
+    private long[] stripe() {
+        int index = MyThreadId.get() & (STRIPES - 1);
+        long[] cells = this.stripes.get(index);
+        if (cells == null) {
+            this.stripes.compareAndSet(index, null, new long[STRIPE_LENGTH]);
+            cells = this.stripes.get(index);
+        }
+        return cells;
+    }
+
+    public void record(long value) {
+        long[] cells = this.stripe();
+        CELLS.getAndAdd(cells, Math.min(LatencyHistogram.bucketIndex(value), BUCKETS - 1), 1L);
+        CELLS.getAndAdd(cells, SUM, value);
+        long max = (long) CELLS.getOpaque(cells, MAX);
+        while (value > max && !CELLS.weakCompareAndSet(cells, MAX, max, value)) {
+            max = (long) CELLS.getOpaque(cells, MAX);
+        }
+    }
+
+    // 各条带不是同一时刻读的，并发写入时合并结果可能差几条记录
+    public LatencyHistogram snapshot() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] copy = new long[STRIPE_LENGTH];
+        for (int i = 0; i < STRIPES; i++) {
+            long[] cells = this.stripes.get(i);
+            if (cells == null) {
+                continue;
+            }
+            for (int k = 0; k < STRIPE_LENGTH; k++) {
+                copy[k] = (long) CELLS.getOpaque(cells, k);
+            }
+            histogram.addCounts(copy, BUCKETS, copy[SUM], copy[MAX]);
+        }
+        return histogram;
+    }
+
+    public void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            this.stripes.set(i, null);
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package ticketingsystem;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class MyThreadId {
@@ -14,8 +17,42 @@ public class MyThreadId {
                 }
             };
 
-    // Returns the current thread's unique ID, assigning it if necessary
+    // Thread.isVirtual() only exists since JDK 21; null on older JDKs, where every thread is a platform thread
+    private static final MethodHandle IS_VIRTUAL = findIsVirtual();
+
+    private static MethodHandle findIsVirtual() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // Returns the current thread's unique ID, assigning it if necessary.
+    // Virtual threads are short-lived and numerous, so they get a non-negative slot hashed from
+    // their thread id instead: no ThreadLocal entry is kept, and callers taking it modulo a
+    // stripe count spread them evenly rather than piling onto the first few ids
     public static int get() {
+        Thread thread = Thread.currentThread();
+        if (isVirtual(thread)) {
+            return slotOf(thread.getId());
+        }
         return threadId.get();
     }
+
+    static int slotOf(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) ((h ^ (h >>> 32)) & Integer.MAX_VALUE);
+    }
 }
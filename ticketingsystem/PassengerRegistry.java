@@ -0,0 +1,49 @@
+package ticketingsystem;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 乘客名登记表：乘客名登记成一个整数编号，之后按编号取回登记时的同一个 String 实例
+ * - 免分配的买票接口只收编号，票里的 passenger 总是登记的那个实例，热路径上不拼接、不复制乘客名
+ * - 编号从 0 开始连续分配，登记过的名字不会注销；按编号读只是一次 volatile 读加一次数组读，登记时才加锁
+ */
+class PassengerRegistry {
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    // 写者持锁填好新的格子之后再写一次 volatile 引用，读者先读引用再读格子
+    private volatile String[] names = new String[1024];
+    private int size;
+
+    // 同一个名字（equals）总是得到同一个编号
+    int register(String passenger) {
+        Integer id = this.ids.get(passenger);
+        if (id != null) {
+            return id;
+        }
+        this.lock.lock();
+        try {
+            id = this.ids.get(passenger);
+            if (id != null) {
+                return id;
+            }
+            String[] names = this.names;
+            if (this.size == names.length) {
+                names = Arrays.copyOf(names, names.length * 2);
+            }
+            names[this.size] = passenger;
+            this.names = names;
+            this.ids.put(passenger, this.size);
+            return this.size++;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // 没有登记过的编号返回 null
+    String name(int id) {
+        String[] names = this.names;
+        return id >= 0 && id < names.length ? names[id] : null;
+    }
+}
@@ -0,0 +1,240 @@
+package ticketingsystem;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// 崩溃恢复测试：子进程开着售票日志和快照不停买票、退票，每个操作前后各报一行；
+// 父进程在随机时刻 kill -9 子进程（多半正在提交日志或写快照），然后用同样的配置重新打开，
+// 核对恢复出来的票和子进程报告过的没退的票完全一致，kill 时还没报告完成的操作两种结果都算对
+public class RecoveryTest {
+    // 参数配置
+    private final static int ROUTE_NUM = 3;
+    private final static int COACH_NUM = 2;
+    private final static int SEAT_NUM = 10;
+    private final static int STATION_NUM = 8;
+    private final static int THREAD_NUM = 4;
+    private final static int ROUNDS = 10;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("child")) {
+            child();
+            return;
+        }
+        Random rand = new Random();
+        int passed = 0;
+        for (int round = 1; round <= ROUNDS; round++) {
+            Path dir = Files.createTempDirectory("ticket-recovery");
+            try {
+                if (round(round, dir, 50 + rand.nextInt(500))) {
+                    passed++;
+                }
+            } finally {
+                try (Stream<Path> files = Files.walk(dir)) {
+                    files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+                }
+            }
+        }
+        if (passed == ROUNDS) {
+            System.out.println("[Passed] Recovered tickets match the acknowledged ones in all " + ROUNDS + " rounds");
+        } else {
+            System.out.println("[Failed] " + (ROUNDS - passed) + " of " + ROUNDS + " rounds recovered wrong tickets");
+        }
+    }
+
+    // 日志每条记录写完立即刷盘，报告完成的操作一定已经落盘；快照间隔很短，kill 时常常正在换代、写快照
+    private static Properties config(Path dir) {
+        Properties config = new Properties();
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.startsWith(TrainTicketingDSFactory.PREFIX)) {
+                config.setProperty(key, System.getProperty(key));
+            }
+        }
+        config.setProperty("ticketing.journal", dir.resolve("journal").toString());
+        config.setProperty("ticketing.journal.commitMillis", "0");
+        config.setProperty("ticketing.snapshot", dir.resolve("snapshot").toString());
+        config.setProperty("ticketing.snapshot.intervalMillis", "20");
+        return config;
+    }
+
+    private static boolean round(int round, Path dir, int killAfterMillis) throws IOException, InterruptedException {
+        Properties config = config(dir);
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        for (String key : config.stringPropertyNames()) {
+            command.add("-D" + key + "=" + config.getProperty(key));
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(RecoveryTest.class.getName());
+        command.add("child");
+        Process child = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+
+        // 每个线程最多一个没报告完成的操作
+        Map<Long, Ticket> live = new HashMap<>();
+        Ticket[] pendingBuy = new Ticket[THREAD_NUM];
+        Ticket[] pendingRefund = new Ticket[THREAD_NUM];
+        boolean killed = false;
+        long killAt = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (killAt == 0) {
+                    killAt = System.currentTimeMillis() + killAfterMillis;
+                }
+                if (!killed && System.currentTimeMillis() >= killAt) {
+                    // 只发信号，不像 Process.destroyForcibly 那样顺带关掉输出流，剩下已经写进管道的行照样读完
+                    child.toHandle().destroyForcibly();
+                    killed = true;
+                }
+                String[] f = line.split(" ");
+                // kill 时可能只读到半行
+                if (f.length != 10) {
+                    continue;
+                }
+                int thread = Integer.parseInt(f[0]);
+                Ticket ticket = parse(f);
+                switch (f[1] + f[2]) {
+                    case "IB":
+                        pendingBuy[thread] = ticket;
+                        break;
+                    case "DB":
+                        pendingBuy[thread] = null;
+                        if (ticket.tid != 0) {
+                            live.put(ticket.tid, ticket);
+                        }
+                        break;
+                    case "IR":
+                        pendingRefund[thread] = live.remove(ticket.tid);
+                        break;
+                    case "DR":
+                        pendingRefund[thread] = null;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        child.waitFor();
+
+        TicketingDS ds = new TicketingDS(ROUTE_NUM, COACH_NUM, SEAT_NUM, STATION_NUM, THREAD_NUM,
+                new TrainTicketingDSFactory(config));
+        int missing = 0;
+        for (Ticket ticket : live.values()) {
+            if (!ds.refundTicket(ticket)) {
+                missing++;
+            }
+        }
+        for (Ticket ticket : pendingRefund) {
+            if (ticket != null) {
+                ds.refundTicket(ticket);
+            }
+        }
+        // 剩下的票只能来自没报告完成的买票：每条线路上各区段的占用必须等于其中某几张的叠加
+        boolean extra = false;
+        for (int route = 1; route <= ROUTE_NUM; route++) {
+            if (!explained(ds, route, pendingBuy)) {
+                extra = true;
+            }
+        }
+        ds.close();
+        boolean success = missing == 0 && !extra;
+        System.out.println("Round " + round + ": " + live.size() + " live tickets, missing " + missing
+                + (extra ? ", unexplained tickets left" : "") + (success ? " [OK]" : " [FAILED]"));
+        return success;
+    }
+
+    private static boolean explained(TicketingDS ds, int route, Ticket[] pendingBuy) {
+        int[] occupied = new int[STATION_NUM];
+        for (int departure = 1; departure < STATION_NUM; departure++) {
+            occupied[departure] = COACH_NUM * SEAT_NUM - ds.inquiry(route, departure, departure + 1);
+        }
+        for (int subset = 0; subset < 1 << THREAD_NUM; subset++) {
+            int[] expected = new int[STATION_NUM];
+            boolean possible = true;
+            for (int thread = 0; thread < THREAD_NUM; thread++) {
+                if ((subset >> thread & 1) == 0) {
+                    continue;
+                }
+                Ticket ticket = pendingBuy[thread];
+                if (ticket == null || ticket.route != route) {
+                    possible = false;
+                    break;
+                }
+                for (int departure = ticket.departure; departure < ticket.arrival; departure++) {
+                    expected[departure]++;
+                }
+            }
+            if (possible && Arrays.equals(expected, occupied)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 行格式：线程号 I|D B|R tid 乘客 线路 车厢 座位 出发站 到站；买不到票时 tid 为 0
+    private static void report(int thread, String phase, String op, Ticket ticket) {
+        System.out.println(thread + " " + phase + " " + op + " " + ticket.tid + " " + ticket.passenger + " " + ticket.route
+                + " " + ticket.coach + " " + ticket.seat + " " + ticket.departure + " " + ticket.arrival);
+    }
+
+    private static Ticket parse(String[] f) {
+        Ticket ticket = new Ticket();
+        ticket.tid = Long.parseLong(f[3]);
+        ticket.passenger = f[4];
+        ticket.route = Integer.parseInt(f[5]);
+        ticket.coach = Integer.parseInt(f[6]);
+        ticket.seat = Integer.parseInt(f[7]);
+        ticket.departure = Integer.parseInt(f[8]);
+        ticket.arrival = Integer.parseInt(f[9]);
+        return ticket;
+    }
+
+    // 子进程：一直买票、退票到被 kill；System.out 每行自动刷新，父进程读到“开始”行之前操作一定还没开始
+    private static void child() {
+        TicketingDS ds = new TicketingDS(ROUTE_NUM, COACH_NUM, SEAT_NUM, STATION_NUM, THREAD_NUM);
+        for (int i = 0; i < THREAD_NUM; i++) {
+            final int thread = i;
+            new Thread(() -> {
+                Random rand = new Random();
+                List<Ticket> held = new ArrayList<>();
+                for (int n = 0; ; n++) {
+                    if (!held.isEmpty() && rand.nextInt(3) == 0) {
+                        Ticket ticket = held.remove(rand.nextInt(held.size()));
+                        report(thread, "I", "R", ticket);
+                        if (!ds.refundTicket(ticket)) {
+                            System.err.println("ErrOfRefund");
+                        }
+                        report(thread, "D", "R", ticket);
+                    } else {
+                        Ticket intent = new Ticket();
+                        intent.passenger = "passenger" + thread + "_" + n;
+                        intent.route = rand.nextInt(ROUTE_NUM) + 1;
+                        intent.departure = rand.nextInt(STATION_NUM - 1) + 1;
+                        intent.arrival = intent.departure + rand.nextInt(STATION_NUM - intent.departure) + 1;
+                        report(thread, "I", "B", intent);
+                        Ticket ticket = ds.buyTicket(intent.passenger, intent.route, intent.departure, intent.arrival);
+                        if (ticket != null) {
+                            held.add(ticket);
+                        }
+                        report(thread, "D", "B", ticket == null ? intent : ticket);
+                    }
+                }
+            }).start();
+        }
+    }
+}
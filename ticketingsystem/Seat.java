@@ -2,9 +2,14 @@ package ticketingsystem;
 
 public class Seat {
 
+    // 一个占用字最多容纳的区段数，最高位留给 CAS 认领标志
+    static final int SEGMENTS_PER_WORD = 63;
+    // 单个占用字能表示的最大车站数，超过之后请使用多字的 PackedTrainSeatOccupiedBitmap
+    static final int MAX_STATIONNUM = SEGMENTS_PER_WORD + 1;
+
     protected long occupiedBitmap;
     protected int stationnum;
-    static protected int[][] maskMap;
+    static protected long[][] maskMap;
 
     public boolean isRangeOccupied(int departure, int arrival) {
         return ((this.maskMap[departure][arrival] & this.occupiedBitmap)  != 0);
@@ -19,21 +24,41 @@ public class Seat {
     }
 
     Seat(int stationnum) {
+        if (stationnum > MAX_STATIONNUM) {
+            throw new IllegalArgumentException("Seat supports at most " + MAX_STATIONNUM + " stations");
+        }
         this.occupiedBitmap = 0;
         this.stationnum = stationnum;
-        // 把 maskMap 预先生成
-        this.maskMap = new int[stationnum+1][stationnum+1];
+        // 把 maskMap 预先生成，所有座位共用一份
+        if (maskMap == null || maskMap.length != stationnum + 1) {
+            maskMap = buildMaskMap(stationnum);
+        }
+    }
+
+    // 第 i 个区段（车站 i+1 到车站 i+2）对应第 i 位，返回区段 [fromSegment, toSegment) 的掩码
+    static long segmentMask(int fromSegment, int toSegment) {
+        return ((1L << toSegment) - 1) & -(1L << fromSegment);
+    }
+
+    // 在占用字 word 中，从 departure 往前连续空闲的最早车站
+    static int freeRunStart(long word, int departure) {
+        long below = word & ((1L << (departure - 1)) - 1);
+        return below == 0 ? 1 : 65 - Long.numberOfLeadingZeros(below);
+    }
+
+    // 在占用字 word 中，从 arrival 往后连续空闲的最远车站
+    static int freeRunEnd(long word, int arrival, int stationnum) {
+        long above = word & segmentMask(arrival - 1, stationnum - 1);
+        return above == 0 ? stationnum : Long.numberOfTrailingZeros(above) + 1;
+    }
+
+    static long[][] buildMaskMap(int stationnum) {
+        long[][] maskMap = new long[stationnum+1][stationnum+1];
         for(int departure = 1; departure <= stationnum; departure++){
             for(int arrival = departure; arrival <= stationnum; arrival++){
-                int mask = 0;
-                for (int i = 0; i < stationnum; i++) {
-                    if (i >= departure - 1 && i < arrival - 1) {
-                        mask += 1;
-                    }
-                    mask = mask << 1;
-                }
-                maskMap[departure][arrival] = mask;
+                maskMap[departure][arrival] = segmentMask(departure - 1, arrival - 1);
             }
         }
+        return maskMap;
     }
 }
\ No newline at end of file
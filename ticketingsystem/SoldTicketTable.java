@@ -0,0 +1,166 @@
+package ticketingsystem;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * 售出车票表
+ * 同一个座位上没退的票区间互不重叠，出发站一定各不相同，所以（座位，出发站）可以直接当槽位：
+ * 不用哈希、不会冲突，也不需要墓碑，退票时把槽位 CAS 回 null 就回收了，占用的内存只和座位数、车站数有关。
+ * 退票校验只读一个数组元素，先比较引用，引用不同（比如按日志恢复的票）再比较内容。
+ * 每个槽位还带一个出票序号，由占住槽位的买票线程递增，用来拼出不重复的 tid。
+ * 另有一个槽位版本号，放票、摘票各推进一次，写快照时靠它判断槽位有没有变过：
+ * 免分配买票会把退掉的票对象原样拿去出下一张票，单看引用分不出槽位里的还是不是原来那张票。
+ * 开着售票日志时，摘票成功后、座位放出来之前就在这里记退票，见 setRefundLog。
+ */
+class SoldTicketTable {
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Ticket[].class);
+    private static final VarHandle STAMPS = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private final Ticket[] slots;
+    private final int[] sequence;
+    private final int[] stamps;
+    private final int seatAmount;
+    private final int segmentnum;
+    // 没有售票日志或者正在恢复时为 null；在表发布给其他线程之前设置
+    private Consumer<Ticket> refundLog;
+
+    SoldTicketTable(int seatAmount, int stationnum) {
+        this.seatAmount = seatAmount;
+        this.segmentnum = stationnum - 1;
+        this.slots = new Ticket[seatAmount * this.segmentnum];
+        this.sequence = new int[seatAmount * this.segmentnum];
+        this.stamps = new int[seatAmount * this.segmentnum];
+    }
+
+    private int slotIndex(int seatIndex, int departure) {
+        if (seatIndex < 0 || seatIndex >= this.seatAmount || departure < 1 || departure > this.segmentnum) {
+            return -1;
+        }
+        return seatIndex * this.segmentnum + departure - 1;
+    }
+
+    // 调用方必须已经占住了 [departure, arrival)：槽位同一时刻只有一个主人，普通的自增就够了，
+    // 上一个主人的自增经由 put 的 release 和 remove 的 CAS 对下一个主人可见
+    public int nextSequence(int seatIndex, int departure) {
+        return ++this.sequence[slotIndex(seatIndex, departure)];
+    }
+
+    // 调用方已经占住了 [departure, arrival)，槽位一定是空的；先推进版本号再放票，快照读到这张票之后一定看得到新的版本号
+    public void put(int seatIndex, Ticket ticket) {
+        int index = slotIndex(seatIndex, ticket.departure);
+        STAMPS.getAndAdd(this.stamps, index, 1);
+        SLOTS.setRelease(this.slots, index, ticket);
+    }
+
+    public Ticket get(int seatIndex, int departure) {
+        int index = slotIndex(seatIndex, departure);
+        return index < 0 ? null : (Ticket) SLOTS.getAcquire(this.slots, index);
+    }
+
+    public int capacity() {
+        return this.slots.length;
+    }
+
+    // 按槽位编号读取，遍历所有没退的票时用
+    public Ticket getSlot(int index) {
+        return (Ticket) SLOTS.getAcquire(this.slots, index);
+    }
+
+    // 接管另一张表的出票序号，之后发出的 tid 不会和旧表发过的重复；调用期间两张表都不能有并发修改
+    public void copySequences(SoldTicketTable other) {
+        System.arraycopy(other.sequence, 0, this.sequence, 0, Math.min(this.sequence.length, other.sequence.length));
+    }
+
+    public int segmentCount() {
+        return this.segmentnum;
+    }
+
+    public int sequenceAt(int seatIndex, int departure) {
+        return this.sequence[slotIndex(seatIndex, departure)];
+    }
+
+    // 一个座位上所有没退的票的一致快照，返回票数，不阻塞买票、退票
+    // 票的内容拷进 out 里调用方自己的 Ticket 对象（out 长度至少为区段数、元素不为 null），不返回槽位里的引用：
+    // 票对象退掉之后可能被免分配买票改写再放回槽位，引用相同不代表还是同一张票。
+    // 先读版本号再读槽位和票的内容，拷完再读一遍所有版本号，全都没变就说明两遍之间槽位没有放过票、摘过票，
+    // 拷到的票此时同时在槽位里；票对象只有摘掉（推进版本号）之后才可能被改写，所以拷到的内容也不会是改了一半的
+    public int snapshotSeat(int seatIndex, Ticket[] out) {
+        int base = seatIndex * this.segmentnum;
+        int[] seen = new int[this.segmentnum];
+        while (true) {
+            int count = 0;
+            for (int i = 0; i < this.segmentnum; i++) {
+                seen[i] = (int) STAMPS.getVolatile(this.stamps, base + i);
+                Ticket ticket = (Ticket) SLOTS.getVolatile(this.slots, base + i);
+                if (ticket != null) {
+                    copy(ticket, out[count++]);
+                }
+            }
+            VarHandle.acquireFence();
+            boolean stable = true;
+            for (int i = 0; i < this.segmentnum && stable; i++) {
+                stable = (int) STAMPS.getVolatile(this.stamps, base + i) == seen[i];
+            }
+            if (stable) {
+                return count;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    private static void copy(Ticket from, Ticket to) {
+        to.tid = from.tid;
+        to.passenger = from.passenger;
+        to.route = from.route;
+        to.coach = from.coach;
+        to.seat = from.seat;
+        to.departure = from.departure;
+        to.arrival = from.arrival;
+    }
+
+    // 恢复时把槽位的出票序号推进到不小于 sequence，之后发出的 tid 不会和日志里已有的重复；调用期间不能有并发修改
+    public void raiseSequence(int seatIndex, int departure, int sequence) {
+        int index = slotIndex(seatIndex, departure);
+        if (index >= 0 && this.sequence[index] < sequence) {
+            this.sequence[index] = sequence;
+        }
+    }
+
+    // 只有槽位里存的正是这张票才摘得掉，并发退同一张票只有一个能成功；
+    // 按日志恢复的票是重建出来的新对象，持票人手里的还是重启前的那个，所以引用不同时再按内容比对
+    public boolean remove(int seatIndex, Ticket ticket) {
+        int index = slotIndex(seatIndex, ticket.departure);
+        if (index < 0) {
+            return false;
+        }
+        Ticket held = (Ticket) SLOTS.getAcquire(this.slots, index);
+        if (held != null && (held == ticket || sameTicket(held, ticket)) && SLOTS.compareAndSet(this.slots, index, held, null)) {
+            // 退票返回之前推进版本号，持票人拿这个对象去买下一张票时，写快照的线程一定能发现槽位变过
+            STAMPS.getAndAdd(this.stamps, index, 1);
+            if (this.refundLog != null) {
+                this.refundLog.accept(ticket);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // 摘票成功后立刻交给 log 记退票。各实现都是先摘票、再放座位，所以退票记录一定先于
+    // 重新卖出这个座位的买票记录落盘，崩溃后不会恢复出两张重叠的票；摘票在记退票之前，
+    // 记进旧一代日志的退票，换代之后写的快照里一定已经没有这张票
+    void setRefundLog(Consumer<Ticket> log) {
+        this.refundLog = log;
+    }
+
+    Consumer<Ticket> refundLog() {
+        return this.refundLog;
+    }
+
+    private static boolean sameTicket(Ticket a, Ticket b) {
+        return a.tid == b.tid && a.route == b.route && a.coach == b.coach && a.seat == b.seat
+                && a.departure == b.departure && a.arrival == b.arrival && Objects.equals(a.passenger, b.passenger);
+    }
+}
@@ -0,0 +1,107 @@
+package ticketingsystem;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * LongAdder 式的条带选择，代替按行计数器里的 MyThreadId.get() % threadnum
+ * - 每个线程一个探针值，条带号 = 探针 & (当前条带数 - 1)；平台线程的探针放在 ThreadLocal 的 int[] 里，
+ *   改写不装箱，虚拟线程的探针由线程号散列得到，不留 ThreadLocal 状态
+ * - 拿条带失败说明和别的线程撞在了同一条带上：重新散列探针换一个条带，同一次操作里再撞就把条带数翻倍，
+ *   最多到核数（向上取整到 2 的幂），之后只换条带不再增长
+ * - 条带数只增不减，调用方按最大条带数预先分配好各行，新启用的行全是 0，读者按当前条带数扫描即可；
+ *   读者要在读到全局版本号之后再读条带数，这样启用新条带之后的写入一定会让版本号校验失败
+ */
+final class StripedSlot {
+    static final int MAX_STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+
+    // 换条带这么多次还在撞车，就在最后选中的条带上阻塞等待
+    static final int COLLIDE_LIMIT = 3;
+
+    private static final int STAMP_STRIDE = 8;
+
+    private static final ThreadLocal<int[]> PROBE = ThreadLocal.withInitial(
+            () -> new int[]{MyThreadId.slotOf(Thread.currentThread().getId()) | 1});
+
+    private final int maxStripes;
+    private final AtomicInteger stripes;
+
+    StripedSlot() {
+        this(MAX_STRIPES);
+    }
+
+    // maxStripes 必须是 2 的幂
+    StripedSlot(int maxStripes) {
+        this.maxStripes = maxStripes;
+        this.stripes = new AtomicInteger(Math.min(2, maxStripes));
+    }
+
+    int maxStripes() {
+        return this.maxStripes;
+    }
+
+    // 当前启用的条带数
+    int stripes() {
+        return this.stripes.get();
+    }
+
+    // 当前线程的探针，不为 0
+    static int probe() {
+        Thread thread = Thread.currentThread();
+        if (MyThreadId.isVirtual(thread)) {
+            return MyThreadId.slotOf(thread.getId()) | 1;
+        }
+        return PROBE.get()[0];
+    }
+
+    // 按线程分散的 n 个位置里当前线程落在哪一个，找座起点、闸口槽位这类不按条带数分配的结构用它；探针最低位总是 1，先去掉
+    static int index(int n) {
+        return (probe() >>> 1) % n;
+    }
+
+    // 当前线程在 probe 选中的条带上撞车了：collisions 是这次操作里第几次撞车，从 1 开始
+    // 第二次起还能增长就把条带数翻倍；返回换过的探针，平台线程会记住它，之后一直用新的条带
+    int collide(int probe, int collisions) {
+        int stripes = this.stripes.get();
+        if (collisions > 1 && stripes < this.maxStripes) {
+            this.stripes.compareAndSet(stripes, stripes << 1);
+        }
+        // xorshift，与 ThreadLocalRandom.advanceProbe 相同
+        probe ^= probe << 13;
+        probe ^= probe >>> 17;
+        probe ^= probe << 5;
+        Thread thread = Thread.currentThread();
+        if (!MyThreadId.isVirtual(thread)) {
+            PROBE.get()[0] = probe;
+        }
+        return probe;
+    }
+
+    // 给 lockWrite 存写锁戳的数组，每行的戳独占一条缓存行
+    long[] newStamps() {
+        return new long[this.maxStripes * STAMP_STRIDE];
+    }
+
+    // 按探针拿 locks 中一行的写锁，返回行号；写锁戳记在 stamps 里，只有持有这一行写锁的线程读写它，
+    // 解锁用 unlockWrite(locks, stamps, 行号)，戳不对时 StampedLock 会抛异常，不会误解别人的锁
+    int lockWrite(StampedLock[] locks, long[] stamps) {
+        int probe = probe();
+        for (int collisions = 1; ; collisions++) {
+            int row = probe & (this.stripes.get() - 1);
+            if (collisions > COLLIDE_LIMIT) {
+                stamps[row * STAMP_STRIDE] = locks[row].writeLock();
+                return row;
+            }
+            long stamp = locks[row].tryWriteLock();
+            if (stamp != 0) {
+                stamps[row * STAMP_STRIDE] = stamp;
+                return row;
+            }
+            probe = this.collide(probe, collisions);
+        }
+    }
+
+    static void unlockWrite(StampedLock[] locks, long[] stamps, int row) {
+        locks[row].unlockWrite(stamps[row * STAMP_STRIDE]);
+    }
+}
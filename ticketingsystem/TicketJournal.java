@@ -0,0 +1,434 @@
+package ticketingsystem;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * 售票日志：买票、退票事件追加到内存映射的日志文件里，重启时据此恢复所有没退的票
+ * - 线程按 MyThreadId 分到若干条带，先把记录写进条带的缓冲区，热路径上只有一把几乎不争用的缓冲区锁，没有全局锁；
+ *   缓冲区写满时才由写满的线程自己搬进映射区。缓冲区跟条带走、不跟线程走，大量虚拟线程也只用这么多个
+ * - 提交线程每隔 commitMillis 毫秒把所有缓冲区搬进映射区并 force 一次（组提交），
+ *   崩溃最多丢失最近一个提交间隔内的记录；commitMillis 为 0 时每条记录写完立即 force
+ * - 文件按 16MB 一段映射，一段剩下的空间放不下下一条记录时写一个跳段标记，接着映射下一段
+ * - 记录格式：[正文长度][CRC32C][类型 | tid | 线路 | 车厢 | 座位 | 出发站 | 到站 | 乘客名长度 | 乘客名 UTF-8]，
+ *   恢复时遇到长度为 0 或校验失败即认为到了日志末尾，末尾之后的残留会被清零；乘客为 null 时名字按空串写，
+ *   类型里另加 NULL_PASSENGER 位，恢复出来的票和原来的一样是 null，持票人照样退得掉
+ * - 同一张票的买票和退票可能在不同线程的缓冲区里、以任意顺序落盘；出票序号只有 24 位，同一座位同一出发站卖满一轮后
+ *   tid 会重复，所以恢复时按整张票（tid、乘客、到站）计买票、退票的结余，不依赖记录的先后，见 TicketingDS 的构造
+ * - 退票在座位放出来之前记（见 SoldTicketTable.setRefundLog），commitMillis 为 0 时退票记录一定先于重新卖出这个座位的
+ *   买票记录落盘；组提交时两条记录可能在不同的缓冲区里，崩溃丢掉最近一个提交间隔时可能只留下后者
+ * - 日志分代：第 0 代就是配置的文件，第 n 代是旁边的 文件名.n。写快照前 roll 换到新的一代，快照记下新一代的编号，
+ *   写成之后 discardBefore 删掉更早的各代；恢复时只重放快照记下的那一代及之后的，见 TicketSnapshot
+ */
+class TicketJournal {
+    static final byte BUY = 1;
+    static final byte REFUND = 2;
+    // 类型字节里的标志位，记录的票乘客为 null；老的日志没有这一位，null 乘客恢复成空串
+    private static final byte NULL_PASSENGER = 0x10;
+
+    private static final int HEADER = 8; // 正文长度 + 校验和
+    private static final int BODY_FIXED = 1 + 8 + 4 * 6;
+    private static final int SKIP = -1; // 本段剩下的空间不用了，下一条记录在下一段开头
+    private static final long SEGMENT = 16L << 20;
+    private static final int BUFFER_SIZE = 16 << 10;
+
+    // 恢复时逐条交给调用方的记录
+    interface Replay {
+        void apply(byte type, Ticket ticket);
+    }
+
+    private static final class Buffer {
+        final ReentrantLock lock = new ReentrantLock();
+        final ByteBuffer data = ByteBuffer.allocate(BUFFER_SIZE);
+        final CRC32C crc = new CRC32C();
+    }
+
+    private final Path path;
+    private final int commitMillis;
+    private final ReentrantLock journalLock = new ReentrantLock();
+    // 条带第一次用到时才分配缓冲区
+    private final AtomicReferenceArray<Buffer> buffers = new AtomicReferenceArray<>(StripedLatencyHistogram.STRIPES);
+    // 以下由 journalLock 保护：当前这一代的文件和正在写的段
+    private FileChannel channel;
+    private long generation;
+    private MappedByteBuffer segment;
+    private long segmentStart;
+    private int forcedTo; // 当前段里已经 force 过的位置
+    private Thread committer;
+    private final Thread shutdownHook = new Thread(this::commit, "ticket-journal-shutdown");
+    private volatile boolean closed;
+
+    private TicketJournal(Path path, int commitMillis) {
+        this.path = path;
+        this.commitMillis = commitMillis;
+    }
+
+    // 打开（或新建）日志，先把 fromGeneration 及之后各代的记录逐条交给 replay，再开始接受新的记录；
+    // 更早的各代已经被快照涵盖，直接删掉。新记录接着写在最新的一代后面
+    static TicketJournal open(Path path, int commitMillis, long fromGeneration, Replay replay) throws IOException {
+        TicketJournal journal = new TicketJournal(path, commitMillis);
+        journal.recover(fromGeneration, replay);
+        if (commitMillis > 0) {
+            journal.committer = new Thread(journal::commitLoop, "ticket-journal-committer");
+            journal.committer.setDaemon(true);
+            journal.committer.start();
+        }
+        Runtime.getRuntime().addShutdownHook(journal.shutdownHook);
+        return journal;
+    }
+
+    void logBuy(Ticket ticket) {
+        this.append(BUY, ticket);
+    }
+
+    void logRefund(Ticket ticket) {
+        this.append(REFUND, ticket);
+    }
+
+    private void append(byte type, Ticket ticket) {
+        String passenger = ticket.passenger;
+        if (passenger == null) {
+            passenger = "";
+            type |= NULL_PASSENGER;
+        }
+        // 全是 ASCII 的乘客名逐字节直接写进缓冲区，不先编码成 byte[]，常见情况下记一条日志不分配对象
+        byte[] name = isAscii(passenger) ? null : passenger.getBytes(StandardCharsets.UTF_8);
+        int nameLength = name == null ? passenger.length() : name.length;
+        int bodyLength = BODY_FIXED + nameLength;
+        if (HEADER + bodyLength > SEGMENT - 4) {
+            throw new IllegalArgumentException("Passenger name too long: " + nameLength + " bytes");
+        }
+        if (HEADER + bodyLength > BUFFER_SIZE) {
+            // 超长的乘客名放不进线程缓冲区，单独编码后直接写
+            ByteBuffer data = ByteBuffer.allocate(HEADER + bodyLength);
+            encode(data, new CRC32C(), type, ticket, passenger, name, nameLength);
+            this.journalLock.lock();
+            try {
+                this.write(data.array(), data.position());
+            } finally {
+                this.journalLock.unlock();
+            }
+        } else {
+            Buffer buf = this.buffer();
+            buf.lock.lock();
+            try {
+                if (buf.data.remaining() < HEADER + bodyLength) {
+                    this.drain(buf);
+                }
+                encode(buf.data, buf.crc, type, ticket, passenger, name, nameLength);
+                if (this.commitMillis == 0) {
+                    this.drain(buf);
+                }
+            } finally {
+                buf.lock.unlock();
+            }
+        }
+        if (this.commitMillis == 0) {
+            this.force();
+        }
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // name 为 null 时 passenger 全是 ASCII，按字符逐字节写
+    private static void encode(ByteBuffer data, CRC32C crc, byte type, Ticket ticket, String passenger, byte[] name, int nameLength) {
+        int start = data.position();
+        data.putInt(BODY_FIXED + nameLength).putInt(0);
+        data.put(type).putLong(ticket.tid).putInt(ticket.route).putInt(ticket.coach).putInt(ticket.seat)
+                .putInt(ticket.departure).putInt(ticket.arrival).putInt(nameLength);
+        if (name == null) {
+            for (int i = 0; i < nameLength; i++) {
+                data.put((byte) passenger.charAt(i));
+            }
+        } else {
+            data.put(name);
+        }
+        crc.reset();
+        crc.update(data.array(), start + HEADER, BODY_FIXED + nameLength);
+        data.putInt(start + 4, (int) crc.getValue());
+    }
+
+    // 调用方持有 buf.lock
+    private void drain(Buffer buf) {
+        if (buf.data.position() == 0) {
+            return;
+        }
+        this.journalLock.lock();
+        try {
+            this.write(buf.data.array(), buf.data.position());
+        } finally {
+            this.journalLock.unlock();
+        }
+        buf.data.clear();
+    }
+
+    // 调用方持有 journalLock；src 里是若干条完整的记录，逐条放进映射区，放不下就换下一段
+    private void write(byte[] src, int length) {
+        int pos = 0;
+        while (pos < length) {
+            int recordLength = HEADER + ((src[pos] & 0xFF) << 24 | (src[pos + 1] & 0xFF) << 16
+                    | (src[pos + 2] & 0xFF) << 8 | (src[pos + 3] & 0xFF));
+            if (this.segment.remaining() < recordLength) {
+                this.nextSegment();
+            }
+            this.segment.put(src, pos, recordLength);
+            pos += recordLength;
+        }
+    }
+
+    private void nextSegment() {
+        if (this.segment.remaining() >= 4) {
+            this.segment.putInt(SKIP);
+        }
+        this.segment.force();
+        this.segmentStart += SEGMENT;
+        this.segment = this.map(this.segmentStart);
+        this.forcedTo = 0;
+    }
+
+    private MappedByteBuffer map(long start) {
+        try {
+            return this.channel.map(FileChannel.MapMode.READ_WRITE, start, SEGMENT);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Buffer buffer() {
+        int index = MyThreadId.get() & (StripedLatencyHistogram.STRIPES - 1);
+        Buffer buf = this.buffers.get(index);
+        if (buf == null) {
+            this.buffers.compareAndSet(index, null, new Buffer());
+            buf = this.buffers.get(index);
+        }
+        return buf;
+    }
+
+    // 把所有条带缓冲区里的记录搬进映射区，再把新写入的部分刷到磁盘
+    void commit() {
+        for (int i = 0; i < this.buffers.length(); i++) {
+            Buffer buf = this.buffers.get(i);
+            if (buf == null) {
+                continue;
+            }
+            buf.lock.lock();
+            try {
+                this.drain(buf);
+            } finally {
+                buf.lock.unlock();
+            }
+        }
+        this.force();
+    }
+
+    private void force() {
+        this.journalLock.lock();
+        try {
+            int end = this.segment.position();
+            if (end > this.forcedTo) {
+                this.segment.force(this.forcedTo, end - this.forcedTo);
+                this.forcedTo = end;
+            }
+        } finally {
+            this.journalLock.unlock();
+        }
+    }
+
+    private void commitLoop() {
+        // 不用 sleep/interrupt：中断会把正在映射或刷盘的 FileChannel 关掉
+        while (!this.closed) {
+            LockSupport.parkNanos(this.commitMillis * 1_000_000L);
+            this.commit();
+        }
+    }
+
+    // 换到新的一代并返回它的编号，之后落盘的记录都写进新文件；当前这一代还没有写过记录时不换，返回当前编号
+    // 调用之前落盘的记录都在更早的代里，条带缓冲区里还没搬的记录会写进新的一代
+    long roll() throws IOException {
+        this.journalLock.lock();
+        try {
+            if (this.segmentStart == 0 && this.segment.position() == 0) {
+                return this.generation;
+            }
+            FileChannel next = FileChannel.open(generationFile(this.path, this.generation + 1),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.segment.force();
+            this.channel.close();
+            this.channel = next;
+            this.generation++;
+            this.segmentStart = 0;
+            this.segment = this.map(0);
+            this.forcedTo = 0;
+            return this.generation;
+        } finally {
+            this.journalLock.unlock();
+        }
+    }
+
+    // 删掉 generation 之前的各代，调用方保证它们的内容已经落进了刷过盘的快照
+    void discardBefore(long generation) throws IOException {
+        for (long g : generations(this.path)) {
+            if (g < generation) {
+                Files.deleteIfExists(generationFile(this.path, g));
+            }
+        }
+    }
+
+    static Path generationFile(Path path, long generation) {
+        return generation == 0 ? path : path.resolveSibling(path.getFileName() + "." + generation);
+    }
+
+    // 磁盘上现有的各代编号，从小到大
+    private static ArrayList<Long> generations(Path path) throws IOException {
+        ArrayList<Long> found = new ArrayList<>();
+        if (Files.exists(path)) {
+            found.add(0L);
+        }
+        Path dir = path.toAbsolutePath().getParent();
+        String prefix = path.getFileName() + ".";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*")) {
+            for (Path file : files) {
+                String suffix = file.getFileName().toString().substring(prefix.length());
+                if (!suffix.isEmpty() && suffix.length() < 19 && suffix.chars().allMatch(Character::isDigit)) {
+                    found.add(Long.parseLong(suffix));
+                }
+            }
+        }
+        Collections.sort(found);
+        return found;
+    }
+
+    // 提交剩下的记录并关闭文件，之后不能再写
+    void close() throws IOException {
+        this.closed = true;
+        if (this.committer != null) {
+            LockSupport.unpark(this.committer);
+            try {
+                this.committer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.commit();
+        Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+        this.channel.close();
+    }
+
+    // 按代从小到大重放，最后一代（没有文件时是 fromGeneration）留作当前这一代
+    private void recover(long fromGeneration, Replay replay) throws IOException {
+        ArrayList<Long> replayed = new ArrayList<>();
+        for (long g : generations(this.path)) {
+            if (g < fromGeneration) {
+                Files.deleteIfExists(generationFile(this.path, g));
+            } else {
+                replayed.add(g);
+            }
+        }
+        if (replayed.isEmpty()) {
+            replayed.add(fromGeneration);
+        }
+        for (int i = 0; i < replayed.size(); i++) {
+            this.generation = replayed.get(i);
+            this.channel = FileChannel.open(generationFile(this.path, this.generation),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                this.scan(replay);
+            } catch (IOException | RuntimeException e) {
+                this.channel.close();
+                throw e;
+            }
+            if (i < replayed.size() - 1) {
+                this.channel.close();
+            }
+        }
+    }
+
+    // 从头逐段读当前这一代，有效记录交给 replay；停在第一条无效记录处，把写位置放在那里
+    private void scan(Replay replay) throws IOException {
+        long start = 0;
+        while (true) {
+            MappedByteBuffer seg = this.map(start);
+            int end = readSegment(seg, replay);
+            if (end >= 0) {
+                // 末尾之后可能还有半截批次留下的旧记录，清零以免下次恢复时和新记录接上
+                for (int i = end; i < seg.limit(); i++) {
+                    if (seg.get(i) != 0) {
+                        seg.put(i, (byte) 0);
+                    }
+                }
+                seg.force();
+                if (this.channel.size() > start + SEGMENT) {
+                    this.channel.truncate(start + SEGMENT);
+                }
+                seg.position(end);
+                this.segment = seg;
+                this.segmentStart = start;
+                this.forcedTo = end;
+                return;
+            }
+            start += SEGMENT;
+        }
+    }
+
+    // 返回这一段里有效记录的末尾；段被跳段标记结束时返回 -1
+    private static int readSegment(MappedByteBuffer seg, Replay replay) {
+        CRC32C crc = new CRC32C();
+        int pos = 0;
+        while (true) {
+            if (seg.limit() - pos < HEADER) {
+                return -1;
+            }
+            int bodyLength = seg.getInt(pos);
+            if (bodyLength == SKIP) {
+                return -1;
+            }
+            if (bodyLength < BODY_FIXED || bodyLength > seg.limit() - pos - HEADER) {
+                return pos;
+            }
+            ByteBuffer body = seg.slice(pos + HEADER, bodyLength);
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != seg.getInt(pos + 4)) {
+                return pos;
+            }
+            byte type = body.get();
+            Ticket ticket = new Ticket();
+            ticket.tid = body.getLong();
+            ticket.route = body.getInt();
+            ticket.coach = body.getInt();
+            ticket.seat = body.getInt();
+            ticket.departure = body.getInt();
+            ticket.arrival = body.getInt();
+            int nameLength = body.getInt();
+            if (nameLength != bodyLength - BODY_FIXED) {
+                return pos;
+            }
+            byte[] name = new byte[nameLength];
+            body.get(name);
+            ticket.passenger = (type & NULL_PASSENGER) != 0 ? null : new String(name, StandardCharsets.UTF_8);
+            replay.apply((byte) (type & ~NULL_PASSENGER), ticket);
+            pos += HEADER + bodyLength;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package ticketingsystem;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * 全部线路的售票快照：每个座位上没退的票和出票序号，写成紧凑的二进制文件，启动时映射回来重建
+ * - 写快照不停买票、退票：逐个座位用 SoldTicketTable.snapshotSeat 拷出一致的票集合，
+ *   同一座位上的票一定是某一时刻同时有效的，不同座位之间不是同一时刻；
+ *   拷出来的是票的内容，持票人退票后拿同一个对象再买票也不会影响已经拷到的票
+ * - 位图、计数器和找座提示都由票推出来，不落盘，加载时经 restoreTicket 重建，
+ *   这样快照和实现无关，换了位图、计数器的组合照样能加载
+ * - 乘客名进字典，每张票只存编号；出票序号每个座位只存各槽位的最大值，加载时整座推进到它，
+ *   之后发出的 tid 不会和快照之前发过的重复
+ * - 先写到旁边的临时文件，刷盘后原子改名，写到一半崩溃不会留下半个快照；临时文件名每次不同，
+ *   同时往同一路径写的两份快照互不干扰，后改名的那份留下
+ * - 同时配置了售票日志时快照就是日志的检查点：拷票之前先让日志换代，文件头记下新一代的编号，
+ *   写成之后删掉更早的各代。换代之前落盘的记录，其效果在拷票之前就已经发生，一定都在快照里；
+ *   新一代里的记录可能已经在快照里，也可能没有，恢复时按整张票去重，见 TicketingDS 的构造
+ *
+ * 格式：[魔数 | 版本 | 线路数 | 车厢数 | 每节座位数 | 车站数 | 字典偏移 | 写入时间 | 日志代号]
+ *      每条线路 [线路号 | 每个座位 [最大出票序号 | 票数 | 每张票 [出发站 | 到站 | tid | 乘客编号]]]
+ *      字典 [乘客数 | 每个乘客 [长度 | UTF-8]]
+ */
+class TicketSnapshot {
+    static final int MAGIC = 0x544B5353; // "TKSS"
+    static final int VERSION = 2;
+    // 版本 1 的文件头没有日志代号，按代号 0 加载
+    private static final int HEADER = 4 * 6 + 8 * 3;
+    private static final int TICKET_BYTES = 2 + 2 + 8 + 4;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final TrainTicketingDS[] trains;
+    private final Path path;
+    private final long intervalMillis;
+    // 定时写入和关闭时的最后一份快照串行执行，换代、写快照、删旧代三步不能交错
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+    // 没有配置售票日志时为 null
+    private TicketJournal journal;
+    private Thread writer;
+    private volatile boolean closed;
+
+    TicketSnapshot(TrainTicketingDS[] trains, Path path, long intervalMillis) {
+        this.trains = trains;
+        this.path = path;
+        this.intervalMillis = intervalMillis;
+    }
+
+    // 启动时调用：快照文件存在就把其中的票直接装进各列车，返回文件头里的日志代号；文件不存在时返回 0
+    // 上次写到一半崩溃留下的临时文件顺带删掉
+    long loadIfPresent() throws IOException {
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(this.path.toAbsolutePath().getParent(),
+                this.path.getFileName() + ".*.tmp")) {
+            for (Path tmp : stale) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        return Files.exists(this.path) ? load(this.trains, this.path) : 0;
+    }
+
+    // 每隔 intervalMillis 毫秒写一次快照；journal 不为 null 时每份快照都是它的检查点
+    void start(TicketJournal journal) {
+        this.journal = journal;
+        this.writer = new Thread(() -> {
+            while (!this.closed) {
+                LockSupport.parkNanos(this.intervalMillis * 1_000_000L);
+                if (!this.closed) {
+                    this.saveQuietly();
+                }
+            }
+        }, "ticket-snapshot-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    private void saveQuietly() {
+        try {
+            this.checkpoint();
+        } catch (IOException e) {
+            // 下一轮再试，上一份快照还在
+            System.err.println("Snapshot to " + this.path + " failed: " + e);
+        }
+    }
+
+    // 停掉定时写入并写最后一份快照
+    void close() throws IOException {
+        this.closed = true;
+        if (this.writer != null) {
+            LockSupport.unpark(this.writer);
+            try {
+                this.writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.checkpoint();
+    }
+
+    // 日志换代之后再拷票，快照写成才删旧的各代；中途失败时旧的快照和各代日志都还在
+    private void checkpoint() throws IOException {
+        this.checkpointLock.lock();
+        try {
+            long generation = this.journal == null ? 0 : this.journal.roll();
+            save(this.trains, this.path, generation);
+            if (this.journal != null) {
+                this.journal.discardBefore(generation);
+            }
+        } finally {
+            this.checkpointLock.unlock();
+        }
+    }
+
+    // generation 是恢复时要从哪一代日志开始重放，为 0 时重放全部日志，总是安全的
+    static void save(TrainTicketingDS[] trains, Path path, long generation) throws IOException {
+        Path tmp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName() + ".", ".tmp");
+        try {
+            write(trains, tmp, generation);
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static void write(TrainTicketingDS[] trains, Path tmp, long generation) throws IOException {
+        HashMap<String, Integer> ids = new HashMap<>();
+        ArrayList<String> names = new ArrayList<>();
+        TrainTicketingDS first = trains[0];
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            buf.position(HEADER);
+            Ticket[] seatTickets = new Ticket[first.stationnum - 1];
+            for (int i = 0; i < seatTickets.length; i++) {
+                seatTickets[i] = new Ticket();
+            }
+            for (TrainTicketingDS train : trains) {
+                SoldTicketTable table = train.soldTicketTable();
+                int seatAmount = train.coachnum * train.seatnumPerCoach;
+                buf = ensure(channel, buf, 4);
+                buf.putInt(train.trainNr);
+                for (int seatIndex = 0; seatIndex < seatAmount; seatIndex++) {
+                    int count = table.snapshotSeat(seatIndex, seatTickets);
+                    // 序号在放票之前自增，取完票再读，一定不小于这些票的序号
+                    int maxSequence = 0;
+                    for (int departure = 1; departure < train.stationnum; departure++) {
+                        maxSequence = Math.max(maxSequence, table.sequenceAt(seatIndex, departure));
+                    }
+                    buf = ensure(channel, buf, 4 + 2 + count * TICKET_BYTES);
+                    buf.putInt(maxSequence).putShort((short) count);
+                    for (int i = 0; i < count; i++) {
+                        Ticket ticket = seatTickets[i];
+                        int id = -1;
+                        if (ticket.passenger != null) {
+                            Integer known = ids.putIfAbsent(ticket.passenger, names.size());
+                            if (known == null) {
+                                id = names.size();
+                                names.add(ticket.passenger);
+                            } else {
+                                id = known;
+                            }
+                        }
+                        buf.putShort((short) ticket.departure).putShort((short) ticket.arrival).putLong(ticket.tid).putInt(id);
+                    }
+                }
+            }
+            buf = ensure(channel, buf, 4);
+            long dictionaryOffset = channel.position() + buf.position();
+            buf.putInt(names.size());
+            for (String name : names) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                buf = ensure(channel, buf, 4 + bytes.length);
+                buf.putInt(bytes.length).put(bytes);
+            }
+            buf.flip();
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putInt(VERSION).putInt(trains.length).putInt(first.coachnum)
+                    .putInt(first.seatnumPerCoach).putInt(first.stationnum)
+                    .putLong(dictionaryOffset).putLong(System.currentTimeMillis()).putLong(generation);
+            header.flip();
+            channel.write(header, 0);
+            channel.force(true);
+        }
+    }
+
+    // 缓冲区放不下 bytes 字节时先写出去；缓冲区开头空着的文件头最后再补写
+    private static ByteBuffer ensure(FileChannel channel, ByteBuffer buf, int bytes) throws IOException {
+        if (buf.remaining() >= bytes) {
+            return buf;
+        }
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+        return bytes <= buf.capacity() ? buf : ByteBuffer.allocateDirect(bytes);
+    }
+
+    // 加载到刚创建、还没有卖过票的列车上，调用期间不能有并发操作；线路数、车厢数、座位数或车站数不符时抛 IllegalArgumentException
+    static long load(TrainTicketingDS[] trains, Path path) throws IOException {
+        return read(trains, path, ticket -> trains[ticket.route - 1].restoreTicket(ticket));
+    }
+
+    // 推进各座位的出票序号，票逐张交给 sink，返回文件头里的日志代号
+    static long read(TrainTicketingDS[] trains, Path path, Consumer<Ticket> sink) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too large: " + path);
+            }
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                int version = buf.getInt(0) == MAGIC ? buf.getInt(4) : -1;
+                if (version != 1 && version != VERSION) {
+                    throw new IOException("Not a ticket snapshot: " + path);
+                }
+                buf.position(8);
+                TrainTicketingDS first = trains[0];
+                int routenum = buf.getInt(), coachnum = buf.getInt(), seatnum = buf.getInt(), stationnum = buf.getInt();
+                if (routenum != trains.length || coachnum != first.coachnum || seatnum != first.seatnumPerCoach
+                        || stationnum != first.stationnum) {
+                    throw new IllegalArgumentException(String.format("Snapshot is for %d routes x %d coaches x %d seats x %d stations",
+                            routenum, coachnum, seatnum, stationnum));
+                }
+                long dictionaryOffset = buf.getLong();
+                buf.getLong();
+                long generation = version == 1 ? 0 : buf.getLong();
+                String[] names = readDictionary(buf.duplicate().position((int) dictionaryOffset));
+                int seatAmount = coachnum * seatnum;
+                for (int r = 0; r < routenum; r++) {
+                    TrainTicketingDS train = trains[buf.getInt() - 1];
+                    SoldTicketTable table = train.soldTicketTable();
+                    for (int seatIndex = 0; seatIndex < seatAmount; seatIndex++) {
+                        int maxSequence = buf.getInt();
+                        int count = buf.getShort();
+                        for (int departure = 1; departure < stationnum; departure++) {
+                            table.raiseSequence(seatIndex, departure, maxSequence);
+                        }
+                        for (int i = 0; i < count; i++) {
+                            Ticket ticket = new Ticket();
+                            ticket.route = train.trainNr;
+                            ticket.coach = seatIndex / seatnum + 1;
+                            ticket.seat = seatIndex % seatnum + 1;
+                            ticket.departure = buf.getShort();
+                            ticket.arrival = buf.getShort();
+                            ticket.tid = buf.getLong();
+                            int id = buf.getInt();
+                            ticket.passenger = id < 0 ? null : names[id];
+                            sink.accept(ticket);
+                        }
+                    }
+                }
+                return generation;
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                throw new IOException("Corrupt ticket snapshot: " + path, e);
+            }
+        }
+    }
+
+    private static String[] readDictionary(ByteBuffer buf) {
+        String[] names = new String[buf.getInt()];
+        byte[] bytes = new byte[64];
+        for (int i = 0; i < names.length; i++) {
+            int length = buf.getInt();
+            if (length > bytes.length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            buf.get(bytes, 0, length);
+            names[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+        return names;
+    }
+}
@@ -1,23 +1,259 @@
 package ticketingsystem;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+
 public class TicketingDS implements TicketingSystem {
 
 	private TrainTicketingDS[] trains;
 	private int routenum;
+	// 没有配置 ticketing.journal 时为 null
+	private TicketJournal journal;
+	// 没有配置 ticketing.snapshot 时为 null
+	private TicketSnapshot snapshot;
+	// ticketing.metrics=false 时为 null，热路径上不读时钟
+	private TicketingMetrics metrics;
+	// 免分配买票用的乘客编号
+	private PassengerRegistry passengers = new PassengerRegistry();
+	// 每条线路用什么实现由系统属性决定，见 TrainTicketingDSFactory；不配置时用 AdptGraFCStampedTrainTicketingDS
 	TicketingDS(int routenum, int coachnum, int seatnum, int stationnum, int threadnum){
+		this(routenum, coachnum, seatnum, stationnum, threadnum, new TrainTicketingDSFactory());
+	}
+
+	// flatCombining 为 true 时每条线路的请求都交给合并者串行执行
+	TicketingDS(int routenum, int coachnum, int seatnum, int stationnum, int threadnum, boolean flatCombining){
+		this(routenum, coachnum, seatnum, stationnum, threadnum, flatCombining ? flatCombiningFactory() : new TrainTicketingDSFactory());
+	}
+
+	TicketingDS(int routenum, int coachnum, int seatnum, int stationnum, int threadnum, TrainTicketingDSFactory factory){
 		this.routenum = routenum;
 		this.trains = new TrainTicketingDS[routenum];
 		for(int trainNr = 1; trainNr <= routenum; trainNr++){
-			this.trains[trainNr - 1] = new AdptGraFCStampedTrainTicketingDS(trainNr, coachnum, seatnum,stationnum,threadnum);
+			this.trains[trainNr - 1] = factory.newTrain(trainNr, coachnum, seatnum, stationnum, threadnum);
+		}
+		this.snapshot = factory.newSnapshot(this.trains);
+		this.metrics = factory.newMetrics(this.trains);
+		// 先把快照里的票直接装进各列车，再从快照记下的那一代起重放之后的日志。出票序号只有 24 位，同一座位同一出发站
+		// 卖满一轮之后 tid 会重复，所以按整张票（tid、乘客、到站）配对，只给日志里出现过的票记买票、退票次数。
+		// 新一代日志里的票可能已经在快照里：在快照里的，日志里有退票就是退了；不在的，买票次数多于退票次数才算没退。
+		// 先把这些票逐张从列车上退掉，退得掉说明在快照里，全部退完再装回没退的，免得装回的票撞上还没退掉的快照票。
+		// 日志里出现过的 tid 都推进出票序号
+		Map<ReplayKey, int[]> replayed = new HashMap<>();
+		try {
+			long generation = 0;
+			if(this.snapshot != null){
+				generation = this.snapshot.loadIfPresent();
+			}
+			this.journal = factory.openJournal(generation, (type, ticket) -> {
+				if(ticket.route <= 0 || ticket.route > this.routenum){
+					return;
+				}
+				this.trains[ticket.route - 1].restoreSequence(ticket);
+				replayed.computeIfAbsent(new ReplayKey(ticket), key -> new int[2])[type == TicketJournal.REFUND ? 1 : 0]++;
+			});
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		List<Ticket> live = new ArrayList<>();
+		for(Map.Entry<ReplayKey, int[]> entry : replayed.entrySet()){
+			Ticket ticket = entry.getKey().ticket;
+			int[] count = entry.getValue();
+			boolean snapshotted = this.trains[ticket.route - 1].refundTicket(ticket);
+			if(snapshotted ? count[1] == 0 : count[0] > count[1]){
+				live.add(ticket);
+			}
+		}
+		for(Ticket ticket : live){
+			this.trains[ticket.route - 1].restoreTicket(ticket);
+		}
+		// 恢复完才开始记退票：上面逐张退掉快照票不能写进日志。退票由售票表在摘票之后、放座位之前记，
+		// 退票返回时不再另记：那样座位可能已经被别的线程买走并记了日志，这时崩溃就会恢复出两张重叠的票
+		if(this.journal != null){
+			for(TrainTicketingDS train : this.trains){
+				train.setRefundLog(this.journal::logRefund);
+			}
+		}
+		if(this.snapshot != null){
+			this.snapshot.start(this.journal);
+		}
+	}
+
+	// 把所有线路当前没退的票写成快照，不影响并发的买票、退票；不是日志的检查点，用它恢复时重放全部日志
+	void saveSnapshot(Path path) throws IOException {
+		TicketSnapshot.save(this.trains, path, 0);
+	}
+
+	// 从快照恢复，只能在刚创建、还没有卖过票的实例上调用，调用期间不能有并发操作
+	void loadSnapshot(Path path) throws IOException {
+		TicketSnapshot.load(this.trains, path);
+	}
+
+	// 运行指标的拉取入口，没有开启时返回 null
+	TicketingMetrics metrics() {
+		return this.metrics;
+	}
+
+	// 写最后一份快照、提交日志里剩下的记录并关闭文件、注销 JMX，之后不能再买票、退票
+	void close() throws IOException {
+		if(this.metrics != null){
+			this.metrics.unregisterJmx();
+		}
+		if(this.snapshot != null){
+			this.snapshot.close();
+		}
+		if(this.journal != null){
+			this.journal.close();
 		}
 	}
 
+	private Ticket logBuy(Ticket ticket){
+		if(ticket != null && this.journal != null){
+			this.journal.logBuy(ticket);
+		}
+		return ticket;
+	}
+
+	private Ticket[] logBuy(Ticket[] tickets){
+		if(tickets != null && this.journal != null){
+			for(Ticket ticket : tickets){
+				this.journal.logBuy(ticket);
+			}
+		}
+		return tickets;
+	}
+
+	// 恢复时配对用的整张票：tid 已经含有线路、车厢、座位和出发站，再加上乘客和到站；只有日志里的记录之间互相配对
+	private static final class ReplayKey {
+		final Ticket ticket;
+
+		ReplayKey(Ticket ticket){
+			this.ticket = ticket;
+		}
+
+		@Override
+		public boolean equals(Object o){
+			if(!(o instanceof ReplayKey)){
+				return false;
+			}
+			Ticket other = ((ReplayKey) o).ticket;
+			return this.ticket.tid == other.tid && this.ticket.arrival == other.arrival
+					&& Objects.equals(this.ticket.passenger, other.passenger);
+		}
+
+		@Override
+		public int hashCode(){
+			return (Long.hashCode(this.ticket.tid) * 31 + this.ticket.arrival) * 31 + Objects.hashCode(this.ticket.passenger);
+		}
+	}
+
+	private static TrainTicketingDSFactory flatCombiningFactory(){
+		Properties config = new Properties();
+		config.setProperty(TrainTicketingDSFactory.PREFIX + "engine", "flatcombining");
+		return new TrainTicketingDSFactory(config);
+	}
+
 	@Override
 	public Ticket buyTicket(String passenger, int route, int departure, int arrival) {
 		if(route <= 0 || route > this.routenum){
 			return null;
 		}
-		return this.trains[route - 1].buyTicket(passenger, departure, arrival);
+		long start = this.metrics == null ? 0 : this.metrics.begin(route, TicketingMetrics.BUY);
+		Ticket ticket = this.logBuy(this.trains[route - 1].buyTicket(passenger, departure, arrival));
+		if(this.metrics != null){
+			this.metrics.end(route, TicketingMetrics.BUY, start, ticket != null);
+		}
+		return ticket;
+	}
+
+	@Override
+	public int registerPassenger(String passenger) {
+		return this.passengers.register(passenger);
+	}
+
+	@Override
+	public boolean buyTicket(Ticket ticket, int passengerId, int route, int departure, int arrival) {
+		String passenger = this.passengers.name(passengerId);
+		if(ticket == null || passenger == null || route <= 0 || route > this.routenum){
+			return false;
+		}
+		long start = this.metrics == null ? 0 : this.metrics.begin(route, TicketingMetrics.BUY);
+		boolean bought = this.logBuy(this.trains[route - 1].buyTicket(ticket, passenger, departure, arrival)) != null;
+		if(this.metrics != null){
+			this.metrics.end(route, TicketingMetrics.BUY, start, bought);
+		}
+		return bought;
+	}
+
+	@Override
+	public Ticket[] buyTickets(String[] passengers, int route, int departure, int arrival) {
+		if(passengers == null || route <= 0 || route > this.routenum){
+			return null;
+		}
+		long start = this.metrics == null ? 0 : this.metrics.begin(route, TicketingMetrics.BUY_GROUP);
+		Ticket[] tickets = this.logBuy(this.trains[route - 1].buyTickets(passengers, departure, arrival));
+		if(this.metrics != null){
+			this.metrics.end(route, TicketingMetrics.BUY_GROUP, start, tickets != null);
+		}
+		return tickets;
+	}
+
+	// 联程购票：按线路号（同一线路再按出发站）的固定顺序逐段买票，某一段买不到就把已经买到的各段按相反顺序退掉
+	// 每段都是一次普通的买票，不跨线路持有任何锁，不会死锁；先查一遍余票，有一段已经售罄就不去别的线路上占座再退
+	@Override
+	public Ticket[] buyItinerary(String passenger, int[] routes, int[] departures, int[] arrivals) {
+		long start = this.metrics == null ? 0 : this.metrics.begin(0, TicketingMetrics.BUY_ITINERARY);
+		Ticket[] tickets = this.buyLegs(passenger, routes, departures, arrivals);
+		if(this.metrics != null){
+			this.metrics.end(0, TicketingMetrics.BUY_ITINERARY, start, tickets != null);
+		}
+		return tickets;
+	}
+
+	private Ticket[] buyLegs(String passenger, int[] routes, int[] departures, int[] arrivals) {
+		if(routes == null || departures == null || arrivals == null){
+			return null;
+		}
+		int legs = routes.length;
+		if(legs == 0 || departures.length != legs || arrivals.length != legs){
+			return null;
+		}
+		for(int i = 0; i < legs; i++){
+			if(routes[i] <= 0 || routes[i] > this.routenum || this.trains[routes[i] - 1].inquiry(departures[i], arrivals[i]) == 0){
+				return null;
+			}
+		}
+		int[] order = new int[legs];
+		for(int i = 0; i < legs; i++){
+			int j = i;
+			for(; j > 0 && legBefore(routes, departures, i, order[j - 1]); j--){
+				order[j] = order[j - 1];
+			}
+			order[j] = i;
+		}
+		Ticket[] tickets = new Ticket[legs];
+		for(int k = 0; k < legs; k++){
+			int leg = order[k];
+			Ticket ticket = this.logBuy(this.trains[routes[leg] - 1].buyTicket(passenger, departures[leg], arrivals[leg]));
+			if(ticket == null){
+				for(int r = k - 1; r >= 0; r--){
+					this.refundTicket(tickets[order[r]]);
+				}
+				return null;
+			}
+			tickets[leg] = ticket;
+		}
+		return tickets;
+	}
+
+	private static boolean legBefore(int[] routes, int[] departures, int a, int b){
+		return routes[a] < routes[b] || (routes[a] == routes[b] && departures[a] < departures[b]);
 	}
 
 	@Override
@@ -25,7 +261,40 @@ public class TicketingDS implements TicketingSystem {
 		if(route <= 0 || route > this.routenum){
 			return 0;
 		}
-		return this.trains[route - 1].inquiry(departure, arrival);
+		long start = this.metrics == null ? 0 : this.metrics.begin(route, TicketingMetrics.INQUIRY);
+		int remain = this.trains[route - 1].inquiry(departure, arrival);
+		if(this.metrics != null){
+			this.metrics.end(route, TicketingMetrics.INQUIRY, start, true);
+		}
+		return remain;
+	}
+
+	// 一条线路的整张余票表 result[departure][arrival]，使用按条带分行、带快照校验的计数器时是同一时刻的快照；线路不存在时返回 null
+	@Override
+	public int[][] inquiryAll(int route) {
+		if(route <= 0 || route > this.routenum){
+			return null;
+		}
+		long start = this.metrics == null ? 0 : this.metrics.begin(route, TicketingMetrics.INQUIRY_ALL);
+		int[][] remain = this.trains[route - 1].inquiryAll();
+		if(this.metrics != null){
+			this.metrics.end(route, TicketingMetrics.INQUIRY_ALL, start, true);
+		}
+		return remain;
+	}
+
+	// 一条线路从 fromStation 出发到后面各站的余票 result[arrival]；线路不存在时返回 null
+	@Override
+	public int[] inquiryRange(int route, int fromStation) {
+		if(route <= 0 || route > this.routenum){
+			return null;
+		}
+		long start = this.metrics == null ? 0 : this.metrics.begin(route, TicketingMetrics.INQUIRY_RANGE);
+		int[] remain = this.trains[route - 1].inquiryFrom(fromStation);
+		if(this.metrics != null){
+			this.metrics.end(route, TicketingMetrics.INQUIRY_RANGE, start, true);
+		}
+		return remain;
 	}
 
 	@Override
@@ -33,6 +302,11 @@ public class TicketingDS implements TicketingSystem {
 		if(ticket == null || ticket.route <= 0 || ticket.route > this.routenum){
 			return false;
 		}
-		return this.trains[ticket.route - 1].refundTicket(ticket);
+		long start = this.metrics == null ? 0 : this.metrics.begin(ticket.route, TicketingMetrics.REFUND);
+		boolean refunded = this.trains[ticket.route - 1].refundTicket(ticket);
+		if(this.metrics != null){
+			this.metrics.end(ticket.route, TicketingMetrics.REFUND, start, refunded);
+		}
+		return refunded;
 	}
 }
@@ -0,0 +1,19 @@
+package ticketingsystem;
+
+import java.util.Map;
+
+/**
+ * TicketingDS 运行指标的 JMX 视图，实现见 TicketingMetrics
+ */
+public interface TicketingMetricsMXBean {
+    // 键为 线路.操作.指标（如 route.1.buy.p99Nanos）或 线路.探针（如 route.1.seatProbes），all 为全部线路合计
+    Map<String, Long> getCounters();
+
+    long getOperationCount();
+
+    // 便于人读的多行文本，每条线路每种操作一行
+    String getReport();
+
+    // 清空直方图和失败计数，探针从当前值重新累计
+    void reset();
+}
@@ -13,6 +13,19 @@ class Ticket{
 
 public interface TicketingSystem {
 	Ticket buyTicket(String passenger, int route, int departure, int arrival);
+	// 登记乘客名，返回免分配买票用的编号，同名总是同一个编号
+	int registerPassenger(String passenger);
+	// 免分配买票：出票写进调用方给的 ticket，乘客名取登记时的实例；买不到或编号没登记过返回 false，ticket 不动
+	// ticket 退票成功之前不能改动，退票成功后可以拿去买下一张
+	boolean buyTicket(Ticket ticket, int passengerId, int route, int departure, int arrival);
+	// 团体购票：每位乘客一张同区间的票，全部买到才返回，否则返回 null 且不占任何座位
+	Ticket[] buyTickets(String[] passengers, int route, int departure, int arrival);
+	// 联程购票：第 i 段是 routes[i] 线路的 [departures[i], arrivals[i])，各段全部买到才返回（按段的顺序），否则返回 null 且不占任何座位
+	Ticket[] buyItinerary(String passenger, int[] routes, int[] departures, int[] arrivals);
 	int inquiry(int route, int departure, int arrival);
+	// 整张余票表 result[departure][arrival]，一次扫描得到
+	int[][] inquiryAll(int route);
+	// 从 fromStation 出发到各站的余票 result[arrival]
+	int[] inquiryRange(int route, int fromStation);
 	boolean refundTicket(Ticket ticket);
 }
@@ -1,7 +1,11 @@
 package ticketingsystem;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -11,12 +15,66 @@ import java.util.concurrent.locks.StampedLock;
 public abstract class TrainRemainTicketCounter {
 
     protected int maxStationnum;
+    // 查询因为写入而重读的次数，只在重读的慢路径上累加，供自适应切换参考
+    protected LongAdder inquiryRetries = new LongAdder();
+
+    // 带修改版本号的计数器才有查询缓存，其余为 null
+    protected InquiryCache inquiryCache;
+
+    public long getInquiryRetries() {
+        return this.inquiryRetries.sum();
+    }
+
+    public boolean hasInquiryCache() {
+        return this.inquiryCache != null;
+    }
+
+    // 命中次数不单独计，等于这期间的单区间查询次数减去它
+    public long getInquiryCacheMisses() {
+        return this.inquiryCache == null ? 0 : this.inquiryCache.getMisses();
+    }
 
     public abstract int inquiryRemainTicket(int departure, int arrival);
 
-    public abstract boolean buyRange(int departure, int arrival, Seat seat);
+    // 整张余票表 result[departure][arrival]，只有 1 <= departure < arrival <= 车站数 的格子有意义
+    // 默认逐格查询，格与格之间不保证是同一时刻；按线程分行的计数器覆盖成一次扫描、一次快照校验
+    public int[][] inquiryAllRemainTicket() {
+        int[][] result = new int[maxStationnum + 1][maxStationnum + 1];
+        for (int d = 1; d < maxStationnum; d++) {
+            for (int a = d + 1; a <= maxStationnum; a++) {
+                result[d][a] = this.inquiryRemainTicket(d, a);
+            }
+        }
+        return result;
+    }
+
+    // 从 departure 出发到后面各站的余票 result[arrival]，departure 不合法时全为 0
+    public int[] inquiryRemainTicketFrom(int departure) {
+        int[] result = new int[maxStationnum + 1];
+        if (!this.rangeLegalCheck(departure, departure + 1)) {
+            return result;
+        }
+        for (int a = departure + 1; a <= maxStationnum; a++) {
+            result[a] = this.inquiryRemainTicket(departure, a);
+        }
+        return result;
+    }
+
+    public abstract boolean buyRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex);
+
+    public abstract boolean refundRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex);
 
-    public abstract boolean refundRange(int departure, int arrival, Seat seat);
+    // 团体购票：一组座位买同一个区间，调用方持有所有座位且都还没有占上
+    // 默认逐个座位记录，按行加锁的计数器覆盖成一次加锁、一次发布
+    public boolean buyRanges(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int[] seatIndexes) {
+        if (!this.rangeLegalCheck(departure, arrival)) {
+            return false;
+        }
+        for (int seatIndex : seatIndexes) {
+            this.buyRange(departure, arrival, bitmap, seatIndex);
+        }
+        return true;
+    }
 
     protected boolean rangeLegalCheck(int departure, int arrival) {
         // 检查区间合法性
@@ -26,6 +84,11 @@ public abstract class TrainRemainTicketCounter {
     protected int rangeToIndex(int departure, int arrival) {
         return (departure - 1) * maxStationnum + (arrival - 1);
     }
+
+    // 只给 departure < arrival 的区间编号，第 d 行有 maxStationnum - d 个区间，共 n(n-1)/2 格
+    protected int rangeToTriangleIndex(int departure, int arrival) {
+        return (departure - 1) * maxStationnum - (departure - 1) * departure / 2 + (arrival - departure - 1);
+    }
 }
 
 class SeatLevelAtomicRemainTicketCounter extends TrainRemainTicketCounter {
@@ -50,7 +113,7 @@ class SeatLevelAtomicRemainTicketCounter extends TrainRemainTicketCounter {
         return this.counterboard[rangeToIndex(departure, arrival)].get();
     }
 
-    private boolean modifyRange(int departure, int arrival, boolean isBuy, Seat seat) {
+    private boolean modifyRange(int departure, int arrival, boolean isBuy, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
         if (!this.rangeLegalCheck(departure, arrival)) {
             return false;
         }
@@ -60,7 +123,7 @@ class SeatLevelAtomicRemainTicketCounter extends TrainRemainTicketCounter {
                     continue;
                 }
                 if (d < arrival && a > departure) {
-                    if (seat.isRangeOccupied(d, a)) {
+                    if (bitmap.isRangeOccupied(seatIndex, d, a)) {
                         continue; // 之前已经记录过了，不需要再修改
                     }
                     if (isBuy) {
@@ -75,13 +138,13 @@ class SeatLevelAtomicRemainTicketCounter extends TrainRemainTicketCounter {
     }
 
     @Override
-    public boolean buyRange(int departure, int arrival, Seat seat) {
-        return this.modifyRange(departure, arrival, true, seat);
+    public boolean buyRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        return this.modifyRange(departure, arrival, true, bitmap, seatIndex);
     }
 
     @Override
-    public boolean refundRange(int departure, int arrival, Seat seat) {
-        return this.modifyRange(departure, arrival, false, seat);
+    public boolean refundRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        return this.modifyRange(departure, arrival, false, bitmap, seatIndex);
     }
 }
 
@@ -107,7 +170,7 @@ class SeatLevelLongAdderRemainTicketCounter extends TrainRemainTicketCounter {
         return this.counterboard[rangeToIndex(departure, arrival)].intValue();
     }
 
-    private boolean modifyRange(int departure, int arrival, boolean isBuy, Seat seat) {
+    private boolean modifyRange(int departure, int arrival, boolean isBuy, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
         if (!this.rangeLegalCheck(departure, arrival)) {
             return false;
         }
@@ -117,7 +180,7 @@ class SeatLevelLongAdderRemainTicketCounter extends TrainRemainTicketCounter {
                     continue;
                 }
                 if (d < arrival && a > departure) {
-                    if (seat.isRangeOccupied(d, a)) {
+                    if (bitmap.isRangeOccupied(seatIndex, d, a)) {
                         continue; // 之前已经记录过了，不需要再修改
                     }
                     if (isBuy) {
@@ -132,13 +195,13 @@ class SeatLevelLongAdderRemainTicketCounter extends TrainRemainTicketCounter {
     }
 
     @Override
-    public boolean buyRange(int departure, int arrival, Seat seat) {
-        return this.modifyRange(departure, arrival, true, seat);
+    public boolean buyRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        return this.modifyRange(departure, arrival, true, bitmap, seatIndex);
     }
 
     @Override
-    public boolean refundRange(int departure, int arrival, Seat seat) {
-        return this.modifyRange(departure, arrival, false, seat);
+    public boolean refundRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        return this.modifyRange(departure, arrival, false, bitmap, seatIndex);
     }
 }
 
@@ -172,7 +235,7 @@ class SeatLevelReadWriteRemainTicketCounter extends TrainRemainTicketCounter {
 
     }
 
-    private boolean modifyRange(int departure, int arrival, boolean isBuy, Seat seat) {
+    private boolean modifyRange(int departure, int arrival, boolean isBuy, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
         if (!this.rangeLegalCheck(departure, arrival)) {
             return false;
         }
@@ -184,7 +247,7 @@ class SeatLevelReadWriteRemainTicketCounter extends TrainRemainTicketCounter {
                         continue;
                     }
                     if (d < arrival && a > departure) {
-                        if (seat.isRangeOccupied(d, a)) {
+                        if (bitmap.isRangeOccupied(seatIndex, d, a)) {
                             continue; // 之前已经记录过了，不需要再修改
                         }
                         if (isBuy) {
@@ -202,32 +265,35 @@ class SeatLevelReadWriteRemainTicketCounter extends TrainRemainTicketCounter {
     }
 
     @Override
-    public boolean buyRange(int departure, int arrival, Seat seat) {
-        return this.modifyRange(departure, arrival, true, seat);
+    public boolean buyRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        return this.modifyRange(departure, arrival, true, bitmap, seatIndex);
     }
 
     @Override
-    public boolean refundRange(int departure, int arrival, Seat seat) {
-        return this.modifyRange(departure, arrival, false, seat);
+    public boolean refundRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        return this.modifyRange(departure, arrival, false, bitmap, seatIndex);
     }
 }
 
 class SeatLevelFCRemainTicketCounter extends TrainRemainTicketCounter {
     private int[][] counterboard;
     private StampedLock[] threadLock;
+    private long[] writeStamps; // threadLock 各行的写锁戳
     private StampedLock lock;
     private int amountTicket;
-    private int threadnum;
+    private StripedSlot slot;
 
-    SeatLevelFCRemainTicketCounter(int stationnum, int coachnum, int seatnum, int threadnum) {
+    SeatLevelFCRemainTicketCounter(int stationnum, int coachnum, int seatnum) {
         this.maxStationnum = stationnum;
-        this.threadnum = threadnum;
+        this.slot = new StripedSlot();
+        int rows = this.slot.maxStripes();
         int rangeCount = stationnum * stationnum; // 这里浪费了一半内存
         this.amountTicket = coachnum * seatnum;
-        this.threadLock = new StampedLock[threadnum];
-        this.counterboard = new int[threadnum][rangeCount];
+        this.threadLock = new StampedLock[rows];
+        this.writeStamps = this.slot.newStamps();
+        this.counterboard = new int[rows][rangeCount];
         this.lock = new StampedLock();
-        for (int i = 0; i < threadnum; i++) {
+        for (int i = 0; i < rows; i++) {
             this.threadLock[i] = new StampedLock();
             for(int j = 0; j < rangeCount; j++) {
                 this.counterboard[i][j] = 0;
@@ -244,7 +310,8 @@ class SeatLevelFCRemainTicketCounter extends TrainRemainTicketCounter {
         }
         int delta = 0, threadDelta=0;
         long stamp, counter=0;
-        for(int i=0; i < this.threadnum; i++){
+        int stripes = this.slot.stripes();
+        for(int i=0; i < stripes; i++){
             counter = 0;
             do {
                 counter++;
@@ -257,12 +324,11 @@ class SeatLevelFCRemainTicketCounter extends TrainRemainTicketCounter {
         return this.amountTicket + delta;
     }
 
-    private boolean modifyRange(int departure, int arrival, boolean isBuy, Seat seat) {
+    private boolean modifyRange(int departure, int arrival, boolean isBuy, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
         if (!this.rangeLegalCheck(departure, arrival)) {
             return false;
         }
-        int threadNr = MyThreadId.get() % this.threadnum;
-        long stamp = this.threadLock[threadNr].writeLock();
+        int threadNr = this.slot.lockWrite(this.threadLock, this.writeStamps);
         try {
             for (int d = 1; d < maxStationnum; d++) {
                 for (int a = d + 1; a <= maxStationnum; a++) {
@@ -270,7 +336,7 @@ class SeatLevelFCRemainTicketCounter extends TrainRemainTicketCounter {
                         continue;
                     }
                     if (d < arrival && a > departure) {
-                        if (seat.isRangeOccupied(d, a)) {
+                        if (bitmap.isRangeOccupied(seatIndex, d, a)) {
                             continue; // 之前已经记录过了，不需要再修改
                         }
                         if (isBuy) {
@@ -283,37 +349,41 @@ class SeatLevelFCRemainTicketCounter extends TrainRemainTicketCounter {
             }
             return true;
         } finally {
-            this.threadLock[threadNr].unlockWrite(stamp);
+            StripedSlot.unlockWrite(this.threadLock, this.writeStamps, threadNr);
         }
     }
 
     @Override
-    public boolean buyRange(int departure, int arrival, Seat seat) {
-        return this.modifyRange(departure, arrival, true, seat);
+    public boolean buyRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        return this.modifyRange(departure, arrival, true, bitmap, seatIndex);
     }
 
     @Override
-    public boolean refundRange(int departure, int arrival, Seat seat) {
-        return this.modifyRange(departure, arrival, false, seat);
+    public boolean refundRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        return this.modifyRange(departure, arrival, false, bitmap, seatIndex);
     }
 }
 
 class SeatLevelFCStampedRemainTicketCounter extends TrainRemainTicketCounter {
     private int[][] counterboard;
     private StampedLock[] threadLock; // 线程间同步
+    private long[] writeStamps; // threadLock 各行的写锁戳
     private AtomicInteger stamp;
     private int amountTicket;
-    private int threadnum;
+    private StripedSlot slot;
 
-    SeatLevelFCStampedRemainTicketCounter(int stationnum, int coachnum, int seatnum, int threadnum) {
+    SeatLevelFCStampedRemainTicketCounter(int stationnum, int coachnum, int seatnum) {
         this.maxStationnum = stationnum;
-        this.threadnum = threadnum;
+        this.slot = new StripedSlot();
+        int rows = this.slot.maxStripes();
         int rangeCount = stationnum * stationnum; // 这里浪费了一半内存
         this.amountTicket = coachnum * seatnum;
-        this.threadLock = new StampedLock[threadnum];
-        this.counterboard = new int[threadnum][rangeCount];
+        this.threadLock = new StampedLock[rows];
+        this.writeStamps = this.slot.newStamps();
+        this.counterboard = new int[rows][rangeCount];
         this.stamp = new AtomicInteger(0);
-        for (int i = 0; i < threadnum; i++) {
+        this.inquiryCache = InquiryCache.create(rangeCount);
+        for (int i = 0; i < rows; i++) {
             this.threadLock[i] = new StampedLock();
             for(int j = 0; j < rangeCount; j++) {
                 this.counterboard[i][j] = 0;
@@ -327,30 +397,95 @@ class SeatLevelFCStampedRemainTicketCounter extends TrainRemainTicketCounter {
             // 区间不合法直接返回0
             return 0;
         }
+        // 全局 stamp 没变说明缓存的余票仍然有效
+        if (this.inquiryCache != null) {
+            int cached = this.inquiryCache.get(rangeToIndex(departure, arrival), stamp.get());
+            if (cached >= 0) {
+                return cached;
+            }
+        }
         int delta = 0, threadDelta=0;
         long threadStamp, globalStamp ,counter=0;
 
-        do {
+        while (true) {
             delta = 0;
             globalStamp = stamp.get();
-            for(int i=0; i < this.threadnum; i++){
+            // 条带数在全局 stamp 之后读，之后新启用的条带上的写入会让 stamp 校验失败
+            int stripes = this.slot.stripes();
+            for(int i=0; i < stripes; i++){
                 do {
                     threadStamp = this.threadLock[i].tryOptimisticRead();
                     threadDelta = this.counterboard[i][rangeToIndex(departure, arrival)];
                 } while (!this.threadLock[i].validate(threadStamp));
                 delta += threadDelta;
             }
-        } while (globalStamp != stamp.get());
+            if (globalStamp == stamp.get()) {
+                break;
+            }
+            this.inquiryRetries.increment();
+        }
 
+        if (this.inquiryCache != null) {
+            this.inquiryCache.put(rangeToIndex(departure, arrival), globalStamp, this.amountTicket + delta);
+        }
         return this.amountTicket + delta;
     }
 
-    private boolean modifyRange(int departure, int arrival, boolean isBuy, Seat seat) {
+    // 一次扫描取出 rangeToIndex 在 [from, to) 的所有格：每行整段读出后校验一次，全局 stamp 只校验一次
+    private int[] sweepRange(int from, int to) {
+        int[] remain = new int[to - from];
+        int[] row = new int[to - from];
+        long threadStamp, globalStamp;
+        while (true) {
+            Arrays.fill(remain, this.amountTicket);
+            globalStamp = stamp.get();
+            int stripes = this.slot.stripes();
+            for (int i = 0; i < stripes; i++) {
+                do {
+                    threadStamp = this.threadLock[i].tryOptimisticRead();
+                    System.arraycopy(this.counterboard[i], from, row, 0, to - from);
+                } while (!this.threadLock[i].validate(threadStamp));
+                for (int k = 0; k < row.length; k++) {
+                    remain[k] += row[k];
+                }
+            }
+            if (globalStamp == stamp.get()) {
+                break;
+            }
+            this.inquiryRetries.increment();
+        }
+        return remain;
+    }
+
+    @Override
+    public int[][] inquiryAllRemainTicket() {
+        int[][] result = new int[maxStationnum + 1][maxStationnum + 1];
+        int from = rangeToIndex(1, 2);
+        int[] remain = this.sweepRange(from, rangeToIndex(maxStationnum - 1, maxStationnum) + 1);
+        for (int d = 1; d < maxStationnum; d++) {
+            for (int a = d + 1; a <= maxStationnum; a++) {
+                result[d][a] = remain[rangeToIndex(d, a) - from];
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public int[] inquiryRemainTicketFrom(int departure) {
+        int[] result = new int[maxStationnum + 1];
+        if (!this.rangeLegalCheck(departure, departure + 1)) {
+            return result;
+        }
+        int[] remain = this.sweepRange(rangeToIndex(departure, departure + 1), rangeToIndex(departure, maxStationnum) + 1);
+        System.arraycopy(remain, 0, result, departure + 1, remain.length);
+        return result;
+    }
+
+    private boolean modifyRange(int departure, int arrival, boolean isBuy, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
         if (!this.rangeLegalCheck(departure, arrival)) {
             return false;
         }
-        int threadNr = MyThreadId.get() % this.threadnum;
-        long threadStamp = this.threadLock[threadNr].writeLock();
+        int threadNr = this.slot.lockWrite(this.threadLock, this.writeStamps);
         try {
             for (int d = 1; d < maxStationnum; d++) {
                 for (int a = d + 1; a <= maxStationnum; a++) {
@@ -358,7 +493,7 @@ class SeatLevelFCStampedRemainTicketCounter extends TrainRemainTicketCounter {
                         continue;
                     }
                     if (d < arrival && a > departure) {
-                        if (seat.isRangeOccupied(d, a)) {
+                        if (bitmap.isRangeOccupied(seatIndex, d, a)) {
                             continue; // 之前已经记录过了，不需要再修改
                         }
                         if (isBuy) {
@@ -372,105 +507,820 @@ class SeatLevelFCStampedRemainTicketCounter extends TrainRemainTicketCounter {
             stamp.getAndIncrement();
             return true;
         } finally {
-            this.threadLock[threadNr].unlockWrite(threadStamp);
+            StripedSlot.unlockWrite(this.threadLock, this.writeStamps, threadNr);
         }
     }
 
     @Override
-    public boolean buyRange(int departure, int arrival, Seat seat) {
-        return this.modifyRange(departure, arrival, true, seat);
+    public boolean buyRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        return this.modifyRange(departure, arrival, true, bitmap, seatIndex);
     }
 
     @Override
-    public boolean refundRange(int departure, int arrival, Seat seat) {
-        return this.modifyRange(departure, arrival, false, seat);
+    public boolean refundRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        return this.modifyRange(departure, arrival, false, bitmap, seatIndex);
     }
 }
 
-class CoachLevelRemainTicketHint extends TrainRemainTicketCounter{
-    private int[][] counterboard;
+// FCStamped 的紧凑版本
+// 1. 只为 departure < arrival 的区间分配计数格，按三角形下标排列，不再浪费一半内存
+// 2. 每个条带的计数行都从缓存行边界开始，行与行之间隔开一整条缓存行，写者之间不再伪共享
+// 3. 每行的 StampedLock 换成放在隔开的 long[] 里的顺序锁版本号，偶数空闲，奇数表示正在写
+// 4. 行按 StripedSlot 分给线程，撞车时换行并增加启用的行数，行数最多到核数，与调用方给的线程数无关
+class SeatLevelCompactFCStampedRemainTicketCounter extends TrainRemainTicketCounter {
+    private static final int CACHE_LINE_INTS = 16;
+    private static final int CACHE_LINE_LONGS = 8;
+    private static final VarHandle ROW_VERSION = MethodHandles.arrayElementVarHandle(long[].class);
+
+    protected int[] counterboard;
+    private long[] rowVersion;
+    private AtomicInteger stamp;
+    protected int amountTicket;
+    protected StripedSlot slot;
+    private int rowStride;
+
+    SeatLevelCompactFCStampedRemainTicketCounter(int stationnum, int coachnum, int seatnum) {
+        this(stationnum, coachnum, seatnum, StripedSlot.MAX_STRIPES);
+    }
+
+    // maxStripes 必须是 2 的幂
+    protected SeatLevelCompactFCStampedRemainTicketCounter(int stationnum, int coachnum, int seatnum, int maxStripes) {
+        this.maxStationnum = stationnum;
+        this.slot = new StripedSlot(maxStripes);
+        int rangeCount = stationnum * (stationnum - 1) / 2;
+        this.amountTicket = coachnum * seatnum;
+        // 行长度向上取整到缓存行，再多留一条缓存行做间隔；数组头部同样留一条
+        this.rowStride = (rangeCount + CACHE_LINE_INTS - 1) / CACHE_LINE_INTS * CACHE_LINE_INTS + CACHE_LINE_INTS;
+        this.counterboard = new int[CACHE_LINE_INTS + maxStripes * this.rowStride];
+        this.rowVersion = new long[(maxStripes + 1) * CACHE_LINE_LONGS];
+        this.stamp = new AtomicInteger(0);
+        this.inquiryCache = InquiryCache.create(rangeCount);
+    }
+
+    protected int rowOffset(int threadNr) {
+        return CACHE_LINE_INTS + threadNr * this.rowStride;
+    }
+
+    private int versionIndex(int threadNr) {
+        return (threadNr + 1) * CACHE_LINE_LONGS;
+    }
+
+    // 按探针选一行，把行版本号从偶数改成奇数，独占这一行；返回行号
+    // 选中的行正被占用就换一行，换 COLLIDE_LIMIT 次还在撞车就在最后选中的行上自旋等待
+    protected int lockRow() {
+        int probe = StripedSlot.probe();
+        for (int collisions = 1; ; collisions++) {
+            int row = probe & (this.slot.stripes() - 1);
+            int vIndex = versionIndex(row);
+            for (int spins = 0; ; spins++) {
+                long version = (long) ROW_VERSION.getVolatile(this.rowVersion, vIndex);
+                if ((version & 1) == 0 && ROW_VERSION.compareAndSet(this.rowVersion, vIndex, version, version + 1)) {
+                    return row;
+                }
+                if (collisions <= StripedSlot.COLLIDE_LIMIT) {
+                    break;
+                }
+                backoff(spins);
+            }
+            probe = this.slot.collide(probe, collisions);
+        }
+    }
+
+    // 持有者独占这一行，版本号只有它会改，普通读即可
+    protected void unlockRow(int row) {
+        int vIndex = versionIndex(row);
+        ROW_VERSION.setRelease(this.rowVersion, vIndex, (long) ROW_VERSION.get(this.rowVersion, vIndex) + 1);
+    }
+
+    protected static void backoff(int spins) {
+        if ((spins & 63) == 63) {
+            // 持有者可能没有拿到 CPU，让出去
+            Thread.yield();
+        } else {
+            Thread.onSpinWait();
+        }
+    }
+
+    @Override
+    public int inquiryRemainTicket(int departure, int arrival) {
+        if (!this.rangeLegalCheck(departure, arrival)) {
+            // 区间不合法直接返回0
+            return 0;
+        }
+        int index = rangeToTriangleIndex(departure, arrival);
+        // 全局 stamp 没变说明缓存的余票仍然有效
+        if (this.inquiryCache != null) {
+            int cached = this.inquiryCache.get(index, stamp.get());
+            if (cached >= 0) {
+                return cached;
+            }
+        }
+        int delta = 0, threadDelta = 0;
+        long version, globalStamp;
+
+        while (true) {
+            delta = 0;
+            globalStamp = stamp.get();
+            // 条带数在全局 stamp 之后读，之后新启用的行上的写入会让 stamp 校验失败
+            int stripes = this.slot.stripes();
+            for (int i = 0; i < stripes; i++) {
+                int vIndex = versionIndex(i), cIndex = rowOffset(i) + index;
+                for (int spins = 0; ; spins++) {
+                    version = (long) ROW_VERSION.getAcquire(this.rowVersion, vIndex);
+                    if ((version & 1) == 0) {
+                        threadDelta = this.counterboard[cIndex];
+                        VarHandle.acquireFence();
+                        if (version == (long) ROW_VERSION.getAcquire(this.rowVersion, vIndex)) {
+                            break;
+                        }
+                    }
+                    backoff(spins);
+                }
+                delta += threadDelta;
+            }
+            if (globalStamp == stamp.get()) {
+                break;
+            }
+            this.inquiryRetries.increment();
+        }
+
+        if (this.inquiryCache != null) {
+            this.inquiryCache.put(index, globalStamp, this.amountTicket + delta);
+        }
+        return this.amountTicket + delta;
+    }
+
+    // 一次扫描取出三角形下标在 [from, to) 的所有格的余票：每行整段读出后校验一次，全局 stamp 只校验一次
+    protected int[] sweepRange(int from, int to) {
+        int[] remain = new int[to - from];
+        int[] row = new int[to - from];
+        long version, globalStamp;
+        while (true) {
+            Arrays.fill(remain, this.amountTicket);
+            globalStamp = stamp.get();
+            int stripes = this.slot.stripes();
+            for (int i = 0; i < stripes; i++) {
+                int vIndex = versionIndex(i), offset = rowOffset(i) + from;
+                for (int spins = 0; ; spins++) {
+                    version = (long) ROW_VERSION.getAcquire(this.rowVersion, vIndex);
+                    if ((version & 1) == 0) {
+                        System.arraycopy(this.counterboard, offset, row, 0, to - from);
+                        VarHandle.acquireFence();
+                        if (version == (long) ROW_VERSION.getAcquire(this.rowVersion, vIndex)) {
+                            break;
+                        }
+                    }
+                    backoff(spins);
+                }
+                for (int k = 0; k < row.length; k++) {
+                    remain[k] += row[k];
+                }
+            }
+            if (globalStamp == stamp.get()) {
+                break;
+            }
+            this.inquiryRetries.increment();
+        }
+        return remain;
+    }
+
+    @Override
+    public int[][] inquiryAllRemainTicket() {
+        int[][] result = new int[maxStationnum + 1][maxStationnum + 1];
+        int[] remain = this.sweepRange(0, maxStationnum * (maxStationnum - 1) / 2);
+        for (int d = 1; d < maxStationnum; d++) {
+            // 同一个出发站的各个到站在三角形下标中是连续的
+            System.arraycopy(remain, rangeToTriangleIndex(d, d + 1), result[d], d + 1, maxStationnum - d);
+        }
+        return result;
+    }
+
+    @Override
+    public int[] inquiryRemainTicketFrom(int departure) {
+        int[] result = new int[maxStationnum + 1];
+        if (!this.rangeLegalCheck(departure, departure + 1)) {
+            return result;
+        }
+        int from = rangeToTriangleIndex(departure, departure + 1);
+        int[] remain = this.sweepRange(from, from + maxStationnum - departure);
+        System.arraycopy(remain, 0, result, departure + 1, remain.length);
+        return result;
+    }
+
+    private boolean modifyRange(int departure, int arrival, boolean isBuy, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        if (!this.rangeLegalCheck(departure, arrival)) {
+            return false;
+        }
+        int threadNr = this.lockRow();
+        try {
+            this.updateRow(rowOffset(threadNr), departure, arrival, isBuy, bitmap, seatIndex);
+            stamp.getAndIncrement();
+            return true;
+        } finally {
+            this.unlockRow(threadNr);
+        }
+    }
+
+    // 持有行版本号时调用，逐个检查与 [departure, arrival) 相交的区间
+    protected void updateRow(int offset, int departure, int arrival, boolean isBuy, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        for (int d = 1; d < maxStationnum; d++) {
+            for (int a = d + 1; a <= maxStationnum; a++) {
+                if (d < arrival && a > departure) {
+                    if (bitmap.isRangeOccupied(seatIndex, d, a)) {
+                        continue; // 之前已经记录过了，不需要再修改
+                    }
+                    if (isBuy) {
+                        this.counterboard[offset + rangeToTriangleIndex(d, a)]--;
+                    } else {
+                        this.counterboard[offset + rangeToTriangleIndex(d, a)]++;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean buyRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        return this.modifyRange(departure, arrival, true, bitmap, seatIndex);
+    }
+
+    @Override
+    public boolean refundRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        return this.modifyRange(departure, arrival, false, bitmap, seatIndex);
+    }
+
+    // 整组座位在同一次行加锁里记完，stamp 只推进一次
+    @Override
+    public boolean buyRanges(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int[] seatIndexes) {
+        if (!this.rangeLegalCheck(departure, arrival)) {
+            return false;
+        }
+        int threadNr = this.lockRow();
+        try {
+            for (int seatIndex : seatIndexes) {
+                this.updateRow(rowOffset(threadNr), departure, arrival, true, bitmap, seatIndex);
+            }
+            stamp.getAndIncrement();
+            return true;
+        } finally {
+            this.unlockRow(threadNr);
+        }
+    }
+}
+
+// 不再逐个探测区间，而是由座位在 [departure, arrival) 两侧的最大空闲段 [L, R] 直接算出受影响的区间：
+// 买票前（或退票后）L <= x < arrival、max(x, departure) < y <= R 的区间 (x, y) 正好是空闲状态发生变化的那些，
+// 同一个 x 的这些 y 在三角形下标中是连续的，内层循环只是一段连续内存上的加减
+class SeatLevelFreeRunRemainTicketCounter extends SeatLevelCompactFCStampedRemainTicketCounter {
+
+    SeatLevelFreeRunRemainTicketCounter(int stationnum, int coachnum, int seatnum) {
+        super(stationnum, coachnum, seatnum);
+    }
+
+    protected SeatLevelFreeRunRemainTicketCounter(int stationnum, int coachnum, int seatnum, int maxStripes) {
+        super(stationnum, coachnum, seatnum, maxStripes);
+    }
+
+    @Override
+    protected void updateRow(int offset, int departure, int arrival, boolean isBuy, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        int runStart = bitmap.freeRunStart(seatIndex, departure);
+        int runEnd = bitmap.freeRunEnd(seatIndex, arrival);
+        int delta = isBuy ? -1 : 1;
+        for (int x = runStart; x < arrival; x++) {
+            int from = offset + rangeToTriangleIndex(x, Math.max(x, departure) + 1);
+            int to = offset + rangeToTriangleIndex(x, runEnd);
+            for (int i = from; i <= to; i++) {
+                this.counterboard[i] += delta;
+            }
+        }
+    }
+}
+
+// 查询延迟有上界的计数器
+// FCStamped 的查询在全局 stamp 变化时要整轮重扫，写多的时候查询可能一直重试下去。
+// 这里把全局 stamp 换成一个 epoch 字：低 31 位是正在写的线程数，第 31 位是冻结标志，高 32 位是版本号。
+// - 写者等冻结标志清掉后登记在写人数，登记时恰好被冻结就撤销登记重来；写完在一次原子加里撤销登记并推进版本号
+// - 查询先乐观地读：epoch 里没有在写的线程时扫一遍所有行，前后 epoch 不变即为一致快照
+// - 乐观读失败 OPTIMISTIC_RETRY 次后冻结写入，等已经进入的写者写完再扫一遍，查询最多等待一轮写操作
+// - 冻结标志只有一位，同一时刻只有一个查询能用 CAS 拿到它，再多的并发查询也不会溢出到版本号里；
+//   没拿到的查询先继续乐观读，别人冻结期间写者排空之后 epoch 不变，它们也能读成功
+// - 冻结期间等待的写者、没拿到冻结标志的查询，以及等写者排空的冻结者，短暂自旋之后都停车等待，
+//   由解冻的查询、最后一个离开的写者唤醒；等待的一方不占着 CPU，虚拟线程下冻结者也总能拿回载体线程
+class SeatLevelEpochRemainTicketCounter extends SeatLevelFreeRunRemainTicketCounter {
+    private static final long WRITER_UNIT = 1L;
+    private static final long WRITER_MASK = (1L << 31) - 1;
+    private static final long FREEZE_BIT = 1L << 31;
+    private static final long VERSION_UNIT = 1L << 32;
+    private static final int OPTIMISTIC_RETRY = 4;
+    // 自旋这么多次还在等就停车
+    private static final int SPIN_LIMIT = 64;
+
+    private AtomicLong epoch;
+    // 只在冻结的慢路径上用：解冻和写者排空都 signalAll，等待方醒来自己重查 epoch
+    private final ReentrantLock gate = new ReentrantLock();
+    private final Condition epochChanged = this.gate.newCondition();
+
+    SeatLevelEpochRemainTicketCounter(int stationnum, int coachnum, int seatnum) {
+        super(stationnum, coachnum, seatnum);
+        this.epoch = new AtomicLong(0);
+    }
+
+    // 在读到 epoch 之后调用，之后新启用的行上的写入会让 epoch 校验失败
+    private int sumRows(int index) {
+        int delta = 0;
+        int stripes = this.slot.stripes();
+        for (int i = 0; i < stripes; i++) {
+            delta += this.counterboard[rowOffset(i) + index];
+        }
+        return delta;
+    }
+
+    @Override
+    public int inquiryRemainTicket(int departure, int arrival) {
+        if (!this.rangeLegalCheck(departure, arrival)) {
+            // 区间不合法直接返回0
+            return 0;
+        }
+        int index = rangeToTriangleIndex(departure, arrival);
+        // 版本号没变说明缓存的余票仍然有效；正在写的线程还没有推进版本号，当作发生在这次查询之后
+        if (this.inquiryCache != null) {
+            int cached = this.inquiryCache.get(index, this.epoch.get() >>> 32);
+            if (cached >= 0) {
+                return cached;
+            }
+        }
+        for (int attempt = 0; ; attempt++) {
+            long before = this.epoch.get();
+            if ((before & WRITER_MASK) == 0) {
+                // 别的查询冻结着、写者已经排空时 epoch 不会变，这里也能读成功，不必排队等冻结标志
+                int delta = sumRows(index);
+                VarHandle.acquireFence();
+                if (before == this.epoch.get()) {
+                    if (this.inquiryCache != null) {
+                        this.inquiryCache.put(index, before >>> 32, this.amountTicket + delta);
+                    }
+                    return this.amountTicket + delta;
+                }
+                this.inquiryRetries.increment();
+            }
+            if (attempt < OPTIMISTIC_RETRY) {
+                Thread.onSpinWait();
+                continue;
+            }
+            // 乐观读一直失败，冻结写入
+            if (!this.tryFreeze(before)) {
+                this.awaitThaw(attempt);
+                continue;
+            }
+            try {
+                long frozen = this.drainWriters();
+                // 冻结期间版本号不会再变
+                int remain = this.amountTicket + sumRows(index);
+                if (this.inquiryCache != null) {
+                    this.inquiryCache.put(index, frozen >>> 32, remain);
+                }
+                return remain;
+            } finally {
+                this.thaw();
+            }
+        }
+    }
+
+    // 冻结标志只有一位，别的查询持有时返回 false
+    private boolean tryFreeze(long e) {
+        return (e & FREEZE_BIT) == 0 && this.epoch.compareAndSet(e, e | FREEZE_BIT);
+    }
+
+    // 持有冻结标志时等已经进入的写者写完，返回此时的 epoch；最后一个离开的写者会唤醒这里
+    private long drainWriters() {
+        long frozen;
+        for (int spins = 0; ((frozen = this.epoch.get()) & WRITER_MASK) != 0; spins++) {
+            if (spins < SPIN_LIMIT) {
+                Thread.onSpinWait();
+                continue;
+            }
+            this.gate.lock();
+            try {
+                while (((frozen = this.epoch.get()) & WRITER_MASK) != 0) {
+                    this.epochChanged.awaitUninterruptibly();
+                }
+            } finally {
+                this.gate.unlock();
+            }
+        }
+        return frozen;
+    }
+
+    // 解除冻结并唤醒停车等待的写者和查询
+    private void thaw() {
+        this.epoch.getAndAdd(-FREEZE_BIT);
+        this.signalEpochChanged();
+    }
+
+    private void signalEpochChanged() {
+        this.gate.lock();
+        try {
+            this.epochChanged.signalAll();
+        } finally {
+            this.gate.unlock();
+        }
+    }
+
+    // 冻结标志被别人拿着：先自旋，超过 SPIN_LIMIT 次停车，等解冻后再回去重试
+    private void awaitThaw(int spins) {
+        if (spins < SPIN_LIMIT) {
+            Thread.onSpinWait();
+            return;
+        }
+        this.gate.lock();
+        try {
+            // 在锁里重查，解冻发生在查之后的话解冻者要等这里 await 放开锁才能 signal，不会丢唤醒
+            while ((this.epoch.get() & FREEZE_BIT) != 0) {
+                this.epochChanged.awaitUninterruptibly();
+            }
+        } finally {
+            this.gate.unlock();
+        }
+    }
+
+    // 写者撤销登记：冻结期间最后一个离开的写者唤醒等排空的冻结者
+    private void leaveEpoch(long delta) {
+        long e = this.epoch.getAndAdd(delta);
+        if ((e & FREEZE_BIT) != 0 && (e & WRITER_MASK) == WRITER_UNIT) {
+            this.signalEpochChanged();
+        }
+    }
+
+    private int[] sumRows(int from, int to) {
+        int[] remain = new int[to - from];
+        Arrays.fill(remain, this.amountTicket);
+        int stripes = this.slot.stripes();
+        for (int i = 0; i < stripes; i++) {
+            int offset = rowOffset(i) + from;
+            for (int k = 0; k < remain.length; k++) {
+                remain[k] += this.counterboard[offset + k];
+            }
+        }
+        return remain;
+    }
+
+    // 和单格查询一样先乐观读，失败 OPTIMISTIC_RETRY 次后冻结写入
+    @Override
+    protected int[] sweepRange(int from, int to) {
+        for (int attempt = 0; ; attempt++) {
+            long before = this.epoch.get();
+            if ((before & WRITER_MASK) == 0) {
+                int[] remain = sumRows(from, to);
+                VarHandle.acquireFence();
+                if (before == this.epoch.get()) {
+                    return remain;
+                }
+                this.inquiryRetries.increment();
+            }
+            if (attempt < OPTIMISTIC_RETRY) {
+                Thread.onSpinWait();
+                continue;
+            }
+            if (!this.tryFreeze(before)) {
+                this.awaitThaw(attempt);
+                continue;
+            }
+            try {
+                this.drainWriters();
+                return sumRows(from, to);
+            } finally {
+                this.thaw();
+            }
+        }
+    }
+
+    private void enterEpoch() {
+        for (int spins = 0; ; spins++) {
+            // 先看一眼冻结标志再登记：冻结期间登记又撤销的写者会让持有标志的查询一直等不到写者排空
+            while ((this.epoch.get() & FREEZE_BIT) != 0) {
+                this.awaitThaw(spins++);
+            }
+            if ((this.epoch.getAndAdd(WRITER_UNIT) & FREEZE_BIT) == 0) {
+                return;
+            }
+            // 登记时恰好有查询冻结了写入，撤销登记，等冻结解除再来
+            this.leaveEpoch(-WRITER_UNIT);
+        }
+    }
+
+    private boolean modifyRange(int departure, int arrival, boolean isBuy, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        if (!this.rangeLegalCheck(departure, arrival)) {
+            return false;
+        }
+        this.enterEpoch();
+        int threadNr = this.lockRow();
+        try {
+            this.updateRow(rowOffset(threadNr), departure, arrival, isBuy, bitmap, seatIndex);
+            return true;
+        } finally {
+            this.unlockRow(threadNr);
+            // 撤销登记并推进版本号
+            this.leaveEpoch(VERSION_UNIT - WRITER_UNIT);
+        }
+    }
+
+    // 整组座位只登记一次、推进一次版本号
+    @Override
+    public boolean buyRanges(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int[] seatIndexes) {
+        if (!this.rangeLegalCheck(departure, arrival)) {
+            return false;
+        }
+        this.enterEpoch();
+        int threadNr = this.lockRow();
+        try {
+            for (int seatIndex : seatIndexes) {
+                this.updateRow(rowOffset(threadNr), departure, arrival, true, bitmap, seatIndex);
+            }
+            return true;
+        } finally {
+            this.unlockRow(threadNr);
+            this.leaveEpoch(VERSION_UNIT - WRITER_UNIT);
+        }
+    }
+
+    @Override
+    public boolean buyRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        return this.modifyRange(departure, arrival, true, bitmap, seatIndex);
+    }
+
+    @Override
+    public boolean refundRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        return this.modifyRange(departure, arrival, false, bitmap, seatIndex);
+    }
+}
+
+// 单线程使用的计数器，只有一行，不加锁也不做版本校验
+// 给平坦合并的合并者用：所有买票、退票、查询都由同一时刻唯一的合并者执行
+class SeatLevelSequentialRemainTicketCounter extends SeatLevelFreeRunRemainTicketCounter {
+
+    SeatLevelSequentialRemainTicketCounter(int stationnum, int coachnum, int seatnum) {
+        super(stationnum, coachnum, seatnum, 1);
+        // 只有合并者读写，查询本来就只读一格，不需要缓存
+        this.inquiryCache = null;
+    }
+
+    @Override
+    public int inquiryRemainTicket(int departure, int arrival) {
+        if (!this.rangeLegalCheck(departure, arrival)) {
+            // 区间不合法直接返回0
+            return 0;
+        }
+        return this.amountTicket + this.counterboard[rowOffset(0) + rangeToTriangleIndex(departure, arrival)];
+    }
+
+    @Override
+    protected int[] sweepRange(int from, int to) {
+        int[] remain = new int[to - from];
+        int offset = rowOffset(0) + from;
+        for (int k = 0; k < remain.length; k++) {
+            remain[k] = this.amountTicket + this.counterboard[offset + k];
+        }
+        return remain;
+    }
+
+    @Override
+    public boolean buyRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        if (!this.rangeLegalCheck(departure, arrival)) {
+            return false;
+        }
+        this.updateRow(rowOffset(0), departure, arrival, true, bitmap, seatIndex);
+        return true;
+    }
+
+    @Override
+    public boolean refundRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        if (!this.rangeLegalCheck(departure, arrival)) {
+            return false;
+        }
+        this.updateRow(rowOffset(0), departure, arrival, false, bitmap, seatIndex);
+        return true;
+    }
+
+    @Override
+    public boolean buyRanges(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int[] seatIndexes) {
+        if (!this.rangeLegalCheck(departure, arrival)) {
+            return false;
+        }
+        for (int seatIndex : seatIndexes) {
+            this.updateRow(rowOffset(0), departure, arrival, true, bitmap, seatIndex);
+        }
+        return true;
+    }
+}
+
+// 查询结果缓存，每个区间一格
+// 格里把计数器的修改版本号（高 32 位）和余票（低 32 位）装进同一个 long，一次读取就拿到配对的版本号和值：
+// 版本号和计数器当前的一致说明这期间没有写入，直接返回；不一致就照常扫描，再把新的版本号和值写回去。
+// 写者不碰缓存，旧格子在下一次查询时自然被覆盖。命中只比普通查询多一次数组读，不写任何共享内存；
+// 只有未命中时累加 LongAdder，反正接下来要整行扫描。命中次数由调用方用查询总数减去未命中次数得到。
+// 用 -Dticketing.inquiryCache=false 关闭
+final class InquiryCache {
+    private static final VarHandle ENTRIES = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final long EMPTY = -1L; // 余票部分为负，永远不会命中
+
+    private final long[] entries;
+    private final LongAdder misses = new LongAdder();
+
+    private InquiryCache(int rangeCount) {
+        this.entries = new long[rangeCount];
+        Arrays.fill(this.entries, EMPTY);
+    }
+
+    static InquiryCache create(int rangeCount) {
+        return Boolean.parseBoolean(System.getProperty("ticketing.inquiryCache", "true")) ? new InquiryCache(rangeCount) : null;
+    }
+
+    // 命中时返回余票，否则返回 -1；version 只比较低 32 位
+    int get(int index, long version) {
+        long entry = (long) ENTRIES.getOpaque(this.entries, index);
+        if ((entry >>> 32) == (version & 0xFFFFFFFFL) && (int) entry >= 0) {
+            return (int) entry;
+        }
+        this.misses.increment();
+        return -1;
+    }
+
+    // remain 必须是计数器处于 version 时的一致结果
+    void put(int index, long version, int remain) {
+        long entry = (version << 32) | (remain & 0xFFFFFFFFL);
+        // 同一版本下其他查询可能已经写过了，不再重复写这条缓存行
+        if ((long) ENTRIES.getOpaque(this.entries, index) != entry) {
+            ENTRIES.setOpaque(this.entries, index, entry);
+        }
+    }
+
+    long getMisses() {
+        return this.misses.sum();
+    }
+}
+
+// 找座起点的提示：买票、退票时和计数器一样收到通知，找座前给出从哪个座位开始找
+// 返回值可能超出座位总数，调用方要对座位总数取模
+abstract class TrainSeatHint extends TrainRemainTicketCounter {
+
+    public abstract int hintSeatIndex(int departure, int arrival);
+
+    @Override
+    public int inquiryRemainTicket(int departure, int arrival) {
+        return 0;
+    }
+}
+
+// 随机起点，不维护任何状态，最省内存
+class RandomSeatHint extends TrainSeatHint {
+    private int seatAmount;
+
+    RandomSeatHint(int stationnum, int coachnum, int seatnum, int threadnum) {
+        this.maxStationnum = stationnum;
+        this.seatAmount = coachnum * seatnum;
+    }
+
+    @Override
+    public boolean buyRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        return true;
+    }
+
+    @Override
+    public boolean refundRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        return true;
+    }
+
+    @Override
+    public int hintSeatIndex(int departure, int arrival) {
+        return ThreadLocalRandom.current().nextInt(this.seatAmount);
+    }
+}
+
+// 按车厢统计余票，找座从余票最多的车厢里随机一个座位开始
+// 各车厢的计数放在同一个数组里，不同座位锁下的线程会同时修改同一个车厢的计数，用原子加更新
+class CoachLevelRemainTicketHint extends TrainSeatHint {
+    private static final VarHandle COUNTERS = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private int[] counterboard;
+    private int rangeCount;
     private int amountTicket;
     private int coachnum;
     private int seatnum;
     private int seatAmount;
-    private ThreadLocalRandom rand;
     CoachLevelRemainTicketHint(int stationnum, int coachnum, int seatnum, int threadnum) {
         this.maxStationnum = stationnum;
-        int rangeCount = stationnum * stationnum; // 这里浪费了一半内存
+        this.rangeCount = stationnum * stationnum; // 这里浪费了一半内存
         this.amountTicket = coachnum * seatnum;
         this.coachnum = coachnum;
         this.seatnum = seatnum;
         this.seatAmount = coachnum * seatnum;
-        this.counterboard = new int[coachnum][rangeCount];
-        this.rand = ThreadLocalRandom.current();
-        for (int i = 0; i < coachnum; i++) {
-            for(int j=0; j < rangeCount; j++)
-                this.counterboard[i][j] = amountTicket;
-        }
+        this.counterboard = new int[coachnum * this.rangeCount];
+        Arrays.fill(this.counterboard, amountTicket);
     }
-    private boolean modifyRange(int departure, int arrival, boolean isBuy, Seat seat, int seatIndex) {
+    private boolean modifyRange(int departure, int arrival, boolean isBuy, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
         if (!this.rangeLegalCheck(departure, arrival)) {
             return false;
         }
-        int coachIndex = seatIndex / this.seatnum;
+        int offset = seatIndex / this.seatnum * this.rangeCount;
+        int delta = isBuy ? -1 : 1;
         for (int d = 1; d < maxStationnum; d++) {
             for (int a = d + 1; a <= maxStationnum; a++) {
-                if (!rangeLegalCheck(d, a)) {
-                    continue;
-                }
                 if (d < arrival && a > departure) {
-                    if (seat.isRangeOccupied(d, a)) {
+                    if (bitmap.isRangeOccupied(seatIndex, d, a)) {
                         continue; // 之前已经记录过了，不需要再修改
                     }
-                    if (isBuy) {
-                        this.counterboard[coachIndex][rangeToIndex(d, a)]--;
-                    } else {
-                        this.counterboard[coachIndex][rangeToIndex(d, a)]++;
-                    }
+                    COUNTERS.getAndAdd(this.counterboard, offset + rangeToIndex(d, a), delta);
                 }
             }
         }
         return true;
     }
 
-    public boolean buyRange(int departure, int arrival, Seat seat, int seatIndex) {
-        return this.modifyRange(departure, arrival, true, seat, seatIndex);
+    @Override
+    public boolean buyRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        return this.modifyRange(departure, arrival, true, bitmap, seatIndex);
     }
 
-    public boolean refundRange(int departure, int arrival, Seat seat, int seatIndex) {
-        return this.modifyRange(departure, arrival, false, seat, seatIndex);
+    @Override
+    public boolean refundRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        return this.modifyRange(departure, arrival, false, bitmap, seatIndex);
     }
 
+    @Override
     public int hintSeatIndex(int departure, int arrival){
-        int coachStartPoint = this.rand.nextInt(this.coachnum);
+        // ThreadLocalRandom 必须在使用它的线程里取，不能存在字段里共用
+        ThreadLocalRandom rand = ThreadLocalRandom.current();
+        int coachStartPoint = rand.nextInt(this.coachnum);
         int coachIndex, coachRemain;
         int maxRemain=-10, maxRemainCoach=0;
+        int index = rangeToIndex(departure, arrival);
         for(int i=0; i<this.coachnum; i++){
             coachIndex = (coachStartPoint + i)%this.coachnum;
-            coachRemain = this.counterboard[coachIndex][rangeToIndex(departure, arrival)];
+            coachRemain = (int) COUNTERS.getOpaque(this.counterboard, coachIndex * this.rangeCount + index);
             if(coachRemain > maxRemain){
                 // 这个车厢这个区间有空座
                 maxRemain = coachRemain;
                 maxRemainCoach = coachIndex;
             }
         }
-        return maxRemainCoach * this.seatnum + this.rand.nextInt(this.seatnum << 1);
-        // 什么？都没有空座？
-        // return this.rand.nextInt(this.seatAmount);
+        // 起点落在选中的车厢里
+        return maxRemainCoach * this.seatnum + rand.nextInt(this.seatnum);
+    }
+}
+
+// 按区间贴合程度挑座位
+// 在找到的空座里选 [departure, arrival) 两侧剩余空闲段最短的：正好填满一段空闲时不留碎片，长的空闲段留给长途票。
+// 每个调用方按探针从整列车的某条缓存行开始看，起点按缓存行对齐，并发买票的调用方认领的占用字多半落在不同的缓存行上。
+// 只读位图、不维护计数，线程安全；读到的位图可能稍旧，买票时照常加锁确认
+class BestFitSeatHint extends TrainSeatHint {
+    private static final int SCAN_WINDOW = 128; // 每次最多比较这么多个座位
+    private static final int LINE_SEATS = 8; // 紧凑位图一条缓存行放 8 个座位的占用字
+
+    private TrainSeatOccupiedBitmap bitmap;
+    private int seatAmount;
+
+    BestFitSeatHint(int stationnum, int coachnum, int seatnum, TrainSeatOccupiedBitmap bitmap) {
+        this.maxStationnum = stationnum;
+        this.bitmap = bitmap;
+        this.seatAmount = coachnum * seatnum;
     }
 
     @Override
-    public int inquiryRemainTicket(int departure, int arrival) {
-        return 0;
+    public boolean buyRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        return true;
     }
 
     @Override
-    public boolean buyRange(int departure, int arrival, Seat seat) {
-        return false;
+    public boolean refundRange(int departure, int arrival, TrainSeatOccupiedBitmap bitmap, int seatIndex) {
+        return true;
     }
 
     @Override
-    public boolean refundRange(int departure, int arrival, Seat seat) {
-        return false;
+    public int hintSeatIndex(int departure, int arrival) {
+        // 起点按探针散列到整列车的各条缓存行上，和计数器选条带一样按调用方分散，不按 threadnum 分段
+        int start = StripedSlot.index((this.seatAmount + LINE_SEATS - 1) / LINE_SEATS) * LINE_SEATS;
+        int window = Math.min(SCAN_WINDOW, this.seatAmount);
+        int end = Math.min(start + window, this.seatAmount);
+        int best = -1, bestWaste = Integer.MAX_VALUE;
+        for (int pass = 0; pass < 2 && bestWaste > 0; pass++) {
+            // 窗口超出末尾的部分绕回开头
+            int from = pass == 0 ? start : 0;
+            int to = pass == 0 ? end : window - (end - start);
+            for (int seatIndex = this.bitmap.nextFreeSeat(departure, arrival, from, to);
+                 seatIndex >= 0;
+                 seatIndex = this.bitmap.nextFreeSeat(departure, arrival, seatIndex + 1, to)) {
+                int waste = (departure - this.bitmap.freeRunStart(seatIndex, departure))
+                        + (this.bitmap.freeRunEnd(seatIndex, arrival) - arrival);
+                if (waste < bestWaste) {
+                    best = seatIndex;
+                    bestWaste = waste;
+                    if (waste == 0) {
+                        break;
+                    }
+                }
+            }
+        }
+        // 窗口里没有空座，从窗口后面接着找
+        return best >= 0 ? best : (start + window) % this.seatAmount;
     }
-}
\ No newline at end of file
+}
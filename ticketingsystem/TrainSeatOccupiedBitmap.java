@@ -1,17 +1,19 @@
 package ticketingsystem;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 对每个座位、每个区间的占用情况进行建模
  */
-public class TrainSeatOccupiedBitmap {
-    protected Seat[] allSeats;
+abstract public class TrainSeatOccupiedBitmap {
     protected int seatAmount; // 用于遍历全车找座位
     protected int threadnum;
+    protected int stationnum;
     TrainSeatOccupiedBitmap(int stationnum, int coachnum, int seatnum, int threadnum){
-        this.allSeats = new Seat[coachnum * seatnum];
         this.seatAmount = coachnum * seatnum;
+        this.stationnum = stationnum;
         this.threadnum = threadnum;
     }
 
@@ -19,13 +21,88 @@ public class TrainSeatOccupiedBitmap {
         return this.seatAmount;
     }
 
+    // 等认领标志时的退避，和计数器的一样：每 64 次让出一次 CPU，持有者可能没拿到 CPU，
+    // 虚拟线程让出时还会把载体线程交给持有者
+    protected static void backoff(int spins){
+        if ((spins & 63) == 63) {
+            Thread.yield();
+        } else {
+            Thread.onSpinWait();
+        }
+    }
+
+    // 按座位下标访问占用情况，计数器只依赖这三个方法，不关心座位的存储方式
+    abstract public boolean isRangeOccupied(int seatIndex, int departure, int arrival);
+
+    abstract public void occupyRange(int seatIndex, int departure, int arrival);
+
+    abstract public void releaseRange(int seatIndex, int departure, int arrival);
+
+    // 座位从 departure 往前连续空闲的最早车站，调用方需持有座位
+    abstract public int freeRunStart(int seatIndex, int departure);
+
+    // 座位从 arrival 往后连续空闲的最远车站，调用方需持有座位
+    abstract public int freeRunEnd(int seatIndex, int arrival);
+
+    // 返回 [fromIndex, toIndex) 中第一个在 [departure, arrival) 上空闲的座位，没有则返回 -1
+    // 不加锁读，结果可能稍旧，调用方锁住座位后要再确认一次
+    public int nextFreeSeat(int departure, int arrival, int fromIndex, int toIndex){
+        for (int seatIndex = fromIndex; seatIndex < toIndex; seatIndex++) {
+            if (!this.isRangeOccupied(seatIndex, departure, arrival)) {
+                return seatIndex;
+            }
+        }
+        return -1;
+    }
+
+    abstract public boolean tryLockSeat(int seatIndex);
+
+    abstract public void lockSeat(int seatIndex);
+
+    abstract public void unlockSeat(int seatIndex);
+}
+
+// 每个座位一个 Seat 对象的占用表，AdptGra 系列和 CAS 实现在买票、退票时直接拿 Seat 操作
+abstract class SeatBackedTrainSeatOccupiedBitmap extends TrainSeatOccupiedBitmap {
+    protected Seat[] allSeats;
+
+    SeatBackedTrainSeatOccupiedBitmap(int stationnum, int coachnum, int seatnum, int threadnum){
+        super(stationnum, coachnum, seatnum, threadnum);
+        this.allSeats = new Seat[this.seatAmount];
+        for(int i=0; i < coachnum; i++){
+            for(int j=0; j < seatnum; j++){
+                allSeats[i * seatnum + j] = new Seat(stationnum);
+            }
+        }
+    }
+
     public Seat pickSeatAtIndex(int seatIndex){
         return this.allSeats[seatIndex];
     }
+
+    public boolean isRangeOccupied(int seatIndex, int departure, int arrival){
+        return this.allSeats[seatIndex].isRangeOccupied(departure, arrival);
+    }
+
+    public void occupyRange(int seatIndex, int departure, int arrival){
+        this.allSeats[seatIndex].occupyRange(departure, arrival);
+    }
+
+    public void releaseRange(int seatIndex, int departure, int arrival){
+        this.allSeats[seatIndex].releaseRange(departure, arrival);
+    }
+
+    public int freeRunStart(int seatIndex, int departure){
+        return Seat.freeRunStart(this.allSeats[seatIndex].occupiedBitmap, departure);
+    }
+
+    public int freeRunEnd(int seatIndex, int arrival){
+        return Seat.freeRunEnd(this.allSeats[seatIndex].occupiedBitmap, arrival, this.stationnum);
+    }
 }
 
 // 根据线程数自动调节的
-class AdaptiveGranularityTrainSeatOccupiedBitmap extends TrainSeatOccupiedBitmap {
+class AdaptiveGranularityTrainSeatOccupiedBitmap extends SeatBackedTrainSeatOccupiedBitmap {
 
     private final int SEAT_FACTOR = 1; // 多少个座位共用一把锁
     private int locknum;
@@ -34,11 +111,6 @@ class AdaptiveGranularityTrainSeatOccupiedBitmap extends TrainSeatOccupiedBitmap
         super(stationnum, coachnum, seatnum, threadnum);
         this.locknum = this.seatAmount / SEAT_FACTOR + 1;
         this.locks = new ReentrantLock[this.locknum];
-        for(int i=0; i < coachnum; i++){
-            for(int j=0; j < seatnum; j++){
-                allSeats[i * seatnum + j] = new Seat(stationnum);
-            }
-        }
         for(int i=0; i < this.locknum; i++){
             this.locks[i] =  new ReentrantLock();
         }
@@ -60,4 +132,290 @@ class AdaptiveGranularityTrainSeatOccupiedBitmap extends TrainSeatOccupiedBitmap
         this.getLockOfSeat(seatIndex).unlock();
     }
 
-}
\ No newline at end of file
+}
+
+// 用 CAS 认领座位，代替每个座位一把 ReentrantLock
+// 占用字的最高位作为认领标志，maskMap 中的区间位永远不会用到这一位
+class CASTrainSeatOccupiedBitmap extends SeatBackedTrainSeatOccupiedBitmap {
+
+    static final long CLAIM_BIT = 1L << 63;
+    private static final VarHandle OCCUPIED_BITMAP;
+
+    static {
+        try {
+            OCCUPIED_BITMAP = MethodHandles.lookup().findVarHandle(Seat.class, "occupiedBitmap", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    CASTrainSeatOccupiedBitmap(int stationnum, int coachnum, int seatnum, int threadnum){
+        super(stationnum, coachnum, seatnum, threadnum);
+    }
+
+    // 区间空闲时用一次 CAS 认领座位，区间已被占用则返回 false
+    public boolean tryLockFreeRange(int seatIndex, int departure, int arrival){
+        Seat seat = this.allSeats[seatIndex];
+        long word;
+        for (int spins = 0; ; spins++) {
+            word = (long) OCCUPIED_BITMAP.getVolatile(seat);
+            if ((word & Seat.maskMap[departure][arrival]) != 0) {
+                return false;
+            }
+            if ((word & CLAIM_BIT) != 0) {
+                // 其他线程正在修改这个座位的其他区间，很快就会放手
+                backoff(spins);
+                continue;
+            }
+            if (OCCUPIED_BITMAP.compareAndSet(seat, word, word | CLAIM_BIT)) {
+                return true;
+            }
+        }
+    }
+
+    public boolean tryLockSeat(int seatIndex){
+        Seat seat = this.allSeats[seatIndex];
+        long word = (long) OCCUPIED_BITMAP.getVolatile(seat);
+        return (word & CLAIM_BIT) == 0 && OCCUPIED_BITMAP.compareAndSet(seat, word, word | CLAIM_BIT);
+    }
+
+    public void lockSeat(int seatIndex){
+        for (int spins = 0; !this.tryLockSeat(seatIndex); spins++) {
+            backoff(spins);
+        }
+    }
+
+    public void unlockSeat(int seatIndex){
+        // 认领期间只有自己会写这个字，普通读即可；release 写保证修改先于放手可见
+        Seat seat = this.allSeats[seatIndex];
+        OCCUPIED_BITMAP.setRelease(seat, seat.occupiedBitmap & ~CLAIM_BIT);
+    }
+}
+
+// 整列车的占用字紧凑地放在一个 long[] 里，不再为每个座位创建 Seat 对象
+// 扫描空座时顺序访问连续内存；认领方式与 CASTrainSeatOccupiedBitmap 相同
+// 不超过 64 个车站时每个座位一个字；更长的线路每个座位占 wordsPerSeat 个字，
+// 每个字存 63 个区段，认领标志只用第一个字的最高位
+class PackedTrainSeatOccupiedBitmap extends TrainSeatOccupiedBitmap {
+
+    static final long CLAIM_BIT = 1L << 63;
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    protected long[] occupiedBitmap;
+    protected long[][] maskMap; // 仅单字路径使用
+    protected int wordsPerSeat;
+
+    PackedTrainSeatOccupiedBitmap(int stationnum, int coachnum, int seatnum, int threadnum){
+        super(stationnum, coachnum, seatnum, threadnum);
+        this.wordsPerSeat = Math.max(1, (stationnum - 1 + Seat.SEGMENTS_PER_WORD - 1) / Seat.SEGMENTS_PER_WORD);
+        this.occupiedBitmap = new long[this.seatAmount * this.wordsPerSeat];
+        if (this.wordsPerSeat == 1) {
+            this.maskMap = Seat.buildMaskMap(stationnum);
+        }
+    }
+
+    @Override
+    public boolean isRangeOccupied(int seatIndex, int departure, int arrival){
+        if (this.wordsPerSeat == 1) {
+            return (this.maskMap[departure][arrival] & this.occupiedBitmap[seatIndex]) != 0;
+        }
+        int base = seatIndex * this.wordsPerSeat;
+        int from = departure - 1, to = arrival - 1;
+        for (int k = from / Seat.SEGMENTS_PER_WORD; k <= (to - 1) / Seat.SEGMENTS_PER_WORD; k++) {
+            if ((this.occupiedBitmap[base + k] & wordMask(k, from, to)) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void occupyRange(int seatIndex, int departure, int arrival){
+        if (this.wordsPerSeat == 1) {
+            this.occupiedBitmap[seatIndex] |= this.maskMap[departure][arrival];
+            return;
+        }
+        int base = seatIndex * this.wordsPerSeat;
+        int from = departure - 1, to = arrival - 1;
+        for (int k = from / Seat.SEGMENTS_PER_WORD; k <= (to - 1) / Seat.SEGMENTS_PER_WORD; k++) {
+            this.occupiedBitmap[base + k] |= wordMask(k, from, to);
+        }
+    }
+
+    @Override
+    public void releaseRange(int seatIndex, int departure, int arrival){
+        if (this.wordsPerSeat == 1) {
+            this.occupiedBitmap[seatIndex] &= ~this.maskMap[departure][arrival];
+            return;
+        }
+        int base = seatIndex * this.wordsPerSeat;
+        int from = departure - 1, to = arrival - 1;
+        for (int k = from / Seat.SEGMENTS_PER_WORD; k <= (to - 1) / Seat.SEGMENTS_PER_WORD; k++) {
+            this.occupiedBitmap[base + k] &= ~wordMask(k, from, to);
+        }
+    }
+
+    @Override
+    public int freeRunStart(int seatIndex, int departure){
+        if (this.wordsPerSeat == 1) {
+            return Seat.freeRunStart(this.occupiedBitmap[seatIndex], departure);
+        }
+        int start = departure;
+        while (start > 1 && !this.isRangeOccupied(seatIndex, start - 1, start)) {
+            start--;
+        }
+        return start;
+    }
+
+    @Override
+    public int freeRunEnd(int seatIndex, int arrival){
+        if (this.wordsPerSeat == 1) {
+            return Seat.freeRunEnd(this.occupiedBitmap[seatIndex], arrival, this.stationnum);
+        }
+        int end = arrival;
+        while (end < this.stationnum && !this.isRangeOccupied(seatIndex, end, end + 1)) {
+            end++;
+        }
+        return end;
+    }
+
+    // 区段 [from, to) 落在第 k 个字里的部分
+    private static long wordMask(int k, int from, int to) {
+        int wordStart = k * Seat.SEGMENTS_PER_WORD;
+        return Seat.segmentMask(Math.max(from, wordStart) - wordStart,
+                Math.min(to, wordStart + Seat.SEGMENTS_PER_WORD) - wordStart);
+    }
+
+    // 区间空闲时用一次 CAS 认领座位，区间已被占用则返回 false
+    public boolean tryLockFreeRange(int seatIndex, int departure, int arrival){
+        if (this.wordsPerSeat > 1) {
+            return this.tryLockFreeRangeMultiWord(seatIndex, departure, arrival);
+        }
+        long mask = this.maskMap[departure][arrival];
+        long word;
+        for (int spins = 0; ; spins++) {
+            word = (long) WORDS.getVolatile(this.occupiedBitmap, seatIndex);
+            if ((word & mask) != 0) {
+                return false;
+            }
+            if ((word & CLAIM_BIT) != 0) {
+                // 其他线程正在修改这个座位的其他区间，很快就会放手
+                backoff(spins);
+                continue;
+            }
+            if (WORDS.compareAndSet(this.occupiedBitmap, seatIndex, word, word | CLAIM_BIT)) {
+                return true;
+            }
+        }
+    }
+
+    // 多字路径：区间跨越多个字，只能先认领第一个字，再在认领状态下确认整个区间
+    private boolean tryLockFreeRangeMultiWord(int seatIndex, int departure, int arrival){
+        int base = seatIndex * this.wordsPerSeat;
+        long word;
+        for (int spins = 0; ; spins++) {
+            if (this.isRangeOccupied(seatIndex, departure, arrival)) {
+                return false;
+            }
+            word = (long) WORDS.getVolatile(this.occupiedBitmap, base);
+            if ((word & CLAIM_BIT) != 0) {
+                backoff(spins);
+                continue;
+            }
+            if (WORDS.compareAndSet(this.occupiedBitmap, base, word, word | CLAIM_BIT)) {
+                if (this.isRangeOccupied(seatIndex, departure, arrival)) {
+                    this.unlockSeat(seatIndex);
+                    return false;
+                }
+                return true;
+            }
+        }
+    }
+
+    public boolean tryLockSeat(int seatIndex){
+        int base = seatIndex * this.wordsPerSeat;
+        long word = (long) WORDS.getVolatile(this.occupiedBitmap, base);
+        return (word & CLAIM_BIT) == 0 && WORDS.compareAndSet(this.occupiedBitmap, base, word, word | CLAIM_BIT);
+    }
+
+    public void lockSeat(int seatIndex){
+        for (int spins = 0; !this.tryLockSeat(seatIndex); spins++) {
+            backoff(spins);
+        }
+    }
+
+    public void unlockSeat(int seatIndex){
+        int base = seatIndex * this.wordsPerSeat;
+        WORDS.setRelease(this.occupiedBitmap, base, this.occupiedBitmap[base] & ~CLAIM_BIT);
+    }
+}
+
+// 在紧凑占用字之外，再按区段维护一份转置的空座位图：
+// freeSeats[w * segmentnum + s] 的第 k 位表示座位 w * 64 + k 在区段 s 上空闲
+// 找 [departure, arrival) 的空座只需把 (arrival - departure) 个字按位与，再取最低位
+class TransposedTrainSeatOccupiedBitmap extends PackedTrainSeatOccupiedBitmap {
+
+    private static final VarHandle FREE_SEATS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    protected long[] freeSeats;
+    protected int segmentnum; // 区段数 = 车站数 - 1
+    protected int wordnum;    // 每个区段的座位位图占多少个 long
+
+    TransposedTrainSeatOccupiedBitmap(int stationnum, int coachnum, int seatnum, int threadnum){
+        super(stationnum, coachnum, seatnum, threadnum);
+        this.segmentnum = stationnum - 1;
+        this.wordnum = (this.seatAmount + 63) >>> 6;
+        this.freeSeats = new long[this.wordnum * this.segmentnum];
+        for (int w = 0; w < this.wordnum; w++) {
+            // 最后一个字里超出座位总数的位永远不能置 1
+            long valid = (w == this.wordnum - 1 && (this.seatAmount & 63) != 0) ? (1L << (this.seatAmount & 63)) - 1 : -1L;
+            for (int s = 0; s < this.segmentnum; s++) {
+                this.freeSeats[w * this.segmentnum + s] = valid;
+            }
+        }
+    }
+
+    @Override
+    public void occupyRange(int seatIndex, int departure, int arrival){
+        super.occupyRange(seatIndex, departure, arrival);
+        // 同一个字里的其他座位可能正被其他线程修改，必须原子地清位
+        long clear = ~(1L << (seatIndex & 63));
+        int base = (seatIndex >>> 6) * this.segmentnum;
+        for (int s = departure - 1; s < arrival - 1; s++) {
+            FREE_SEATS.getAndBitwiseAnd(this.freeSeats, base + s, clear);
+        }
+    }
+
+    @Override
+    public void releaseRange(int seatIndex, int departure, int arrival){
+        super.releaseRange(seatIndex, departure, arrival);
+        long set = 1L << (seatIndex & 63);
+        int base = (seatIndex >>> 6) * this.segmentnum;
+        for (int s = departure - 1; s < arrival - 1; s++) {
+            FREE_SEATS.getAndBitwiseOr(this.freeSeats, base + s, set);
+        }
+    }
+
+    // 返回 [fromIndex, toIndex) 中第一个在 [departure, arrival) 上空闲的座位，没有则返回 -1
+    // 读到的位图可能稍旧，调用方仍需用 tryLockFreeRange 确认
+    @Override
+    public int nextFreeSeat(int departure, int arrival, int fromIndex, int toIndex){
+        if (fromIndex >= toIndex) {
+            return -1;
+        }
+        int lastWord = (toIndex - 1) >>> 6;
+        long free = -1L << (fromIndex & 63); // 第一个字里 fromIndex 之前的座位不算
+        for (int w = fromIndex >>> 6; w <= lastWord; w++) {
+            int base = w * this.segmentnum;
+            for (int s = departure - 1; s < arrival - 1 && free != 0; s++) {
+                free &= this.freeSeats[base + s];
+            }
+            if (free != 0) {
+                int seatIndex = (w << 6) + Long.numberOfTrailingZeros(free);
+                return seatIndex < toIndex ? seatIndex : -1;
+            }
+            free = -1L;
+        }
+        return -1;
+    }
+}
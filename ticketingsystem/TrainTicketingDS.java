@@ -1,9 +1,15 @@
 package ticketingsystem;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.ArrayList;
-import java.util.Random;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -11,19 +17,21 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 abstract public class TrainTicketingDS {
 
-    protected ArrayList<ArrayList<ConcurrentHashMap<Long, Ticket>>> coachTicketRecord;
+    protected SoldTicketTable soldTickets;
     protected TrainRemainTicketCounter remainCounter;
     protected TrainSeatOccupiedBitmap bitmap;
-    protected CoachLevelRemainTicketHint hinter;
+    protected TrainSeatHint hinter;
     protected int trainNr;
-    protected ThreadLocal<Random> rnd;
     protected int stationnum;
     protected int coachnum;
     protected int seatnumPerCoach;
     protected int threadnum;
     protected int seatnumPerThread;
-
-    final protected static Ticket firedTicket = new Ticket();
+    // 竞争统计，只在等锁、抢座失败这些慢路径上累加，供自适应切换参考
+    protected LongAdder lockWaitNanos = new LongAdder();
+    protected LongAdder extraScans = new LongAdder();
+    // 买票时看过的候选座位数，每次买票累加一次
+    protected LongAdder seatProbes = new LongAdder();
 
     TrainTicketingDS(int trainNr, int coachnum, int seatnum, int stationnum, int threadnum) {
         this.trainNr = trainNr;
@@ -32,37 +40,43 @@ abstract public class TrainTicketingDS {
         this.seatnumPerCoach = seatnum;
         this.threadnum = threadnum;
         this.seatnumPerThread = (seatnum * coachnum) / threadnum;
-        // 模拟每节车厢列车员的换票本
-        this.coachTicketRecord = new ArrayList<>(coachnum);
-        for (int i = 0; i < coachnum; i++) {
-            this.coachTicketRecord.add(new ArrayList<>());
-            for(int j = 0; j < seatnum; j++) {
-                this.coachTicketRecord.get(i).add(new ConcurrentHashMap<>());
-            }
-        }
-        this.firedTicket.tid = -1;
-        this.rnd = new ThreadLocal<>();
+        // 模拟列车员的换票本，每个座位每个出发站一格
+        this.soldTickets = new SoldTicketTable(coachnum * seatnum, stationnum);
+    }
+
+    public Ticket buyTicket(String passenger, int departure, int arrival) {
+        return this.buyTicket(null, passenger, departure, arrival);
     }
 
-    abstract public Ticket buyTicket(String passenger, int departure, int arrival);
+    // 出票写进调用方给的 into，into 为 null 时新建一张；买不到返回 null，into 不动
+    // into 在退票之前都归售票表所有，调用方不能改它，退票成功后才能拿去买下一张
+    abstract public Ticket buyTicket(Ticket into, String passenger, int departure, int arrival);
 
     abstract public int inquiry(int departure, int arrival);
 
     abstract public boolean refundTicket(Ticket ticket);
 
+    // 整张余票表 result[departure][arrival]，计数器一次扫描、一次快照校验得到
+    public int[][] inquiryAll() {
+        return this.remainCounter.inquiryAllRemainTicket();
+    }
+
+    // 从 departure 出发到后面各站的余票 result[arrival]
+    public int[] inquiryFrom(int departure) {
+        return this.remainCounter.inquiryRemainTicketFrom(departure);
+    }
+
+    // ThreadLocalRandom 的状态存在线程对象里，虚拟线程也不会留下 ThreadLocal 条目
     protected int randomSeatIndex() {
-        Random rnd = this.rnd.get();
-        if (rnd == null) {
-            rnd = new Random();
-            this.rnd.set(rnd);
-        }
-        return rnd.nextInt(this.bitmap.getSeatAmount());
+        return ThreadLocalRandom.current().nextInt(this.bitmap.getSeatAmount());
     }
 
     protected int getThreadSeatIndex() {
-        return ((int) Thread.currentThread().getId() % threadnum) * seatnumPerThread;
+        return StripedSlot.index(threadnum) * seatnumPerThread;
     }
 
+    // tid = 线路 | 车厢 | 座位 | 出发站 | 槽位出票序号
+    // 同一个（座位，出发站）槽位同一时刻只有一个主人，序号由它递增，tid 天然不重复，不用再查表确认
     static final class TidComponent {
         public static final int ROUTE_BIT = 8;
         public static final int ROUTE_MASK = 0xFF;
@@ -72,47 +86,225 @@ abstract public class TrainTicketingDS {
         public static final int SEAT_MASK = 0xFFFF;
         public static final int STATION_BIT = 8;
         public static final int STATION_MASK = 0xFF;
-        public static final int TIMESTAMP_BIT = 16;
-        public static final int TIMESTAMP_MASK = 0xFFFF;
+        public static final int SEQUENCE_BIT = 24;
+        public static final int SEQUENCE_MASK = 0xFFFFFF;
 
         private TidComponent() {
         }
     }
 
+    // 调用时座位的 [departure, arrival) 必须已经被当前线程占住、票还没有放进售票表
     protected long generateTid(Ticket ticketWithoutTid) {
-        long tid;
-        while (true) {
-            tid = 0;
-            tid += ticketWithoutTid.route & TidComponent.ROUTE_MASK;
+        int seatIndex = (ticketWithoutTid.coach - 1) * this.seatnumPerCoach + ticketWithoutTid.seat - 1;
+        long tid = 0;
+        tid += ticketWithoutTid.route & TidComponent.ROUTE_MASK;
+
+        tid = tid << TidComponent.COACH_BIT;
+        tid += ticketWithoutTid.coach & TidComponent.COACH_MASK;
+
+        tid = tid << TidComponent.SEAT_BIT;
+        tid += ticketWithoutTid.seat & TidComponent.SEAT_MASK;
+
+        tid = tid << TidComponent.STATION_BIT;
+        tid += ticketWithoutTid.departure & TidComponent.STATION_MASK;
+
+        tid = tid << TidComponent.SEQUENCE_BIT;
+        tid += this.soldTickets.nextSequence(seatIndex, ticketWithoutTid.departure) & TidComponent.SEQUENCE_MASK;
+        return tid;
+    }
+
+    // 先试一次锁，拿不到再计时阻塞等待，没有竞争时不读时钟
+    protected void lockSeatTimed(int seatIndex) {
+        if (!this.bitmap.tryLockSeat(seatIndex)) {
+            long waitStart = System.nanoTime();
+            this.bitmap.lockSeat(seatIndex);
+            this.lockWaitNanos.add(System.nanoTime() - waitStart);
+        }
+    }
 
-            tid = tid << TidComponent.COACH_BIT;
-            tid += ticketWithoutTid.coach & TidComponent.COACH_MASK;
+    // 热路径探针，供 TicketingMetrics 拉取，都是自创建以来的累计值
+    long getSeatProbes() {
+        return this.seatProbes.sum();
+    }
 
-            tid = tid << TidComponent.SEAT_BIT;
-            tid += ticketWithoutTid.seat & TidComponent.SEAT_MASK;
+    // 抢座失败：加锁或认领之后发现座位已经被占，团体购票整组重试也算
+    long getRecheckFailures() {
+        return this.extraScans.sum();
+    }
 
-            tid = tid << TidComponent.STATION_BIT;
-            tid += ticketWithoutTid.departure & TidComponent.STATION_MASK;
+    long getLockWaitNanos() {
+        return this.lockWaitNanos.sum();
+    }
 
-            tid = tid << TidComponent.STATION_BIT;
-            tid += ticketWithoutTid.arrival & TidComponent.STATION_MASK;
+    // 查询因为并发写入而重读的次数
+    long getInquiryRetries() {
+        return this.remainCounter.getInquiryRetries();
+    }
 
-            tid = tid << TidComponent.TIMESTAMP_BIT;
-            tid += System.currentTimeMillis() & TidComponent.TIMESTAMP_MASK;
+    protected boolean isLegalRange(int departure, int arrival) {
+        return !(departure < 1 || arrival > this.stationnum || (arrival - departure) <= 0);
+    }
 
-            // 再加个随机数
-            // tid += this.rnd.get().nextInt() & TidComponent.TIMESTAMP_MASK;
+    // 为 count 人挑座位，从 startSeat 所在的车厢开始看：优先同一节车厢里相邻的座位，其次同一节车厢，最后不限车厢
+    // 不加锁读位图，返回按下标升序排好的座位，调用方锁住后要再确认；空座不够时返回 null
+    protected int[] pickGroupSeats(int count, int departure, int arrival, int startSeat) {
+        int startCoach = startSeat / this.seatnumPerCoach;
+        int[] sameCoach = null;
+        int[] anySeats = new int[count];
+        int anyFound = 0;
+        int[] coachSeats = new int[Math.min(count, this.seatnumPerCoach)];
+        for (int i = 0; i < this.coachnum; i++) {
+            int base = ((startCoach + i) % this.coachnum) * this.seatnumPerCoach;
+            int found = 0, run = 0, last = -1;
+            for (int seatIndex = this.bitmap.nextFreeSeat(departure, arrival, base, base + this.seatnumPerCoach);
+                 seatIndex >= 0;
+                 seatIndex = this.bitmap.nextFreeSeat(departure, arrival, seatIndex + 1, base + this.seatnumPerCoach)) {
+                run = seatIndex == last + 1 ? run + 1 : 1;
+                last = seatIndex;
+                if (run == count) {
+                    int[] seats = new int[count];
+                    for (int k = 0; k < count; k++) {
+                        seats[k] = seatIndex - count + 1 + k;
+                    }
+                    return seats;
+                }
+                if (found < coachSeats.length) {
+                    coachSeats[found++] = seatIndex;
+                }
+                if (anyFound < count) {
+                    anySeats[anyFound++] = seatIndex;
+                }
+            }
+            if (sameCoach == null && found == count) {
+                sameCoach = coachSeats.clone();
+            }
+        }
+        int[] seats = sameCoach != null ? sameCoach : (anyFound == count ? anySeats : null);
+        if (seats != null) {
+            // 车厢是绕回着看的，加锁前要排成升序
+            Arrays.sort(seats);
+        }
+        return seats;
+    }
 
-            if (!this.coachTicketRecord.get(ticketWithoutTid.coach - 1).get(ticketWithoutTid.seat - 1).containsKey(tid)) {
-                // 确认是否冲突
+    // 团体购票：为每位乘客各买一张同区间的票，要么全部买到，要么一张都不买，空座不够时返回 null
+    // 挑好的座位按下标升序逐个 tryLock，拿不到就全部放开重来，持有座位时从不等待别人；
+    // 锁齐后确认都还空着，计数器对整组座位只更新一次；有座位在挑完之后被抢走就重新挑
+    public Ticket[] buyTickets(String[] passengers, int departure, int arrival) {
+        int count = passengers.length;
+        if (count == 0 || count > this.bitmap.getSeatAmount() || !isLegalRange(departure, arrival)) {
+            return null;
+        }
+        int startSeat = this.hinter == null ? 0 : this.hinter.hintSeatIndex(departure, arrival) % this.bitmap.getSeatAmount();
+        int[] seats;
+        while (true) {
+            seats = this.pickGroupSeats(count, departure, arrival, startSeat);
+            if (seats == null) {
+                return null;
+            }
+            int locked = 0;
+            boolean success = true, busy = false;
+            try {
+                while (locked < count) {
+                    if (!this.bitmap.tryLockSeat(seats[locked])) {
+                        success = false;
+                        busy = true;
+                        break;
+                    }
+                    locked++;
+                    if (this.bitmap.isRangeOccupied(seats[locked - 1], departure, arrival)) {
+                        success = false;
+                        break;
+                    }
+                }
+                if (success) {
+                    this.remainCounter.buyRanges(departure, arrival, this.bitmap, seats);
+                    if (this.hinter != null) {
+                        this.hinter.buyRanges(departure, arrival, this.bitmap, seats);
+                    }
+                    for (int seatIndex : seats) {
+                        this.bitmap.occupyRange(seatIndex, departure, arrival);
+                    }
+                }
+            } finally {
+                for (int i = 0; i < locked; i++) {
+                    this.bitmap.unlockSeat(seats[i]);
+                }
+            }
+            if (success) {
                 break;
             }
+            this.extraScans.increment();
+            if (busy) {
+                // 持有者可能没有拿到 CPU，让出去
+                Thread.yield();
+            }
         }
-        return tid;
+        return this.issueTickets(passengers, departure, arrival, seats);
     }
 
-    protected boolean isLegalRange(int departure, int arrival) {
-        return !(departure < 1 || arrival > this.stationnum || (arrival - departure) <= 0);
+    // 座位都已占上，逐张出票并记进售票表
+    protected Ticket[] issueTickets(String[] passengers, int departure, int arrival, int[] seats) {
+        Ticket[] tickets = new Ticket[seats.length];
+        for (int i = 0; i < seats.length; i++) {
+            tickets[i] = this.issueTicket(null, passengers[i], departure, arrival, seats[i]);
+        }
+        return tickets;
+    }
+
+    // 座位已经占上，出票（写进 into，为 null 时新建）并记进售票表
+    protected Ticket issueTicket(Ticket into, String passenger, int departure, int arrival, int seatIndex) {
+        Ticket ticket = into == null ? new Ticket() : into;
+        ticket.passenger = passenger;
+        ticket.route = this.trainNr;
+        ticket.coach = seatIndex / this.seatnumPerCoach + 1; // 车厢
+        ticket.seat = seatIndex % this.seatnumPerCoach + 1; // 座位都是要+1的，从1开始
+        ticket.departure = departure;
+        ticket.arrival = arrival;
+        ticket.tid = this.generateTid(ticket);
+        // 记录售出的票（用于退票验证）
+        this.soldTickets.put(seatIndex, ticket);
+        return ticket;
+    }
+
+    // 把一张已经售出的票原样装进本列车，迁移或恢复时用，调用期间不能有并发的买票、退票
+    void restoreTicket(Ticket ticket) {
+        int seatIndex = (ticket.coach - 1) * this.seatnumPerCoach + ticket.seat - 1;
+        this.remainCounter.buyRange(ticket.departure, ticket.arrival, this.bitmap, seatIndex);
+        if (this.hinter != null) {
+            this.hinter.buyRange(ticket.departure, ticket.arrival, this.bitmap, seatIndex);
+        }
+        this.bitmap.occupyRange(seatIndex, ticket.departure, ticket.arrival);
+        this.soldTickets.put(seatIndex, ticket);
+    }
+
+    // 按日志里见过的一张票推进出票序号，不论这张票后来有没有退，调用期间不能有并发的买票、退票
+    void restoreSequence(Ticket ticket) {
+        int seatIndex = (ticket.coach - 1) * this.seatnumPerCoach + ticket.seat - 1;
+        this.soldTickets.raiseSequence(seatIndex, ticket.departure, (int) (ticket.tid & TidComponent.SEQUENCE_MASK));
+    }
+
+    // 当前实际记账的售票表，写快照时读
+    SoldTicketTable soldTicketTable() {
+        return this.soldTickets;
+    }
+
+    // 接管另一列车上所有没退的票和出票序号，调用期间两列车都不能有并发操作
+    void takeOver(TrainTicketingDS other) {
+        SoldTicketTable sold = other.soldTickets;
+        for (int i = 0; i < sold.capacity(); i++) {
+            Ticket ticket = sold.getSlot(i);
+            if (ticket != null) {
+                this.restoreTicket(ticket);
+            }
+        }
+        this.soldTickets.copySequences(sold);
+        this.soldTickets.setRefundLog(sold.refundLog());
+    }
+
+    // 退票记日志的回调，交给售票表在摘票之后、放座位之前调用，见 SoldTicketTable.setRefundLog
+    void setRefundLog(Consumer<Ticket> log) {
+        this.soldTickets.setRefundLog(log);
     }
 }
 
@@ -124,7 +316,7 @@ class AdptGraAtomicTrainTicketingDS extends TrainTicketingDS {
         this.remainCounter = new SeatLevelAtomicRemainTicketCounter(stationnum, coachnum, seatnum);
     }
 
-    public Ticket buyTicket(String passenger, int departure, int arrival) {
+    public Ticket buyTicket(Ticket into, String passenger, int departure, int arrival) {
         AdaptiveGranularityTrainSeatOccupiedBitmap bitmap = (AdaptiveGranularityTrainSeatOccupiedBitmap) this.bitmap;
         //System.out.printf("开始购票 列车：%d 乘客：%s，出发：%d，到站：%d \n", this.trainNr, passenger, departure, arrival);
         // 检查区间是否合法
@@ -137,9 +329,11 @@ class AdptGraAtomicTrainTicketingDS extends TrainTicketingDS {
         int seatIndex = 0;
         Seat currentSeat = null;
         boolean success = false;
+        int probes = 0;
         for (int i = 0; i < bitmap.getSeatAmount(); i++) {
             // 当前尝试的座位 index
             seatIndex = (seatStartPoint + i) % bitmap.getSeatAmount();
+            probes++;
             // 当前尝试的座位实例
             currentSeat = bitmap.pickSeatAtIndex(seatIndex);
             // 检查区间是否可用
@@ -148,16 +342,17 @@ class AdptGraAtomicTrainTicketingDS extends TrainTicketingDS {
                 continue;
             }
             // 尝试获取锁，锁定座位所在区间
-            bitmap.lockSeat(seatIndex);
+            this.lockSeatTimed(seatIndex);
 
             try {
                 // 现在没有人会来争抢，再次检查座位是否还空着
                 if (currentSeat.isRangeOccupied(departure, arrival)) {
                     // 在检查到加锁期间，座位已经被占了，看下一个
+                    this.extraScans.increment();
                     continue;
                 }
                 // 很好，座位还是空的，赶紧占上
-                this.remainCounter.buyRange(departure, arrival, currentSeat);
+                this.remainCounter.buyRange(departure, arrival, bitmap, seatIndex);
                 currentSeat.occupyRange(departure, arrival);
                 // 标记购票成功
                 success = true;
@@ -167,12 +362,13 @@ class AdptGraAtomicTrainTicketingDS extends TrainTicketingDS {
                 bitmap.unlockSeat(seatIndex);
             }
         }
+        this.seatProbes.add(probes);
         // 看过所有座位，没有发现可用空座，那么本次购票失败
         if (!success) {
             return null;
         }
         // 执行到此处：已经成功锁定席位，开始出票
-        Ticket ticket = new Ticket();
+        Ticket ticket = into == null ? new Ticket() : into;
         ticket.passenger = passenger;
         ticket.route = this.trainNr;
         ticket.coach = seatIndex / this.seatnumPerCoach + 1; // 车厢
@@ -180,8 +376,8 @@ class AdptGraAtomicTrainTicketingDS extends TrainTicketingDS {
         ticket.departure = departure;
         ticket.arrival = arrival;
         ticket.tid = this.generateTid(ticket);
-        // 使用并发hash记录票出售的情况（用于退票验证）
-        this.coachTicketRecord.get(ticket.coach - 1).get(ticket.seat - 1).put(ticket.tid, ticket);
+        // 记录售出的票（用于退票验证）
+        this.soldTickets.put(seatIndex, ticket);
         //System.out.printf("成功购票<%s> 列车：%d 乘客：%s，出发：%d，到站：%d \n", ticket.tid, this.trainNr, passenger, departure, arrival);
         return ticket;
     }
@@ -198,24 +394,23 @@ class AdptGraAtomicTrainTicketingDS extends TrainTicketingDS {
             // 防止 coach 越界
             return false;
         }
-        Ticket ticketRecord = this.coachTicketRecord.get(ticket.coach - 1).get(ticket.seat - 1).get(ticket.tid);
-        if (ticketRecord == null || ticketRecord == firedTicket || !ticketRecord.equals(ticket)) {
+        // coach 和 seat 都是加了1的一定要小心！
+        int seatIndex = (ticket.coach - 1) * seatnumPerCoach + ticket.seat - 1;
+        // 先把票从售票表里摘掉，同一张票并发退两次只有一次摘得掉
+        if (!this.soldTickets.remove(seatIndex, ticket)) {
             return false;
         }
         // 运行到此处，票面是合法的，确实存在这样的一张票
-        // coach 和 seat 都是加了1的一定要小心！
-        int seatIndex = (ticketRecord.coach - 1) * seatnumPerCoach + ticketRecord.seat - 1;
-        Seat currentSeat = this.bitmap.pickSeatAtIndex(seatIndex);
+        Ticket ticketRecord = ticket;
+        Seat currentSeat = bitmap.pickSeatAtIndex(seatIndex);
         // 获取操作区间的锁
-        bitmap.lockSeat(seatIndex);
+        this.lockSeatTimed(seatIndex);
         try {
             currentSeat.releaseRange(ticketRecord.departure, ticketRecord.arrival);
-            this.remainCounter.refundRange(ticketRecord.departure, ticketRecord.arrival, currentSeat);
+            this.remainCounter.refundRange(ticketRecord.departure, ticketRecord.arrival, bitmap, seatIndex);
         } finally {
             bitmap.unlockSeat(seatIndex);
         }
-        // 将记录置为空，防止tid重复
-        this.coachTicketRecord.get(ticket.coach - 1).get(ticket.seat - 1).replace(ticketRecord.tid, firedTicket);
         //System.out.printf("成功退票<%s> 列车：%d 乘客：%s，出发：%d，到站：%d \n", ticket.tid, this.trainNr, ticket.passenger, ticket.departure, ticket.arrival);
         return true;
     }
@@ -230,7 +425,7 @@ class AdptGraLongAdderTrainTicketingDS extends TrainTicketingDS {
         this.remainCounter = new SeatLevelLongAdderRemainTicketCounter(stationnum, coachnum, seatnum);
     }
 
-    public Ticket buyTicket(String passenger, int departure, int arrival) {
+    public Ticket buyTicket(Ticket into, String passenger, int departure, int arrival) {
         AdaptiveGranularityTrainSeatOccupiedBitmap bitmap = (AdaptiveGranularityTrainSeatOccupiedBitmap) this.bitmap;
         //System.out.printf("开始购票 列车：%d 乘客：%s，出发：%d，到站：%d \n", this.trainNr, passenger, departure, arrival);
         // 检查区间是否合法
@@ -243,9 +438,11 @@ class AdptGraLongAdderTrainTicketingDS extends TrainTicketingDS {
         int seatIndex = 0;
         Seat currentSeat = null;
         boolean success = false;
+        int probes = 0;
         for (int i = 0; i < bitmap.getSeatAmount(); i++) {
             // 当前尝试的座位 index
             seatIndex = (seatStartPoint + i) % bitmap.getSeatAmount();
+            probes++;
             // 当前尝试的座位实例
             currentSeat = bitmap.pickSeatAtIndex(seatIndex);
             // 检查区间是否可用
@@ -254,16 +451,17 @@ class AdptGraLongAdderTrainTicketingDS extends TrainTicketingDS {
                 continue;
             }
             // 尝试获取锁，锁定座位所在区间
-            bitmap.lockSeat(seatIndex);
+            this.lockSeatTimed(seatIndex);
 
             try {
                 // 现在没有人会来争抢，再次检查座位是否还空着
                 if (currentSeat.isRangeOccupied(departure, arrival)) {
                     // 在检查到加锁期间，座位已经被占了，看下一个
+                    this.extraScans.increment();
                     continue;
                 }
                 // 很好，座位还是空的，赶紧占上
-                this.remainCounter.buyRange(departure, arrival, currentSeat);
+                this.remainCounter.buyRange(departure, arrival, bitmap, seatIndex);
                 currentSeat.occupyRange(departure, arrival);
                 // 标记购票成功
                 success = true;
@@ -273,12 +471,13 @@ class AdptGraLongAdderTrainTicketingDS extends TrainTicketingDS {
                 bitmap.unlockSeat(seatIndex);
             }
         }
+        this.seatProbes.add(probes);
         // 看过所有座位，没有发现可用空座，那么本次购票失败
         if (!success) {
             return null;
         }
         // 执行到此处：已经成功锁定席位，开始出票
-        Ticket ticket = new Ticket();
+        Ticket ticket = into == null ? new Ticket() : into;
         ticket.passenger = passenger;
         ticket.route = this.trainNr;
         ticket.coach = seatIndex / this.seatnumPerCoach + 1; // 车厢
@@ -286,8 +485,8 @@ class AdptGraLongAdderTrainTicketingDS extends TrainTicketingDS {
         ticket.departure = departure;
         ticket.arrival = arrival;
         ticket.tid = this.generateTid(ticket);
-        // 使用并发hash记录票出售的情况（用于退票验证）
-        this.coachTicketRecord.get(ticket.coach - 1).get(ticket.seat - 1).put(ticket.tid, ticket);
+        // 记录售出的票（用于退票验证）
+        this.soldTickets.put(seatIndex, ticket);
         //System.out.printf("成功购票<%s> 列车：%d 乘客：%s，出发：%d，到站：%d \n", ticket.tid, this.trainNr, passenger, departure, arrival);
         return ticket;
     }
@@ -304,24 +503,23 @@ class AdptGraLongAdderTrainTicketingDS extends TrainTicketingDS {
             // 防止 coach 越界
             return false;
         }
-        Ticket ticketRecord = this.coachTicketRecord.get(ticket.coach - 1).get(ticket.seat - 1).get(ticket.tid);
-        if (ticketRecord == null || ticketRecord == firedTicket || !ticketRecord.equals(ticket)) {
+        // coach 和 seat 都是加了1的一定要小心！
+        int seatIndex = (ticket.coach - 1) * seatnumPerCoach + ticket.seat - 1;
+        // 先把票从售票表里摘掉，同一张票并发退两次只有一次摘得掉
+        if (!this.soldTickets.remove(seatIndex, ticket)) {
             return false;
         }
         // 运行到此处，票面是合法的，确实存在这样的一张票
-        // coach 和 seat 都是加了1的一定要小心！
-        int seatIndex = (ticketRecord.coach - 1) * seatnumPerCoach + ticketRecord.seat - 1;
-        Seat currentSeat = this.bitmap.pickSeatAtIndex(seatIndex);
+        Ticket ticketRecord = ticket;
+        Seat currentSeat = bitmap.pickSeatAtIndex(seatIndex);
         // 获取操作区间的锁
-        bitmap.lockSeat(seatIndex);
+        this.lockSeatTimed(seatIndex);
         try {
             currentSeat.releaseRange(ticketRecord.departure, ticketRecord.arrival);
-            this.remainCounter.refundRange(ticketRecord.departure, ticketRecord.arrival, currentSeat);
+            this.remainCounter.refundRange(ticketRecord.departure, ticketRecord.arrival, bitmap, seatIndex);
         } finally {
             bitmap.unlockSeat(seatIndex);
         }
-        // 将记录置为空，防止tid重复
-        this.coachTicketRecord.get(ticket.coach - 1).get(ticket.seat - 1).replace(ticketRecord.tid, firedTicket);
         //System.out.printf("成功退票<%s> 列车：%d 乘客：%s，出发：%d，到站：%d \n", ticket.tid, this.trainNr, ticket.passenger, ticket.departure, ticket.arrival);
         return true;
     }
@@ -335,7 +533,7 @@ class AdptGraReadWriteTrainTicketingDS extends TrainTicketingDS {
         this.remainCounter = new SeatLevelReadWriteRemainTicketCounter(stationnum, coachnum, seatnum);
     }
 
-    public Ticket buyTicket(String passenger, int departure, int arrival) {
+    public Ticket buyTicket(Ticket into, String passenger, int departure, int arrival) {
         AdaptiveGranularityTrainSeatOccupiedBitmap bitmap = (AdaptiveGranularityTrainSeatOccupiedBitmap) this.bitmap;
         //System.out.printf("开始购票 列车：%d 乘客：%s，出发：%d，到站：%d \n", this.trainNr, passenger, departure, arrival);
         // 检查区间是否合法
@@ -348,9 +546,11 @@ class AdptGraReadWriteTrainTicketingDS extends TrainTicketingDS {
         int seatIndex = 0;
         Seat currentSeat = null;
         boolean success = false;
+        int probes = 0;
         for (int i = 0; i < bitmap.getSeatAmount(); i++) {
             // 当前尝试的座位 index
             seatIndex = (seatStartPoint + i) % bitmap.getSeatAmount();
+            probes++;
             // 当前尝试的座位实例
             currentSeat = bitmap.pickSeatAtIndex(seatIndex);
             // 检查区间是否可用
@@ -359,16 +559,17 @@ class AdptGraReadWriteTrainTicketingDS extends TrainTicketingDS {
                 continue;
             }
             // 尝试获取锁，锁定座位所在区间
-            bitmap.lockSeat(seatIndex);
+            this.lockSeatTimed(seatIndex);
 
             try {
                 // 现在没有人会来争抢，再次检查座位是否还空着
                 if (currentSeat.isRangeOccupied(departure, arrival)) {
                     // 在检查到加锁期间，座位已经被占了，看下一个
+                    this.extraScans.increment();
                     continue;
                 }
                 // 很好，座位还是空的，赶紧占上
-                this.remainCounter.buyRange(departure, arrival, currentSeat);
+                this.remainCounter.buyRange(departure, arrival, bitmap, seatIndex);
                 currentSeat.occupyRange(departure, arrival);
                 // 标记购票成功
                 success = true;
@@ -378,12 +579,13 @@ class AdptGraReadWriteTrainTicketingDS extends TrainTicketingDS {
                 bitmap.unlockSeat(seatIndex);
             }
         }
+        this.seatProbes.add(probes);
         // 看过所有座位，没有发现可用空座，那么本次购票失败
         if (!success) {
             return null;
         }
         // 执行到此处：已经成功锁定席位，开始出票
-        Ticket ticket = new Ticket();
+        Ticket ticket = into == null ? new Ticket() : into;
         ticket.passenger = passenger;
         ticket.route = this.trainNr;
         ticket.coach = seatIndex / this.seatnumPerCoach + 1; // 车厢
@@ -391,8 +593,8 @@ class AdptGraReadWriteTrainTicketingDS extends TrainTicketingDS {
         ticket.departure = departure;
         ticket.arrival = arrival;
         ticket.tid = this.generateTid(ticket);
-        // 使用并发hash记录票出售的情况（用于退票验证）
-        this.coachTicketRecord.get(ticket.coach - 1).get(ticket.seat - 1).put(ticket.tid, ticket);
+        // 记录售出的票（用于退票验证）
+        this.soldTickets.put(seatIndex, ticket);
         //System.out.printf("成功购票<%s> 列车：%d 乘客：%s，出发：%d，到站：%d \n", ticket.tid, this.trainNr, passenger, departure, arrival);
         return ticket;
     }
@@ -409,24 +611,23 @@ class AdptGraReadWriteTrainTicketingDS extends TrainTicketingDS {
             // 防止 coach 越界
             return false;
         }
-        Ticket ticketRecord = this.coachTicketRecord.get(ticket.coach - 1).get(ticket.seat - 1).get(ticket.tid);
-        if (ticketRecord == null || ticketRecord == firedTicket || !ticketRecord.equals(ticket)) {
+        // coach 和 seat 都是加了1的一定要小心！
+        int seatIndex = (ticket.coach - 1) * seatnumPerCoach + ticket.seat - 1;
+        // 先把票从售票表里摘掉，同一张票并发退两次只有一次摘得掉
+        if (!this.soldTickets.remove(seatIndex, ticket)) {
             return false;
         }
         // 运行到此处，票面是合法的，确实存在这样的一张票
-        // coach 和 seat 都是加了1的一定要小心！
-        int seatIndex = (ticketRecord.coach - 1) * seatnumPerCoach + ticketRecord.seat - 1;
-        Seat currentSeat = this.bitmap.pickSeatAtIndex(seatIndex);
+        Ticket ticketRecord = ticket;
+        Seat currentSeat = bitmap.pickSeatAtIndex(seatIndex);
         // 获取操作区间的锁
-        bitmap.lockSeat(seatIndex);
+        this.lockSeatTimed(seatIndex);
         try {
             currentSeat.releaseRange(ticketRecord.departure, ticketRecord.arrival);
-            this.remainCounter.refundRange(ticketRecord.departure, ticketRecord.arrival, currentSeat);
+            this.remainCounter.refundRange(ticketRecord.departure, ticketRecord.arrival, bitmap, seatIndex);
         } finally {
             bitmap.unlockSeat(seatIndex);
         }
-        // 将记录置为空，防止tid重复
-        this.coachTicketRecord.get(ticket.coach - 1).get(ticket.seat - 1).replace(ticketRecord.tid, firedTicket);
         //System.out.printf("成功退票<%s> 列车：%d 乘客：%s，出发：%d，到站：%d \n", ticket.tid, this.trainNr, ticket.passenger, ticket.departure, ticket.arrival);
         return true;
     }
@@ -437,10 +638,10 @@ class AdptGraFCTrainTicketingDS extends TrainTicketingDS {
     AdptGraFCTrainTicketingDS(int trainNr, int coachnum, int seatnum, int stationnum, int threadnum) {
         super(trainNr, coachnum, seatnum, stationnum, threadnum);
         this.bitmap = new AdaptiveGranularityTrainSeatOccupiedBitmap(stationnum, coachnum, seatnum, threadnum);
-        this.remainCounter = new SeatLevelFCRemainTicketCounter(stationnum, coachnum, seatnum, threadnum);
+        this.remainCounter = new SeatLevelFCRemainTicketCounter(stationnum, coachnum, seatnum);
     }
 
-    public Ticket buyTicket(String passenger, int departure, int arrival) {
+    public Ticket buyTicket(Ticket into, String passenger, int departure, int arrival) {
         AdaptiveGranularityTrainSeatOccupiedBitmap bitmap = (AdaptiveGranularityTrainSeatOccupiedBitmap) this.bitmap;
         //System.out.printf("开始购票 列车：%d 乘客：%s，出发：%d，到站：%d \n", this.trainNr, passenger, departure, arrival);
         // 检查区间是否合法
@@ -453,9 +654,11 @@ class AdptGraFCTrainTicketingDS extends TrainTicketingDS {
         int seatIndex = 0;
         Seat currentSeat = null;
         boolean success = false;
+        int probes = 0;
         for (int i = 0; i < bitmap.getSeatAmount(); i++) {
             // 当前尝试的座位 index
             seatIndex = (seatStartPoint + i) % bitmap.getSeatAmount();
+            probes++;
             // 当前尝试的座位实例
             currentSeat = bitmap.pickSeatAtIndex(seatIndex);
             // 检查区间是否可用
@@ -464,16 +667,17 @@ class AdptGraFCTrainTicketingDS extends TrainTicketingDS {
                 continue;
             }
             // 尝试获取锁，锁定座位所在区间
-            bitmap.lockSeat(seatIndex);
+            this.lockSeatTimed(seatIndex);
 
             try {
                 // 现在没有人会来争抢，再次检查座位是否还空着
                 if (currentSeat.isRangeOccupied(departure, arrival)) {
                     // 在检查到加锁期间，座位已经被占了，看下一个
+                    this.extraScans.increment();
                     continue;
                 }
                 // 很好，座位还是空的，赶紧占上
-                this.remainCounter.buyRange(departure, arrival, currentSeat);
+                this.remainCounter.buyRange(departure, arrival, bitmap, seatIndex);
                 currentSeat.occupyRange(departure, arrival);
                 // 标记购票成功
                 success = true;
@@ -483,12 +687,13 @@ class AdptGraFCTrainTicketingDS extends TrainTicketingDS {
                 bitmap.unlockSeat(seatIndex);
             }
         }
+        this.seatProbes.add(probes);
         // 看过所有座位，没有发现可用空座，那么本次购票失败
         if (!success) {
             return null;
         }
         // 执行到此处：已经成功锁定席位，开始出票
-        Ticket ticket = new Ticket();
+        Ticket ticket = into == null ? new Ticket() : into;
         ticket.passenger = passenger;
         ticket.route = this.trainNr;
         ticket.coach = seatIndex / this.seatnumPerCoach + 1; // 车厢
@@ -496,8 +701,8 @@ class AdptGraFCTrainTicketingDS extends TrainTicketingDS {
         ticket.departure = departure;
         ticket.arrival = arrival;
         ticket.tid = this.generateTid(ticket);
-        // 使用并发hash记录票出售的情况（用于退票验证）
-        this.coachTicketRecord.get(ticket.coach - 1).get(ticket.seat - 1).put(ticket.tid, ticket);
+        // 记录售出的票（用于退票验证）
+        this.soldTickets.put(seatIndex, ticket);
         //System.out.printf("成功购票<%s> 列车：%d 乘客：%s，出发：%d，到站：%d \n", ticket.tid, this.trainNr, passenger, departure, arrival);
         return ticket;
     }
@@ -514,24 +719,23 @@ class AdptGraFCTrainTicketingDS extends TrainTicketingDS {
             // 防止 coach 越界
             return false;
         }
-        Ticket ticketRecord = this.coachTicketRecord.get(ticket.coach - 1).get(ticket.seat - 1).get(ticket.tid);
-        if (ticketRecord == null || ticketRecord == firedTicket || !ticketRecord.equals(ticket)) {
+        // coach 和 seat 都是加了1的一定要小心！
+        int seatIndex = (ticket.coach - 1) * seatnumPerCoach + ticket.seat - 1;
+        // 先把票从售票表里摘掉，同一张票并发退两次只有一次摘得掉
+        if (!this.soldTickets.remove(seatIndex, ticket)) {
             return false;
         }
         // 运行到此处，票面是合法的，确实存在这样的一张票
-        // coach 和 seat 都是加了1的一定要小心！
-        int seatIndex = (ticketRecord.coach - 1) * seatnumPerCoach + ticketRecord.seat - 1;
-        Seat currentSeat = this.bitmap.pickSeatAtIndex(seatIndex);
+        Ticket ticketRecord = ticket;
+        Seat currentSeat = bitmap.pickSeatAtIndex(seatIndex);
         // 获取操作区间的锁
-        bitmap.lockSeat(seatIndex);
+        this.lockSeatTimed(seatIndex);
         try {
             currentSeat.releaseRange(ticketRecord.departure, ticketRecord.arrival);
-            this.remainCounter.refundRange(ticketRecord.departure, ticketRecord.arrival, currentSeat);
+            this.remainCounter.refundRange(ticketRecord.departure, ticketRecord.arrival, bitmap, seatIndex);
         } finally {
             bitmap.unlockSeat(seatIndex);
         }
-        // 将记录置为空，防止tid重复
-        this.coachTicketRecord.get(ticket.coach - 1).get(ticket.seat - 1).replace(ticketRecord.tid, firedTicket);
         //System.out.printf("成功退票<%s> 列车：%d 乘客：%s，出发：%d，到站：%d \n", ticket.tid, this.trainNr, ticket.passenger, ticket.departure, ticket.arrival);
         return true;
     }
@@ -542,11 +746,11 @@ class AdptGraFCStampedTrainTicketingDS extends TrainTicketingDS {
     AdptGraFCStampedTrainTicketingDS(int trainNr, int coachnum, int seatnum, int stationnum, int threadnum) {
         super(trainNr, coachnum, seatnum, stationnum, threadnum);
         this.bitmap = new AdaptiveGranularityTrainSeatOccupiedBitmap(stationnum, coachnum, seatnum, threadnum);
-        this.remainCounter = new SeatLevelFCStampedRemainTicketCounter(stationnum, coachnum, seatnum, threadnum);
+        this.remainCounter = new SeatLevelFCStampedRemainTicketCounter(stationnum, coachnum, seatnum);
         this.hinter = new CoachLevelRemainTicketHint(stationnum, coachnum, seatnum, threadnum);
     }
 
-    public Ticket buyTicket(String passenger, int departure, int arrival) {
+    public Ticket buyTicket(Ticket into, String passenger, int departure, int arrival) {
         AdaptiveGranularityTrainSeatOccupiedBitmap bitmap = (AdaptiveGranularityTrainSeatOccupiedBitmap) this.bitmap;
         //System.out.printf("开始购票 列车：%d 乘客：%s，出发：%d，到站：%d \n", this.trainNr, passenger, departure, arrival);
         // 检查区间是否合法
@@ -559,9 +763,11 @@ class AdptGraFCStampedTrainTicketingDS extends TrainTicketingDS {
         int seatIndex = 0;
         Seat currentSeat = null;
         boolean success = false;
+        int probes = 0;
         for (int i = 0; i < bitmap.getSeatAmount(); i++) {
             // 当前尝试的座位 index
             seatIndex = (seatStartPoint + i) % bitmap.getSeatAmount();
+            probes++;
             // 当前尝试的座位实例
             currentSeat = bitmap.pickSeatAtIndex(seatIndex);
             // 检查区间是否可用
@@ -570,18 +776,19 @@ class AdptGraFCStampedTrainTicketingDS extends TrainTicketingDS {
                 continue;
             }
             // 尝试获取锁，锁定座位所在区间
-            bitmap.lockSeat(seatIndex);
+            this.lockSeatTimed(seatIndex);
 
             try {
                 // 现在没有人会来争抢，再次检查座位是否还空着
                 if (currentSeat.isRangeOccupied(departure, arrival)) {
                     // 在检查到加锁期间，座位已经被占了，看下一个
+                    this.extraScans.increment();
                     continue;
                 }
                 // 很好，座位还是空的，赶紧占上
-                this.remainCounter.buyRange(departure, arrival, currentSeat);
+                this.remainCounter.buyRange(departure, arrival, bitmap, seatIndex);
                 // 更新hinter
-                this.hinter.buyRange(departure, arrival, currentSeat, seatIndex);
+                this.hinter.buyRange(departure, arrival, bitmap, seatIndex);
                 currentSeat.occupyRange(departure, arrival);
                 // 标记购票成功
                 success = true;
@@ -591,12 +798,13 @@ class AdptGraFCStampedTrainTicketingDS extends TrainTicketingDS {
                 bitmap.unlockSeat(seatIndex);
             }
         }
+        this.seatProbes.add(probes);
         // 看过所有座位，没有发现可用空座，那么本次购票失败
         if (!success) {
             return null;
         }
         // 执行到此处：已经成功锁定席位，开始出票
-        Ticket ticket = new Ticket();
+        Ticket ticket = into == null ? new Ticket() : into;
         ticket.passenger = passenger;
         ticket.route = this.trainNr;
         ticket.coach = seatIndex / this.seatnumPerCoach + 1; // 车厢
@@ -604,8 +812,8 @@ class AdptGraFCStampedTrainTicketingDS extends TrainTicketingDS {
         ticket.departure = departure;
         ticket.arrival = arrival;
         ticket.tid = this.generateTid(ticket);
-        // 使用并发hash记录票出售的情况（用于退票验证）
-        this.coachTicketRecord.get(ticket.coach - 1).get(ticket.seat - 1).put(ticket.tid, ticket);
+        // 记录售出的票（用于退票验证）
+        this.soldTickets.put(seatIndex, ticket);
         //System.out.printf("成功购票<%s> 列车：%d 乘客：%s，出发：%d，到站：%d \n", ticket.tid, this.trainNr, passenger, departure, arrival);
         return ticket;
     }
@@ -622,29 +830,1070 @@ class AdptGraFCStampedTrainTicketingDS extends TrainTicketingDS {
             // 防止 coach 越界
             return false;
         }
-        Ticket ticketRecord = this.coachTicketRecord.get(ticket.coach - 1).get(ticket.seat - 1).get(ticket.tid);
-        if (ticketRecord == null || ticketRecord == firedTicket || !ticketRecord.equals(ticket)) {
+        // coach 和 seat 都是加了1的一定要小心！
+        int seatIndex = (ticket.coach - 1) * seatnumPerCoach + ticket.seat - 1;
+        // 先把票从售票表里摘掉，同一张票并发退两次只有一次摘得掉
+        if (!this.soldTickets.remove(seatIndex, ticket)) {
             return false;
         }
         // 运行到此处，票面是合法的，确实存在这样的一张票
-        // coach 和 seat 都是加了1的一定要小心！
-        int seatIndex = (ticketRecord.coach - 1) * seatnumPerCoach + ticketRecord.seat - 1;
-        Seat currentSeat = this.bitmap.pickSeatAtIndex(seatIndex);
+        Ticket ticketRecord = ticket;
+        Seat currentSeat = bitmap.pickSeatAtIndex(seatIndex);
         // 获取操作区间的锁
-        bitmap.lockSeat(seatIndex);
+        this.lockSeatTimed(seatIndex);
         try {
             currentSeat.releaseRange(ticketRecord.departure, ticketRecord.arrival);
-            this.remainCounter.refundRange(ticketRecord.departure, ticketRecord.arrival, currentSeat);
+            this.remainCounter.refundRange(ticketRecord.departure, ticketRecord.arrival, bitmap, seatIndex);
             // 更新hinter
-            this.hinter.refundRange(ticketRecord.departure, ticketRecord.arrival, currentSeat, seatIndex);
+            this.hinter.refundRange(ticketRecord.departure, ticketRecord.arrival, bitmap, seatIndex);
         } finally {
             bitmap.unlockSeat(seatIndex);
         }
-        // 将记录置为空，防止tid重复
-
-        this.coachTicketRecord.get(ticket.coach - 1).get(ticket.seat - 1).replace(ticketRecord.tid, firedTicket);
         //System.out.printf("成功退票<%s> 列车：%d 乘客：%s，出发：%d，到站：%d \n", ticket.tid, this.trainNr, ticket.passenger, ticket.departure, ticket.arrival);
         return true;
     }
 }
 
+class CASFCStampedTrainTicketingDS extends TrainTicketingDS {
+
+    CASFCStampedTrainTicketingDS(int trainNr, int coachnum, int seatnum, int stationnum, int threadnum) {
+        super(trainNr, coachnum, seatnum, stationnum, threadnum);
+        this.bitmap = new CASTrainSeatOccupiedBitmap(stationnum, coachnum, seatnum, threadnum);
+        this.remainCounter = new SeatLevelFCStampedRemainTicketCounter(stationnum, coachnum, seatnum);
+        this.hinter = new CoachLevelRemainTicketHint(stationnum, coachnum, seatnum, threadnum);
+    }
+
+    public Ticket buyTicket(Ticket into, String passenger, int departure, int arrival) {
+        CASTrainSeatOccupiedBitmap bitmap = (CASTrainSeatOccupiedBitmap) this.bitmap;
+        // 检查区间是否合法
+        if (!isLegalRange(departure, arrival)) {
+            return null;
+        }
+        int seatStartPoint = this.hinter.hintSeatIndex(departure, arrival);
+        int seatIndex = 0;
+        Seat currentSeat = null;
+        boolean success = false;
+        int probes = 0;
+        for (int i = 0; i < bitmap.getSeatAmount(); i++) {
+            // 当前尝试的座位 index
+            seatIndex = (seatStartPoint + i) % bitmap.getSeatAmount();
+            probes++;
+            // 当前尝试的座位实例
+            currentSeat = bitmap.pickSeatAtIndex(seatIndex);
+            // 检查区间是否可用
+            if (currentSeat.isRangeOccupied(departure, arrival)) {
+                // 这个座位已经冲突了，看下一个
+                continue;
+            }
+            // 一次 CAS 认领座位，CAS 前会再次确认区间空闲
+            if (!bitmap.tryLockFreeRange(seatIndex, departure, arrival)) {
+                // 在检查到认领期间，座位已经被占了，看下一个
+                this.extraScans.increment();
+                continue;
+            }
+            try {
+                // 很好，座位还是空的，赶紧占上
+                this.remainCounter.buyRange(departure, arrival, bitmap, seatIndex);
+                // 更新hinter
+                this.hinter.buyRange(departure, arrival, bitmap, seatIndex);
+                currentSeat.occupyRange(departure, arrival);
+                // 标记购票成功
+                success = true;
+                break;
+            } finally {
+                // 放弃认领，同时发布占座结果
+                bitmap.unlockSeat(seatIndex);
+            }
+        }
+        this.seatProbes.add(probes);
+        // 看过所有座位，没有发现可用空座，那么本次购票失败
+        if (!success) {
+            return null;
+        }
+        // 执行到此处：已经成功锁定席位，开始出票
+        Ticket ticket = into == null ? new Ticket() : into;
+        ticket.passenger = passenger;
+        ticket.route = this.trainNr;
+        ticket.coach = seatIndex / this.seatnumPerCoach + 1; // 车厢
+        ticket.seat = seatIndex % this.seatnumPerCoach + 1; // 座位都是要+1的，从1开始
+        ticket.departure = departure;
+        ticket.arrival = arrival;
+        ticket.tid = this.generateTid(ticket);
+        // 记录售出的票（用于退票验证）
+        this.soldTickets.put(seatIndex, ticket);
+        return ticket;
+    }
+
+    public int inquiry(int departure, int arrival) {
+        return remainCounter.inquiryRemainTicket(departure, arrival);
+    }
+
+    public boolean refundTicket(Ticket ticket) {
+        CASTrainSeatOccupiedBitmap bitmap = (CASTrainSeatOccupiedBitmap) this.bitmap;
+        // 检查票的合法性
+        if (ticket.coach <= 0 || ticket.coach > this.coachnum) {
+            // 防止 coach 越界
+            return false;
+        }
+        // coach 和 seat 都是加了1的一定要小心！
+        int seatIndex = (ticket.coach - 1) * seatnumPerCoach + ticket.seat - 1;
+        // 先把票从售票表里摘掉，同一张票并发退两次只有一次摘得掉
+        if (!this.soldTickets.remove(seatIndex, ticket)) {
+            return false;
+        }
+        // 运行到此处，票面是合法的，确实存在这样的一张票
+        Ticket ticketRecord = ticket;
+        Seat currentSeat = bitmap.pickSeatAtIndex(seatIndex);
+        // 退票必须等到认领成功，认领只会被短暂持有
+        this.lockSeatTimed(seatIndex);
+        try {
+            currentSeat.releaseRange(ticketRecord.departure, ticketRecord.arrival);
+            this.remainCounter.refundRange(ticketRecord.departure, ticketRecord.arrival, bitmap, seatIndex);
+            // 更新hinter
+            this.hinter.refundRange(ticketRecord.departure, ticketRecord.arrival, bitmap, seatIndex);
+        } finally {
+            bitmap.unlockSeat(seatIndex);
+        }
+        return true;
+    }
+}
+
+class PackedFCStampedTrainTicketingDS extends TrainTicketingDS {
+
+    PackedFCStampedTrainTicketingDS(int trainNr, int coachnum, int seatnum, int stationnum, int threadnum) {
+        super(trainNr, coachnum, seatnum, stationnum, threadnum);
+        this.bitmap = new PackedTrainSeatOccupiedBitmap(stationnum, coachnum, seatnum, threadnum);
+        this.remainCounter = new SeatLevelFCStampedRemainTicketCounter(stationnum, coachnum, seatnum);
+        this.hinter = new CoachLevelRemainTicketHint(stationnum, coachnum, seatnum, threadnum);
+    }
+
+    public Ticket buyTicket(Ticket into, String passenger, int departure, int arrival) {
+        PackedTrainSeatOccupiedBitmap bitmap = (PackedTrainSeatOccupiedBitmap) this.bitmap;
+        // 检查区间是否合法
+        if (!isLegalRange(departure, arrival)) {
+            return null;
+        }
+        int seatStartPoint = this.hinter.hintSeatIndex(departure, arrival);
+        int seatAmount = bitmap.getSeatAmount();
+        int seatIndex = 0;
+        boolean success = false;
+        int probes = 0;
+        for (int i = 0; i < seatAmount; i++) {
+            // 当前尝试的座位 index，占用字在内存中是连续的
+            seatIndex = (seatStartPoint + i) % seatAmount;
+            probes++;
+            // 检查区间是否可用
+            if (bitmap.isRangeOccupied(seatIndex, departure, arrival)) {
+                // 这个座位已经冲突了，看下一个
+                continue;
+            }
+            // 一次 CAS 认领座位，CAS 前会再次确认区间空闲
+            if (!bitmap.tryLockFreeRange(seatIndex, departure, arrival)) {
+                // 在检查到认领期间，座位已经被占了，看下一个
+                this.extraScans.increment();
+                continue;
+            }
+            try {
+                // 很好，座位还是空的，赶紧占上
+                this.remainCounter.buyRange(departure, arrival, bitmap, seatIndex);
+                // 更新hinter
+                this.hinter.buyRange(departure, arrival, bitmap, seatIndex);
+                bitmap.occupyRange(seatIndex, departure, arrival);
+                // 标记购票成功
+                success = true;
+                break;
+            } finally {
+                // 放弃认领，同时发布占座结果
+                bitmap.unlockSeat(seatIndex);
+            }
+        }
+        this.seatProbes.add(probes);
+        // 看过所有座位，没有发现可用空座，那么本次购票失败
+        if (!success) {
+            return null;
+        }
+        // 执行到此处：已经成功锁定席位，开始出票
+        Ticket ticket = into == null ? new Ticket() : into;
+        ticket.passenger = passenger;
+        ticket.route = this.trainNr;
+        ticket.coach = seatIndex / this.seatnumPerCoach + 1; // 车厢
+        ticket.seat = seatIndex % this.seatnumPerCoach + 1; // 座位都是要+1的，从1开始
+        ticket.departure = departure;
+        ticket.arrival = arrival;
+        ticket.tid = this.generateTid(ticket);
+        // 记录售出的票（用于退票验证）
+        this.soldTickets.put(seatIndex, ticket);
+        return ticket;
+    }
+
+    public int inquiry(int departure, int arrival) {
+        return remainCounter.inquiryRemainTicket(departure, arrival);
+    }
+
+    public boolean refundTicket(Ticket ticket) {
+        PackedTrainSeatOccupiedBitmap bitmap = (PackedTrainSeatOccupiedBitmap) this.bitmap;
+        // 检查票的合法性
+        if (ticket.coach <= 0 || ticket.coach > this.coachnum) {
+            // 防止 coach 越界
+            return false;
+        }
+        // coach 和 seat 都是加了1的一定要小心！
+        int seatIndex = (ticket.coach - 1) * seatnumPerCoach + ticket.seat - 1;
+        // 先把票从售票表里摘掉，同一张票并发退两次只有一次摘得掉
+        if (!this.soldTickets.remove(seatIndex, ticket)) {
+            return false;
+        }
+        // 运行到此处，票面是合法的，确实存在这样的一张票
+        Ticket ticketRecord = ticket;
+        // 退票必须等到认领成功，认领只会被短暂持有
+        this.lockSeatTimed(seatIndex);
+        try {
+            bitmap.releaseRange(seatIndex, ticketRecord.departure, ticketRecord.arrival);
+            this.remainCounter.refundRange(ticketRecord.departure, ticketRecord.arrival, bitmap, seatIndex);
+            // 更新hinter
+            this.hinter.refundRange(ticketRecord.departure, ticketRecord.arrival, bitmap, seatIndex);
+        } finally {
+            bitmap.unlockSeat(seatIndex);
+        }
+        return true;
+    }
+}
+
+class TransposedFCStampedTrainTicketingDS extends TrainTicketingDS {
+
+    TransposedFCStampedTrainTicketingDS(int trainNr, int coachnum, int seatnum, int stationnum, int threadnum) {
+        this(trainNr, coachnum, seatnum, stationnum, threadnum,
+                new SeatLevelFCStampedRemainTicketCounter(stationnum, coachnum, seatnum));
+    }
+
+    protected TransposedFCStampedTrainTicketingDS(int trainNr, int coachnum, int seatnum, int stationnum, int threadnum,
+                                                  TrainRemainTicketCounter remainCounter) {
+        super(trainNr, coachnum, seatnum, stationnum, threadnum);
+        this.bitmap = new TransposedTrainSeatOccupiedBitmap(stationnum, coachnum, seatnum, threadnum);
+        this.remainCounter = remainCounter;
+        this.hinter = new CoachLevelRemainTicketHint(stationnum, coachnum, seatnum, threadnum);
+    }
+
+    public Ticket buyTicket(Ticket into, String passenger, int departure, int arrival) {
+        TransposedTrainSeatOccupiedBitmap bitmap = (TransposedTrainSeatOccupiedBitmap) this.bitmap;
+        // 检查区间是否合法
+        if (!isLegalRange(departure, arrival)) {
+            return null;
+        }
+        int seatAmount = bitmap.getSeatAmount();
+        int seatStartPoint = this.hinter.hintSeatIndex(departure, arrival) % seatAmount;
+        // 先找 [seatStartPoint, seatAmount)，再绕回 [0, seatStartPoint)
+        int from = seatStartPoint, to = seatAmount;
+        boolean wrapped = false;
+        int seatIndex = 0;
+        boolean success = false;
+        int probes = 0;
+        while (true) {
+            // 按位与各区段的空座位图，直接得到下一个候选座位
+            seatIndex = bitmap.nextFreeSeat(departure, arrival, from, to);
+            if (seatIndex < 0) {
+                if (wrapped) {
+                    break;
+                }
+                wrapped = true;
+                from = 0;
+                to = seatStartPoint;
+                continue;
+            }
+            from = seatIndex + 1;
+            probes++;
+            // 一次 CAS 认领座位，CAS 前会再次确认区间空闲
+            if (!bitmap.tryLockFreeRange(seatIndex, departure, arrival)) {
+                // 空座位图稍旧，座位已经被占了，看下一个
+                this.extraScans.increment();
+                continue;
+            }
+            try {
+                // 很好，座位还是空的，赶紧占上
+                this.remainCounter.buyRange(departure, arrival, bitmap, seatIndex);
+                // 更新hinter
+                this.hinter.buyRange(departure, arrival, bitmap, seatIndex);
+                bitmap.occupyRange(seatIndex, departure, arrival);
+                // 标记购票成功
+                success = true;
+                break;
+            } finally {
+                // 放弃认领，同时发布占座结果
+                bitmap.unlockSeat(seatIndex);
+            }
+        }
+        this.seatProbes.add(probes);
+        // 所有区段的空座位图按位与之后都是 0，本次购票失败
+        if (!success) {
+            return null;
+        }
+        // 执行到此处：已经成功锁定席位，开始出票
+        Ticket ticket = into == null ? new Ticket() : into;
+        ticket.passenger = passenger;
+        ticket.route = this.trainNr;
+        ticket.coach = seatIndex / this.seatnumPerCoach + 1; // 车厢
+        ticket.seat = seatIndex % this.seatnumPerCoach + 1; // 座位都是要+1的，从1开始
+        ticket.departure = departure;
+        ticket.arrival = arrival;
+        ticket.tid = this.generateTid(ticket);
+        // 记录售出的票（用于退票验证）
+        this.soldTickets.put(seatIndex, ticket);
+        return ticket;
+    }
+
+    public int inquiry(int departure, int arrival) {
+        return remainCounter.inquiryRemainTicket(departure, arrival);
+    }
+
+    public boolean refundTicket(Ticket ticket) {
+        TransposedTrainSeatOccupiedBitmap bitmap = (TransposedTrainSeatOccupiedBitmap) this.bitmap;
+        // 检查票的合法性
+        if (ticket.coach <= 0 || ticket.coach > this.coachnum) {
+            // 防止 coach 越界
+            return false;
+        }
+        // coach 和 seat 都是加了1的一定要小心！
+        int seatIndex = (ticket.coach - 1) * seatnumPerCoach + ticket.seat - 1;
+        // 先把票从售票表里摘掉，同一张票并发退两次只有一次摘得掉
+        if (!this.soldTickets.remove(seatIndex, ticket)) {
+            return false;
+        }
+        // 运行到此处，票面是合法的，确实存在这样的一张票
+        Ticket ticketRecord = ticket;
+        // 退票必须等到认领成功，认领只会被短暂持有
+        this.lockSeatTimed(seatIndex);
+        try {
+            bitmap.releaseRange(seatIndex, ticketRecord.departure, ticketRecord.arrival);
+            this.remainCounter.refundRange(ticketRecord.departure, ticketRecord.arrival, bitmap, seatIndex);
+            // 更新hinter
+            this.hinter.refundRange(ticketRecord.departure, ticketRecord.arrival, bitmap, seatIndex);
+        } finally {
+            bitmap.unlockSeat(seatIndex);
+        }
+        return true;
+    }
+}
+
+// 转置空座位图找座，余票计数由空闲段边界直接算出
+class TransposedFreeRunTrainTicketingDS extends TransposedFCStampedTrainTicketingDS {
+
+    TransposedFreeRunTrainTicketingDS(int trainNr, int coachnum, int seatnum, int stationnum, int threadnum) {
+        super(trainNr, coachnum, seatnum, stationnum, threadnum,
+                new SeatLevelFreeRunRemainTicketCounter(stationnum, coachnum, seatnum));
+    }
+}
+
+// 转置空座位图找座，查询延迟有上界的 epoch 计数器
+class TransposedEpochTrainTicketingDS extends TransposedFCStampedTrainTicketingDS {
+
+    TransposedEpochTrainTicketingDS(int trainNr, int coachnum, int seatnum, int stationnum, int threadnum) {
+        super(trainNr, coachnum, seatnum, stationnum, threadnum,
+                new SeatLevelEpochRemainTicketCounter(stationnum, coachnum, seatnum));
+    }
+}
+
+// 平坦合并（flat combining）
+// 线程把买票、退票、查询请求挂到本列车的发布槽里，抢到合并者身份的线程一次扫完所有槽，
+// 在只有它能碰的位图和计数器上依次执行，其余线程原地等结果。
+// 热门线路上座位和计数器的缓存行一直留在合并者手里，不用在所有线程之间来回传递。
+class FlatCombiningTrainTicketingDS extends TrainTicketingDS {
+    private static final int OP_BUY = 1;
+    private static final int OP_REFUND = 2;
+    private static final int OP_INQUIRY = 3;
+    private static final int OP_BUY_GROUP = 4;
+    private static final int OP_INQUIRY_ALL = 5;
+    private static final int OP_INQUIRY_FROM = 6;
+    private static final int SLOT_STRIDE = 16; // 每个发布槽独占一条缓存行
+    private static final int COMBINE_ROUNDS = 4; // 合并者最多连续扫几轮
+
+    static final class Request {
+        int op;
+        int departure;
+        int arrival;
+        Ticket ticket;
+        int result;
+        int count;
+        int[] seats;
+        int[][] remainAll;
+        int[] remainFrom;
+        volatile boolean done;
+    }
+
+    // 发布槽按条带分配：最多按核数个，撞车时换槽、按需翻倍
+    private StripedSlot slot;
+    private AtomicReferenceArray<Request> slots;
+    private AtomicBoolean combining;
+    private ThreadLocal<Request> request;
+    private int nextStart; // 只有合并者读写
+
+    FlatCombiningTrainTicketingDS(int trainNr, int coachnum, int seatnum, int stationnum, int threadnum) {
+        super(trainNr, coachnum, seatnum, stationnum, threadnum);
+        this.bitmap = new TransposedTrainSeatOccupiedBitmap(stationnum, coachnum, seatnum, threadnum);
+        this.remainCounter = new SeatLevelSequentialRemainTicketCounter(stationnum, coachnum, seatnum);
+        this.slot = new StripedSlot();
+        this.slots = new AtomicReferenceArray<>(this.slot.maxStripes() * SLOT_STRIDE);
+        this.combining = new AtomicBoolean(false);
+        this.request = ThreadLocal.withInitial(Request::new);
+        this.nextStart = 0;
+    }
+
+    // 虚拟线程数量多、用完即弃，每次请求新建一个，不在 ThreadLocal 里留请求对象
+    private Request request() {
+        return MyThreadId.isVirtual(Thread.currentThread()) ? new Request() : this.request.get();
+    }
+
+    // 按探针选槽，撞车就换槽；换了 COLLIDE_LIMIT 次都被占着时返回 false，由调用方自己去争合并者
+    private boolean publish(Request req) {
+        int probe = StripedSlot.probe();
+        for (int collisions = 1; collisions <= StripedSlot.COLLIDE_LIMIT; collisions++) {
+            int i = probe & (this.slot.stripes() - 1);
+            if (this.slots.compareAndSet(i * SLOT_STRIDE, null, req)) {
+                return true;
+            }
+            probe = this.slot.collide(probe, collisions);
+        }
+        return false;
+    }
+
+    private void execute(Request req) {
+        req.done = false;
+        // 槽位都满时不死等空槽：能当上合并者就直接做自己的请求，否则退避后再发布
+        for (int spins = 0; !this.publish(req); spins++) {
+            if (this.tryCombine(req)) {
+                return;
+            }
+            backoff(spins);
+        }
+        for (int spins = 0; !req.done; spins++) {
+            if (!this.tryCombine(null)) {
+                backoff(spins);
+            }
+        }
+    }
+
+    private static void backoff(int spins) {
+        if ((spins & 63) == 63) {
+            // 合并者或占着槽位的请求方可能没有拿到 CPU，让出去
+            Thread.yield();
+        } else {
+            Thread.onSpinWait();
+        }
+    }
+
+    // 当上合并者返回 true：own 不为 null 时先做这个没发布出去的请求，再做已发布的
+    private boolean tryCombine(Request own) {
+        if (this.combining.get() || !this.combining.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            if (own != null) {
+                this.apply(own);
+                own.done = true;
+            }
+            this.combine();
+        } finally {
+            this.combining.set(false);
+        }
+        return true;
+    }
+
+    private void combine() {
+        for (int round = 0; round < COMBINE_ROUNDS; round++) {
+            boolean found = false;
+            // 条带数只增不减，新启用的槽位这一轮就能扫到
+            int stripes = this.slot.stripes();
+            for (int i = 0; i < stripes; i++) {
+                Request req = this.slots.get(i * SLOT_STRIDE);
+                if (req == null) {
+                    continue;
+                }
+                this.apply(req);
+                // 先腾出槽位再通知，请求方拿到结果后可以马上发布下一个请求
+                this.slots.set(i * SLOT_STRIDE, null);
+                req.done = true;
+                found = true;
+            }
+            if (!found) {
+                break;
+            }
+        }
+    }
+
+    private void apply(Request req) {
+        TransposedTrainSeatOccupiedBitmap bitmap = (TransposedTrainSeatOccupiedBitmap) this.bitmap;
+        switch (req.op) {
+            case OP_BUY: {
+                // 合并者独占位图，找到空座直接占上，不用再认领
+                int seatIndex = bitmap.nextFreeSeat(req.departure, req.arrival, this.nextStart, bitmap.getSeatAmount());
+                if (seatIndex < 0) {
+                    seatIndex = bitmap.nextFreeSeat(req.departure, req.arrival, 0, this.nextStart);
+                }
+                if (seatIndex >= 0) {
+                    this.seatProbes.increment();
+                    this.remainCounter.buyRange(req.departure, req.arrival, bitmap, seatIndex);
+                    bitmap.occupyRange(seatIndex, req.departure, req.arrival);
+                    this.nextStart = (seatIndex + 1) % bitmap.getSeatAmount();
+                }
+                req.result = seatIndex;
+                break;
+            }
+            case OP_REFUND: {
+                Ticket ticket = req.ticket;
+                req.ticket = null;
+                int seatIndex = (ticket.coach - 1) * seatnumPerCoach + ticket.seat - 1;
+                if (!this.soldTickets.remove(seatIndex, ticket)) {
+                    req.result = 0;
+                    break;
+                }
+                bitmap.releaseRange(seatIndex, ticket.departure, ticket.arrival);
+                this.remainCounter.refundRange(ticket.departure, ticket.arrival, bitmap, seatIndex);
+                req.result = 1;
+                break;
+            }
+            case OP_INQUIRY:
+                req.result = this.remainCounter.inquiryRemainTicket(req.departure, req.arrival);
+                break;
+            case OP_INQUIRY_ALL:
+                req.remainAll = this.remainCounter.inquiryAllRemainTicket();
+                break;
+            case OP_INQUIRY_FROM:
+                req.remainFrom = this.remainCounter.inquiryRemainTicketFrom(req.departure);
+                break;
+            case OP_BUY_GROUP: {
+                // 合并者独占位图，挑出来的座位一定还空着，整组占上即可
+                int[] seats = this.pickGroupSeats(req.count, req.departure, req.arrival, this.nextStart);
+                if (seats != null) {
+                    this.remainCounter.buyRanges(req.departure, req.arrival, bitmap, seats);
+                    for (int seatIndex : seats) {
+                        bitmap.occupyRange(seatIndex, req.departure, req.arrival);
+                    }
+                    this.nextStart = (seats[seats.length - 1] + 1) % bitmap.getSeatAmount();
+                }
+                req.seats = seats;
+                break;
+            }
+            default:
+                req.result = 0;
+        }
+    }
+
+    public Ticket buyTicket(Ticket into, String passenger, int departure, int arrival) {
+        // 检查区间是否合法
+        if (!isLegalRange(departure, arrival)) {
+            return null;
+        }
+        Request req = this.request();
+        req.op = OP_BUY;
+        req.departure = departure;
+        req.arrival = arrival;
+        this.execute(req);
+        int seatIndex = req.result;
+        if (seatIndex < 0) {
+            return null;
+        }
+        // 出票不占用合并者的时间
+        Ticket ticket = into == null ? new Ticket() : into;
+        ticket.passenger = passenger;
+        ticket.route = this.trainNr;
+        ticket.coach = seatIndex / this.seatnumPerCoach + 1; // 车厢
+        ticket.seat = seatIndex % this.seatnumPerCoach + 1; // 座位都是要+1的，从1开始
+        ticket.departure = departure;
+        ticket.arrival = arrival;
+        ticket.tid = this.generateTid(ticket);
+        // 票还没交给乘客，不会有人在记录写入之前来退
+        this.soldTickets.put(seatIndex, ticket);
+        return ticket;
+    }
+
+    public int inquiry(int departure, int arrival) {
+        if (!isLegalRange(departure, arrival)) {
+            return 0;
+        }
+        Request req = this.request();
+        req.op = OP_INQUIRY;
+        req.departure = departure;
+        req.arrival = arrival;
+        this.execute(req);
+        return req.result;
+    }
+
+    public boolean refundTicket(Ticket ticket) {
+        // 检查票的合法性
+        if (ticket.coach <= 0 || ticket.coach > this.coachnum || ticket.seat <= 0 || ticket.seat > this.seatnumPerCoach) {
+            // 防止 coach、seat 越界，越界异常不能抛在合并者里
+            return false;
+        }
+        // 票面校验放在合并者里做，同一张票并发退两次只会成功一次
+        Request req = this.request();
+        req.op = OP_REFUND;
+        req.ticket = ticket;
+        this.execute(req);
+        return req.result == 1;
+    }
+
+    @Override
+    public int[][] inquiryAll() {
+        Request req = this.request();
+        req.op = OP_INQUIRY_ALL;
+        this.execute(req);
+        int[][] remain = req.remainAll;
+        req.remainAll = null;
+        return remain;
+    }
+
+    @Override
+    public int[] inquiryFrom(int departure) {
+        Request req = this.request();
+        req.op = OP_INQUIRY_FROM;
+        req.departure = departure;
+        this.execute(req);
+        int[] remain = req.remainFrom;
+        req.remainFrom = null;
+        return remain;
+    }
+
+    @Override
+    public Ticket[] buyTickets(String[] passengers, int departure, int arrival) {
+        int count = passengers.length;
+        if (count == 0 || count > this.bitmap.getSeatAmount() || !isLegalRange(departure, arrival)) {
+            return null;
+        }
+        Request req = this.request();
+        req.op = OP_BUY_GROUP;
+        req.departure = departure;
+        req.arrival = arrival;
+        req.count = count;
+        this.execute(req);
+        int[] seats = req.seats;
+        req.seats = null;
+        if (seats == null) {
+            return null;
+        }
+        return this.issueTickets(passengers, departure, arrival, seats);
+    }
+}
+
+// 按配置组装的列车：座位位图、余票计数器、找座提示各自可换，由 TrainTicketingDSFactory 创建
+// 只用位图的通用接口（nextFreeSeat、lockSeat、unlockSeat），任意组合都能工作；
+// 计数器在占座前、释放后更新，和其他实现的约定一致
+class ComposedTrainTicketingDS extends TrainTicketingDS {
+
+    ComposedTrainTicketingDS(int trainNr, int coachnum, int seatnum, int stationnum, int threadnum,
+                             TrainSeatOccupiedBitmap bitmap, TrainRemainTicketCounter remainCounter, TrainSeatHint hinter) {
+        super(trainNr, coachnum, seatnum, stationnum, threadnum);
+        this.bitmap = bitmap;
+        this.remainCounter = remainCounter;
+        this.hinter = hinter;
+    }
+
+    public Ticket buyTicket(Ticket into, String passenger, int departure, int arrival) {
+        // 检查区间是否合法
+        if (!isLegalRange(departure, arrival)) {
+            return null;
+        }
+        int seatAmount = this.bitmap.getSeatAmount();
+        int seatStartPoint = this.hinter.hintSeatIndex(departure, arrival) % seatAmount;
+        // 先找 [seatStartPoint, seatAmount)，再绕回 [0, seatStartPoint)
+        int seatIndex = this.occupyFreeSeat(departure, arrival, seatStartPoint, seatAmount);
+        if (seatIndex < 0) {
+            seatIndex = this.occupyFreeSeat(departure, arrival, 0, seatStartPoint);
+        }
+        if (seatIndex < 0) {
+            return null;
+        }
+        // 执行到此处：已经成功锁定席位，开始出票
+        return this.issueTicket(into, passenger, departure, arrival, seatIndex);
+    }
+
+    // 在 [from, to) 里找一个空座占上，返回座位下标，没有空座返回 -1
+    protected int occupyFreeSeat(int departure, int arrival, int from, int to) {
+        int failed = 0, probes = 0;
+        try {
+            for (int seatIndex = this.bitmap.nextFreeSeat(departure, arrival, from, to);
+                 seatIndex >= 0;
+                 seatIndex = this.bitmap.nextFreeSeat(departure, arrival, seatIndex + 1, to)) {
+                probes++;
+                this.lockSeatTimed(seatIndex);
+                try {
+                    // 现在没有人会来争抢，再次检查座位是否还空着
+                    if (this.bitmap.isRangeOccupied(seatIndex, departure, arrival)) {
+                        failed++;
+                        continue;
+                    }
+                    this.remainCounter.buyRange(departure, arrival, this.bitmap, seatIndex);
+                    this.hinter.buyRange(departure, arrival, this.bitmap, seatIndex);
+                    this.bitmap.occupyRange(seatIndex, departure, arrival);
+                    return seatIndex;
+                } finally {
+                    this.bitmap.unlockSeat(seatIndex);
+                }
+            }
+            return -1;
+        } finally {
+            this.seatProbes.add(probes);
+            if (failed > 0) {
+                this.extraScans.add(failed);
+            }
+        }
+    }
+
+    public int inquiry(int departure, int arrival) {
+        return remainCounter.inquiryRemainTicket(departure, arrival);
+    }
+
+    public boolean refundTicket(Ticket ticket) {
+        // 检查票的合法性
+        if (ticket.coach <= 0 || ticket.coach > this.coachnum) {
+            // 防止 coach 越界
+            return false;
+        }
+        // coach 和 seat 都是加了1的一定要小心！
+        int seatIndex = (ticket.coach - 1) * seatnumPerCoach + ticket.seat - 1;
+        // 先把票从售票表里摘掉，同一张票并发退两次只有一次摘得掉
+        if (!this.soldTickets.remove(seatIndex, ticket)) {
+            return false;
+        }
+        this.lockSeatTimed(seatIndex);
+        try {
+            this.bitmap.releaseRange(seatIndex, ticket.departure, ticket.arrival);
+            this.remainCounter.refundRange(ticket.departure, ticket.arrival, this.bitmap, seatIndex);
+            this.hinter.refundRange(ticket.departure, ticket.arrival, this.bitmap, seatIndex);
+        } finally {
+            this.bitmap.unlockSeat(seatIndex);
+        }
+        return true;
+    }
+}
+
+// 按线程划分座位的组装实现
+// 座位按 seatnumPerThread 切成 threadnum 段（余下的座位归最后一段），每个线程先在自己的段里找空座，
+// 线程各自认领不同的占用字，不再挤在提示给出的同一节车厢里；自己的段卖完后，从随机的一段开始依次去别的段里偷。
+// 找座不用提示，提示仍然照常收到买票、退票通知
+class PartitionedTrainTicketingDS extends ComposedTrainTicketingDS {
+    private int partitions;
+
+    PartitionedTrainTicketingDS(int trainNr, int coachnum, int seatnum, int stationnum, int threadnum) {
+        this(trainNr, coachnum, seatnum, stationnum, threadnum,
+                new TransposedTrainSeatOccupiedBitmap(stationnum, coachnum, seatnum, threadnum),
+                new SeatLevelFreeRunRemainTicketCounter(stationnum, coachnum, seatnum),
+                new RandomSeatHint(stationnum, coachnum, seatnum, threadnum));
+    }
+
+    PartitionedTrainTicketingDS(int trainNr, int coachnum, int seatnum, int stationnum, int threadnum,
+                                TrainSeatOccupiedBitmap bitmap, TrainRemainTicketCounter remainCounter, TrainSeatHint hinter) {
+        super(trainNr, coachnum, seatnum, stationnum, threadnum, bitmap, remainCounter, hinter);
+        // 线程比座位还多时不分段
+        this.partitions = this.seatnumPerThread == 0 ? 1 : threadnum;
+    }
+
+    private int occupyInPartition(int partition, int departure, int arrival) {
+        int from = partition * this.seatnumPerThread;
+        int to = partition == this.partitions - 1 ? this.bitmap.getSeatAmount() : from + this.seatnumPerThread;
+        return this.occupyFreeSeat(departure, arrival, from, to);
+    }
+
+    @Override
+    public Ticket buyTicket(Ticket into, String passenger, int departure, int arrival) {
+        // 检查区间是否合法
+        if (!isLegalRange(departure, arrival)) {
+            return null;
+        }
+        int own = this.partitions == 1 ? 0 : this.getThreadSeatIndex() / this.seatnumPerThread;
+        int seatIndex = this.occupyInPartition(own, departure, arrival);
+        if (seatIndex < 0 && this.partitions > 1) {
+            // 自己的段卖完了，随机挑一段开始偷，各线程不会一起涌向同一段
+            int victim = ThreadLocalRandom.current().nextInt(this.partitions);
+            for (int i = 0; i < this.partitions && seatIndex < 0; i++) {
+                int partition = (victim + i) % this.partitions;
+                if (partition != own) {
+                    seatIndex = this.occupyInPartition(partition, departure, arrival);
+                }
+            }
+        }
+        if (seatIndex < 0) {
+            return null;
+        }
+        return this.issueTicket(into, passenger, departure, arrival, seatIndex);
+    }
+}
+
+// 根据观察到的竞争在两套实现之间在线切换的列车
+// 平时用读优化的组装实现；写占比高并且出现等锁、抢座失败或查询重读时，换成平坦合并实现，读多了再换回来。
+// 切换时先关闸：新请求在闸外等待，闸内的请求做完后把所有没退的票连同出票序号搬进新实现，再开闸，其他线路不受影响。
+// 闸和操作计数都放在按线程分散、独占缓存行的槽位里，平时每个操作只多两次不争用的原子加和一次 volatile 读。
+class AdaptiveTrainTicketingDS extends TrainTicketingDS {
+    // 每大约这么多个操作评估一次
+    static final int WINDOW = Integer.getInteger("ticketing.adaptive.window", 4096);
+    // 写占比（%）不低于它并且有竞争时切到合并实现
+    static final int WRITE_SHARE = Integer.getInteger("ticketing.adaptive.writeShare", 40);
+    // 查询占比（%）不低于它时切回读优化实现
+    static final int READ_SHARE = Integer.getInteger("ticketing.adaptive.readShare", 80);
+    // 竞争阈值：平均每次买票等锁的纳秒数、每 100 次买票多试的座位数、每 100 次查询的重读次数
+    static final int LOCK_WAIT_PER_BUY = Integer.getInteger("ticketing.adaptive.lockWait", 200);
+    static final int SCANS_PER_100_BUYS = Integer.getInteger("ticketing.adaptive.scans", 20);
+    static final int RETRIES_PER_100_INQUIRIES = Integer.getInteger("ticketing.adaptive.retries", 5);
+
+    // 每个线程的槽位独占一条缓存行：在途请求数，以及买票、退票、查询的累计次数
+    private static final int SLOT_STRIDE = 8;
+    private static final int IN_FLIGHT = 0;
+    private static final int BUYS = 1;
+    private static final int REFUNDS = 2;
+    private static final int INQUIRIES = 3;
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private long[] slots;
+    private int slotWindow; // 每个槽位攒够这么多操作就评估一次，合起来约等于 WINDOW
+    private volatile boolean migrating;
+    private volatile TrainTicketingDS current;
+    private volatile RetiredProbes retired;
+    private AtomicBoolean evaluating;
+    private Supplier<TrainTicketingDS> readEngine;
+    private Supplier<TrainTicketingDS> writeEngine;
+    // 以下只由持有 evaluating 的线程读写
+    private boolean combining;
+    private long lastBuys, lastRefunds, lastInquiries, lastLockWait, lastScans, lastRetries;
+
+    // 换下来的各个实现的探针累计值，连同与之配套的那个实现一起发布，读者不会把新旧两份累计值混在一起
+    private static final class RetiredProbes {
+        final TrainTicketingDS engine;
+        final long seatProbes, recheckFailures, lockWaitNanos, inquiryRetries;
+
+        RetiredProbes(TrainTicketingDS engine, long seatProbes, long recheckFailures, long lockWaitNanos, long inquiryRetries) {
+            this.engine = engine;
+            this.seatProbes = seatProbes;
+            this.recheckFailures = recheckFailures;
+            this.lockWaitNanos = lockWaitNanos;
+            this.inquiryRetries = inquiryRetries;
+        }
+    }
+
+    AdaptiveTrainTicketingDS(int trainNr, int coachnum, int seatnum, int stationnum, int threadnum) {
+        this(trainNr, coachnum, seatnum, stationnum, threadnum,
+                () -> TrainTicketingDSFactory.newComposed(trainNr, coachnum, seatnum, stationnum, threadnum,
+                        "transposed", "freerun", "bestfit"),
+                () -> new FlatCombiningTrainTicketingDS(trainNr, coachnum, seatnum, stationnum, threadnum));
+    }
+
+    AdaptiveTrainTicketingDS(int trainNr, int coachnum, int seatnum, int stationnum, int threadnum,
+                             Supplier<TrainTicketingDS> readEngine, Supplier<TrainTicketingDS> writeEngine) {
+        super(trainNr, coachnum, seatnum, stationnum, threadnum);
+        // 槽位数和条带数一样按核数定，不按 threadnum：大量虚拟线程也分散在各槽位上
+        this.slots = new long[(StripedSlot.MAX_STRIPES + 1) * SLOT_STRIDE];
+        this.slotWindow = Math.max(WINDOW / StripedSlot.MAX_STRIPES, 1);
+        this.readEngine = readEngine;
+        this.writeEngine = writeEngine;
+        this.current = readEngine.get();
+        this.retired = new RetiredProbes(this.current, 0, 0, 0, 0);
+        this.evaluating = new AtomicBoolean(false);
+    }
+
+    TrainTicketingDS currentEngine() {
+        return this.current;
+    }
+
+    private int enter() {
+        int slot = (StripedSlot.index(StripedSlot.MAX_STRIPES) + 1) * SLOT_STRIDE;
+        while (true) {
+            SLOTS.getAndAdd(this.slots, slot + IN_FLIGHT, 1L);
+            if (!this.migrating) {
+                return slot;
+            }
+            // 正在切换，退出闸门等切换完成
+            SLOTS.getAndAdd(this.slots, slot + IN_FLIGHT, -1L);
+            for (int spins = 0; this.migrating; spins++) {
+                if ((spins & 63) == 63) {
+                    Thread.yield();
+                } else {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+    }
+
+    // 出闸并记下这次操作，槽位攒够一个窗口就评估一次；评估必须在闸外做，否则切换会等自己
+    private void exit(int slot, int op) {
+        SLOTS.getAndAdd(this.slots, slot + IN_FLIGHT, -1L);
+        long ops = (long) SLOTS.getAndAdd(this.slots, slot + op, 1L) + 1;
+        if (ops % this.slotWindow == 0) {
+            this.adapt();
+        }
+    }
+
+    public Ticket buyTicket(Ticket into, String passenger, int departure, int arrival) {
+        int slot = enter();
+        try {
+            return this.current.buyTicket(into, passenger, departure, arrival);
+        } finally {
+            exit(slot, BUYS);
+        }
+    }
+
+    public int inquiry(int departure, int arrival) {
+        int slot = enter();
+        try {
+            return this.current.inquiry(departure, arrival);
+        } finally {
+            exit(slot, INQUIRIES);
+        }
+    }
+
+    public boolean refundTicket(Ticket ticket) {
+        int slot = enter();
+        try {
+            return this.current.refundTicket(ticket);
+        } finally {
+            exit(slot, REFUNDS);
+        }
+    }
+
+    @Override
+    public int[][] inquiryAll() {
+        int slot = enter();
+        try {
+            return this.current.inquiryAll();
+        } finally {
+            exit(slot, INQUIRIES);
+        }
+    }
+
+    @Override
+    public int[] inquiryFrom(int departure) {
+        int slot = enter();
+        try {
+            return this.current.inquiryFrom(departure);
+        } finally {
+            exit(slot, INQUIRIES);
+        }
+    }
+
+    @Override
+    public Ticket[] buyTickets(String[] passengers, int departure, int arrival) {
+        int slot = enter();
+        try {
+            return this.current.buyTickets(passengers, departure, arrival);
+        } finally {
+            exit(slot, BUYS);
+        }
+    }
+
+    @Override
+    void restoreTicket(Ticket ticket) {
+        this.current.restoreTicket(ticket);
+    }
+
+    @Override
+    void restoreSequence(Ticket ticket) {
+        this.current.restoreSequence(ticket);
+    }
+
+    @Override
+    SoldTicketTable soldTicketTable() {
+        return this.current.soldTicketTable();
+    }
+
+    @Override
+    void setRefundLog(Consumer<Ticket> log) {
+        this.current.setRefundLog(log);
+    }
+
+    // 探针是换下来的各个实现的累计值加上当前实现的，切换前后都单调不减
+    @Override
+    long getSeatProbes() {
+        RetiredProbes retired = this.retired;
+        return retired.seatProbes + retired.engine.getSeatProbes();
+    }
+
+    @Override
+    long getRecheckFailures() {
+        RetiredProbes retired = this.retired;
+        return retired.recheckFailures + retired.engine.getRecheckFailures();
+    }
+
+    @Override
+    long getLockWaitNanos() {
+        RetiredProbes retired = this.retired;
+        return retired.lockWaitNanos + retired.engine.getLockWaitNanos();
+    }
+
+    @Override
+    long getInquiryRetries() {
+        RetiredProbes retired = this.retired;
+        return retired.inquiryRetries + retired.engine.getInquiryRetries();
+    }
+
+    @Override
+    void takeOver(TrainTicketingDS other) {
+        this.current.takeOver(other instanceof AdaptiveTrainTicketingDS ? ((AdaptiveTrainTicketingDS) other).current : other);
+    }
+
+    private long sumSlots(int op) {
+        long sum = 0;
+        for (int slot = SLOT_STRIDE; slot < this.slots.length; slot += SLOT_STRIDE) {
+            sum += (long) SLOTS.getOpaque(this.slots, slot + op);
+        }
+        return sum;
+    }
+
+    private void adapt() {
+        if (!this.evaluating.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long buys = sumSlots(BUYS), refunds = sumSlots(REFUNDS), inquiries = sumSlots(INQUIRIES);
+            long db = buys - this.lastBuys, dr = refunds - this.lastRefunds, dq = inquiries - this.lastInquiries;
+            long ops = db + dr + dq;
+            if (ops < WINDOW) {
+                return;
+            }
+            TrainTicketingDS engine = this.current;
+            long lockWait = engine.lockWaitNanos.sum(), scans = engine.extraScans.sum();
+            long retries = engine.remainCounter.getInquiryRetries();
+            boolean contended = lockWait - this.lastLockWait >= (long) LOCK_WAIT_PER_BUY * db
+                    || (scans - this.lastScans) * 100 >= (long) SCANS_PER_100_BUYS * db
+                    || (retries - this.lastRetries) * 100 >= (long) RETRIES_PER_100_INQUIRIES * dq;
+            if (!this.combining && (db + dr) * 100 >= WRITE_SHARE * ops && contended) {
+                migrate(this.writeEngine);
+                this.combining = true;
+            } else if (this.combining && dq * 100 >= READ_SHARE * ops) {
+                migrate(this.readEngine);
+                this.combining = false;
+            }
+            engine = this.current;
+            this.lastBuys = buys;
+            this.lastRefunds = refunds;
+            this.lastInquiries = inquiries;
+            this.lastLockWait = engine.lockWaitNanos.sum();
+            this.lastScans = engine.extraScans.sum();
+            this.lastRetries = engine.remainCounter.getInquiryRetries();
+        } finally {
+            this.evaluating.set(false);
+        }
+    }
+
+    private void migrate(Supplier<TrainTicketingDS> target) {
+        TrainTicketingDS next = target.get();
+        this.migrating = true;
+        try {
+            // 等闸内的请求做完
+            for (int slot = SLOT_STRIDE; slot < this.slots.length; slot += SLOT_STRIDE) {
+                for (int spins = 0; (long) SLOTS.getVolatile(this.slots, slot + IN_FLIGHT) != 0; spins++) {
+                    if ((spins & 63) == 63) {
+                        Thread.yield();
+                    } else {
+                        Thread.onSpinWait();
+                    }
+                }
+            }
+            TrainTicketingDS old = this.current;
+            next.takeOver(old);
+            this.current = next;
+            // 闸内已经没有请求，旧实现的探针不会再变
+            RetiredProbes retired = this.retired;
+            this.retired = new RetiredProbes(next, retired.seatProbes + old.getSeatProbes(),
+                    retired.recheckFailures + old.getRecheckFailures(), retired.lockWaitNanos + old.getLockWaitNanos(),
+                    retired.inquiryRetries + old.getInquiryRetries());
+        } finally {
+            this.migrating = false;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package ticketingsystem;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * 按配置创建每条线路的列车实现
+ * 配置项（带 route.线路号. 前缀的只对这条线路生效，并且优先于全局配置）：
+ *   ticketing.engine   整套实现：TrainTicketingDS 的类名、composed（按下面三项组装）、partitioned（按下面三项组装，
+ *                      每个线程先在自己的座位段里找座，卖完再去别的段偷）、flatcombining，
+ *                      或 adaptive（按下面三项组装，竞争激烈时在线切换到平坦合并，阈值见 AdaptiveTrainTicketingDS）；
+ *                      没有配置任何一项时沿用 AdptGraFCStampedTrainTicketingDS
+ *   ticketing.bitmap   座位位图：adaptive | cas | packed | transposed，默认 transposed
+ *   ticketing.counter  余票计数器：atomic | longadder | readwrite | fc | fcstamped | compact | freerun | epoch，默认 freerun
+ *   ticketing.hint     找座提示：coach | random | bestfit，默认 bestfit
+ * 全局配置（不区分线路）：
+ *   ticketing.journal               售票日志文件路径，配置后启动时按日志恢复没退的票，之后的买票、退票都记进日志，见 TicketJournal
+ *   ticketing.journal.commitMillis  日志组提交的间隔毫秒数，默认 10；为 0 时每条记录都立即刷盘
+ *   ticketing.snapshot              售票快照文件路径，配置后启动时文件存在就先加载，之后定期写快照，见 TicketSnapshot；
+ *                                   同时配置了日志时快照是日志的检查点，恢复时只重放快照之后的日志，旧的日志随之删除
+ *   ticketing.snapshot.intervalMillis  写快照的间隔毫秒数，默认 60000
+ *   ticketing.metrics               是否记录每条线路每种操作的延迟和热路径探针，默认 true，见 TicketingMetrics
+ *   ticketing.metrics.sampleEvery   平均每多少次操作抽样记一次延迟，默认 16；操作次数由抽样数估出，为 1 时精确
+ *   ticketing.metrics.jmx           是否把指标注册为 MXBean，默认 false
+ * 例如热门的 1 号线路用写优化的组合，其余线路用省内存的：
+ *   -Dticketing.route.1.counter=epoch -Dticketing.bitmap=packed -Dticketing.counter=atomic -Dticketing.hint=random
+ */
+class TrainTicketingDSFactory {
+    static final String PREFIX = "ticketing.";
+    static final String DEFAULT_ENGINE = "AdptGraFCStampedTrainTicketingDS";
+
+    private Properties config;
+
+    TrainTicketingDSFactory() {
+        this(System.getProperties());
+    }
+
+    TrainTicketingDSFactory(Properties config) {
+        this.config = config;
+    }
+
+    private String lookup(int trainNr, String key) {
+        String value = this.config.getProperty(PREFIX + "route." + trainNr + "." + key);
+        return value != null ? value : this.config.getProperty(PREFIX + key);
+    }
+
+    public TrainTicketingDS newTrain(int trainNr, int coachnum, int seatnum, int stationnum, int threadnum) {
+        String engine = lookup(trainNr, "engine");
+        String bitmap = lookup(trainNr, "bitmap");
+        String counter = lookup(trainNr, "counter");
+        String hint = lookup(trainNr, "hint");
+        if (engine == null) {
+            engine = (bitmap == null && counter == null && hint == null) ? DEFAULT_ENGINE : "composed";
+        }
+        String bitmapName = bitmap == null ? "transposed" : bitmap;
+        String counterName = counter == null ? "freerun" : counter;
+        String hintName = hint == null ? "bestfit" : hint;
+        switch (engine) {
+            case "composed":
+                return newComposed(trainNr, coachnum, seatnum, stationnum, threadnum, bitmapName, counterName, hintName);
+            case "partitioned":
+                return newPartitioned(trainNr, coachnum, seatnum, stationnum, threadnum, bitmapName, counterName, hintName);
+            case "adaptive":
+                return new AdaptiveTrainTicketingDS(trainNr, coachnum, seatnum, stationnum, threadnum,
+                        () -> newComposed(trainNr, coachnum, seatnum, stationnum, threadnum, bitmapName, counterName, hintName),
+                        () -> new FlatCombiningTrainTicketingDS(trainNr, coachnum, seatnum, stationnum, threadnum));
+            case "flatcombining":
+                return new FlatCombiningTrainTicketingDS(trainNr, coachnum, seatnum, stationnum, threadnum);
+            default:
+                return newEngine(engine, trainNr, coachnum, seatnum, stationnum, threadnum);
+        }
+    }
+
+    static TrainTicketingDS newComposed(int trainNr, int coachnum, int seatnum, int stationnum, int threadnum,
+                                        String bitmap, String counter, String hint) {
+        TrainSeatOccupiedBitmap seats = newBitmap(bitmap, stationnum, coachnum, seatnum, threadnum);
+        return new ComposedTrainTicketingDS(trainNr, coachnum, seatnum, stationnum, threadnum, seats,
+                newCounter(counter, stationnum, coachnum, seatnum, threadnum),
+                newHint(hint, stationnum, coachnum, seatnum, threadnum, seats));
+    }
+
+    static TrainTicketingDS newPartitioned(int trainNr, int coachnum, int seatnum, int stationnum, int threadnum,
+                                           String bitmap, String counter, String hint) {
+        TrainSeatOccupiedBitmap seats = newBitmap(bitmap, stationnum, coachnum, seatnum, threadnum);
+        return new PartitionedTrainTicketingDS(trainNr, coachnum, seatnum, stationnum, threadnum, seats,
+                newCounter(counter, stationnum, coachnum, seatnum, threadnum),
+                newHint(hint, stationnum, coachnum, seatnum, threadnum, seats));
+    }
+
+    static TrainSeatOccupiedBitmap newBitmap(String name, int stationnum, int coachnum, int seatnum, int threadnum) {
+        switch (name) {
+            case "adaptive":
+                return new AdaptiveGranularityTrainSeatOccupiedBitmap(stationnum, coachnum, seatnum, threadnum);
+            case "cas":
+                return new CASTrainSeatOccupiedBitmap(stationnum, coachnum, seatnum, threadnum);
+            case "packed":
+                return new PackedTrainSeatOccupiedBitmap(stationnum, coachnum, seatnum, threadnum);
+            case "transposed":
+                return new TransposedTrainSeatOccupiedBitmap(stationnum, coachnum, seatnum, threadnum);
+            default:
+                throw new IllegalArgumentException("Unknown seat bitmap " + name);
+        }
+    }
+
+    static TrainRemainTicketCounter newCounter(String name, int stationnum, int coachnum, int seatnum, int threadnum) {
+        switch (name) {
+            case "atomic":
+                return new SeatLevelAtomicRemainTicketCounter(stationnum, coachnum, seatnum);
+            case "longadder":
+                return new SeatLevelLongAdderRemainTicketCounter(stationnum, coachnum, seatnum);
+            case "readwrite":
+                return new SeatLevelReadWriteRemainTicketCounter(stationnum, coachnum, seatnum);
+            case "fc":
+                return new SeatLevelFCRemainTicketCounter(stationnum, coachnum, seatnum);
+            case "fcstamped":
+                return new SeatLevelFCStampedRemainTicketCounter(stationnum, coachnum, seatnum);
+            case "compact":
+                return new SeatLevelCompactFCStampedRemainTicketCounter(stationnum, coachnum, seatnum);
+            case "freerun":
+                return new SeatLevelFreeRunRemainTicketCounter(stationnum, coachnum, seatnum);
+            case "epoch":
+                return new SeatLevelEpochRemainTicketCounter(stationnum, coachnum, seatnum);
+            default:
+                throw new IllegalArgumentException("Unknown remain ticket counter " + name);
+        }
+    }
+
+    static TrainSeatHint newHint(String name, int stationnum, int coachnum, int seatnum, int threadnum,
+                                 TrainSeatOccupiedBitmap bitmap) {
+        switch (name) {
+            case "bestfit":
+                return new BestFitSeatHint(stationnum, coachnum, seatnum, bitmap);
+            case "coach":
+                return new CoachLevelRemainTicketHint(stationnum, coachnum, seatnum, threadnum);
+            case "random":
+                return new RandomSeatHint(stationnum, coachnum, seatnum, threadnum);
+            default:
+                throw new IllegalArgumentException("Unknown seat hint " + name);
+        }
+    }
+
+    // 没有配置售票日志时返回 null；fromGeneration 是快照记下的日志代号，没有快照时为 0
+    TicketJournal openJournal(long fromGeneration, TicketJournal.Replay replay) throws IOException {
+        String path = this.config.getProperty(PREFIX + "journal");
+        if (path == null) {
+            return null;
+        }
+        int commitMillis = Integer.parseInt(this.config.getProperty(PREFIX + "journal.commitMillis", "10"));
+        return TicketJournal.open(Paths.get(path), commitMillis, fromGeneration, replay);
+    }
+
+    // 没有配置售票快照时返回 null
+    TicketSnapshot newSnapshot(TrainTicketingDS[] trains) {
+        String path = this.config.getProperty(PREFIX + "snapshot");
+        if (path == null) {
+            return null;
+        }
+        long intervalMillis = Long.parseLong(this.config.getProperty(PREFIX + "snapshot.intervalMillis", "60000"));
+        return new TicketSnapshot(trains, Paths.get(path), intervalMillis);
+    }
+
+    // 关闭指标时返回 null
+    TicketingMetrics newMetrics(TrainTicketingDS[] trains) {
+        if (!Boolean.parseBoolean(this.config.getProperty(PREFIX + "metrics", "true"))) {
+            return null;
+        }
+        TicketingMetrics metrics = new TicketingMetrics(trains,
+                Integer.parseInt(this.config.getProperty(PREFIX + "metrics.sampleEvery", "16")));
+        if (Boolean.parseBoolean(this.config.getProperty(PREFIX + "metrics.jmx", "false"))) {
+            metrics.registerJmx();
+        }
+        return metrics;
+    }
+
+    // 按类名创建现成的整套实现
+    static TrainTicketingDS newEngine(String engine, int trainNr, int coachnum, int seatnum, int stationnum, int threadnum) {
+        try {
+            return (TrainTicketingDS) Class.forName("ticketingsystem." + engine)
+                    .getDeclaredConstructor(int.class, int.class, int.class, int.class, int.class)
+                    .newInstance(trainNr, coachnum, seatnum, stationnum, threadnum);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Unknown engine " + engine, e);
+        }
+    }
+}
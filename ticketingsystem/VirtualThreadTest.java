@@ -0,0 +1,127 @@
+package ticketingsystem;
+
+import java.util.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Test 的虚拟线程版：每个调用方一个虚拟线程，同时在场的调用方多达十万个
+ * 负载比例同 Test；所有调用方都起来之后才一起放行，保证它们真的是并发的
+ * 需要 JDK 21 以上，用反射取 Executors.newVirtualThreadPerTaskExecutor，低版本 JDK 上也能编译
+ * 用法：java ticketingsystem.VirtualThreadTest [调用方数 ...]，默认 1000 10000 100000
+ */
+public class VirtualThreadTest {
+    private final static int ROUTE_NUM = 20;
+    private final static int COACH_NUM = 10;
+    private final static int SEAT_NUM = 100;
+    private final static int STATION_NUM = 16;
+
+    private final static int OPS_PER_CALLER = 100;
+    private final static int refund = 10;
+    private final static int buy = 30;
+    private final static int query = 100;
+    // 传给 TicketingDS 的线程数，按核数给，不按调用方数给
+    private final static int THREAD_NUM = Runtime.getRuntime().availableProcessors();
+
+    public static void main(String[] args) throws Exception {
+        int[] callerNums = {1000, 10000, 100000};
+        if (args.length > 0) {
+            callerNums = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                callerNums[i] = Integer.parseInt(args[i]);
+            }
+        }
+        ExecutorService probe = newVirtualThreadExecutor();
+        if (probe == null) {
+            System.out.println("Virtual threads need JDK 21 or later, running on " + System.getProperty("java.version"));
+            return;
+        }
+        probe.shutdown();
+        for (int callers : callerNums) {
+            for (int r = 0; r < 3; r++) {
+                run(callers);
+            }
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static void run(int callers) throws InterruptedException {
+        final TicketingDS tds = new TicketingDS(ROUTE_NUM, COACH_NUM, SEAT_NUM, STATION_NUM, THREAD_NUM);
+        final LongAdder buyTime = new LongAdder(), refundTime = new LongAdder(), inquiryTime = new LongAdder();
+        final LongAdder buyTotal = new LongAdder(), refundTotal = new LongAdder(), inquiryTotal = new LongAdder();
+        final CountDownLatch ready = new CountDownLatch(callers);
+        final CountDownLatch go = new CountDownLatch(1);
+        ExecutorService executor = newVirtualThreadExecutor();
+        for (int c = 0; c < callers; c++) {
+            executor.execute(() -> {
+                ThreadLocalRandom rand = ThreadLocalRandom.current();
+                ArrayList<Ticket> soldTicket = new ArrayList<>();
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < OPS_PER_CALLER; i++) {
+                    int sel = rand.nextInt(query);
+                    if (sel < refund && soldTicket.size() > 0) {
+                        Ticket ticket = soldTicket.remove(rand.nextInt(soldTicket.size()));
+                        long s = System.nanoTime();
+                        tds.refundTicket(ticket);
+                        refundTime.add(System.nanoTime() - s);
+                        refundTotal.increment();
+                    } else if (refund <= sel && sel < buy) {
+                        String passenger = "passenger" + rand.nextInt(callers * OPS_PER_CALLER);
+                        int route = rand.nextInt(ROUTE_NUM) + 1;
+                        int departure = rand.nextInt(STATION_NUM - 1) + 1;
+                        int arrival = departure + rand.nextInt(STATION_NUM - departure) + 1;
+                        long s = System.nanoTime();
+                        Ticket ticket = tds.buyTicket(passenger, route, departure, arrival);
+                        buyTime.add(System.nanoTime() - s);
+                        buyTotal.increment();
+                        if (ticket != null) {
+                            soldTicket.add(ticket);
+                        }
+                    } else if (buy <= sel) {
+                        int route = rand.nextInt(ROUTE_NUM) + 1;
+                        int departure = rand.nextInt(STATION_NUM - 1) + 1;
+                        int arrival = departure + rand.nextInt(STATION_NUM - departure) + 1;
+                        long s = System.nanoTime();
+                        tds.inquiry(route, departure, arrival);
+                        inquiryTime.add(System.nanoTime() - s);
+                        inquiryTotal.increment();
+                    }
+                }
+            });
+        }
+        ready.await();
+        long start = System.currentTimeMillis();
+        go.countDown();
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.DAYS);
+        long time = Math.max(1, System.currentTimeMillis() - start);
+
+        long ops = buyTotal.sum() + refundTotal.sum() + inquiryTotal.sum();
+        long t = (long) (ops / (double) time * 1000); // 1000是从ms转换为s
+        System.out.println(String.format(
+                "Callers: %d BuyAvgTime(ns): %d RefundAvgTime(ns): %d InquiryAvgTime(ns): %d ThroughOut(t/s): %d",
+                callers, average(buyTime, buyTotal), average(refundTime, refundTotal), average(inquiryTime, inquiryTotal), t));
+    }
+
+    private static long average(LongAdder time, LongAdder total) {
+        long n = total.sum();
+        return n == 0 ? 0 : time.sum() / n;
+    }
+}